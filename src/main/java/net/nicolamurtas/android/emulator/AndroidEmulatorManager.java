@@ -1,8 +1,14 @@
 package net.nicolamurtas.android.emulator;
 
+import net.nicolamurtas.android.emulator.service.AvdIndex;
+import net.nicolamurtas.android.emulator.service.AvdInventory;
 import net.nicolamurtas.android.emulator.service.ConfigService;
 import net.nicolamurtas.android.emulator.service.EmulatorService;
 import net.nicolamurtas.android.emulator.service.SdkDownloadService;
+import net.nicolamurtas.android.emulator.service.SdkIntegrityScanner;
+import net.nicolamurtas.android.emulator.service.SdkInventory;
+import net.nicolamurtas.android.emulator.service.SdkRepositoryClient;
+import net.nicolamurtas.android.emulator.util.DownloadCache;
 import net.nicolamurtas.android.emulator.util.PlatformUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,8 +16,10 @@ import org.slf4j.LoggerFactory;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.Desktop;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
 import java.util.List;
 
@@ -48,6 +56,9 @@ public class AndroidEmulatorManager extends JFrame {
     private List<EmulatorService.AvdInfo> allAvds = new ArrayList<>();
     private int currentPage = 0;
     private static final int CARDS_PER_PAGE = 10;
+    private static final Duration SHUTDOWN_DEADLINE = Duration.ofSeconds(20);
+    /** Delay after the last API selection change before prefetching it. */
+    private static final int PREFETCH_DELAY_MILLIS = 600;
     private JLabel pageLabel;
     private JButton prevPageButton;
     private JButton nextPageButton;
@@ -55,10 +66,12 @@ public class AndroidEmulatorManager extends JFrame {
     public AndroidEmulatorManager() {
         this.configService = new ConfigService();
         this.sdkDownloadService = new SdkDownloadService();
+        sdkDownloadService.setDownloadCache(DownloadCache.open(
+            configService.getDownloadCachePath(), configService.getDownloadCacheMaxBytes()));
 
         Path sdkPath = configService.getSdkPath();
         if (Files.exists(sdkPath)) {
-            this.emulatorService = new EmulatorService(sdkPath);
+            setEmulatorService(new EmulatorService(sdkPath, sdkDownloadService));
         }
 
         initializeUI();
@@ -164,6 +177,11 @@ public class AndroidEmulatorManager extends JFrame {
         verifyButton.addActionListener(e -> verifySdk());
         buttonPanel.add(verifyButton);
 
+        JButton cleanButton = new JButton("Clean SDK");
+        cleanButton.setToolTipText("Remove system images and platforms no AVD uses");
+        cleanButton.addActionListener(e -> cleanSdk());
+        buttonPanel.add(cleanButton);
+
         sdkContentPanel.add(topPanel, BorderLayout.NORTH);
         sdkContentPanel.add(buttonPanel, BorderLayout.SOUTH);
 
@@ -638,6 +656,38 @@ public class AndroidEmulatorManager extends JFrame {
         return name.matches("^[a-zA-Z0-9_-]+$");
     }
 
+    /**
+     * Replaces the emulator service, releasing the previous one and
+     * subscribing the device grid to AVD change events.
+     */
+    private void setEmulatorService(EmulatorService service) {
+        if (emulatorService != null) {
+            emulatorService.close();
+        }
+        emulatorService = service;
+        service.addAvdChangeListener(event ->
+            SwingUtilities.invokeLater(() -> applyAvdChange(event)));
+    }
+
+    /**
+     * Applies a single AVD change to the device grid without re-listing.
+     */
+    private void applyAvdChange(AvdIndex.AvdChangeEvent event) {
+        EmulatorService.AvdInfo avd = event.avd();
+        List<EmulatorService.AvdInfo> updated = new ArrayList<>(allAvds);
+        updated.removeIf(existing -> existing.name().equals(avd.name()));
+        if (event.type() != AvdIndex.ChangeType.REMOVED) {
+            updated.add(avd);
+            updated.sort(Comparator.comparing(EmulatorService.AvdInfo::name));
+        }
+        allAvds = updated;
+
+        int totalPages = Math.max(1, (int) Math.ceil((double) allAvds.size() / CARDS_PER_PAGE));
+        currentPage = Math.min(currentPage, totalPages - 1);
+        updateDeviceCards();
+        log("AVD " + event.type().name().toLowerCase() + ": " + avd.name());
+    }
+
     private void loadConfiguration() {
         Path sdkPath = configService.getSdkPath();
         sdkPathField.setText(sdkPath.toString());
@@ -653,7 +703,7 @@ public class AndroidEmulatorManager extends JFrame {
             sdkPathField.setText(path.toString());
             configService.setSdkPath(path);
             configService.saveConfig();
-            emulatorService = new EmulatorService(path);
+            setEmulatorService(new EmulatorService(path, sdkDownloadService));
             log("SDK path set to: " + path);
         }
     }
@@ -674,7 +724,7 @@ public class AndroidEmulatorManager extends JFrame {
         }
 
         // Show component selection dialog
-        List<String> selectedComponents = showSdkComponentSelectionDialog();
+        List<String> selectedComponents = showSdkComponentSelectionDialog(sdkPath);
         if (selectedComponents == null || selectedComponents.isEmpty()) {
             log("SDK download cancelled by user");
             return;
@@ -687,16 +737,26 @@ public class AndroidEmulatorManager extends JFrame {
                 log("Target path: " + sdkPath);
                 log("Selected components: " + selectedComponents.size());
 
-                sdkDownloadService.downloadAndInstallSdk(sdkPath, selectedComponents, this::updateProgress);
+                String message = "SDK downloaded and installed successfully!";
+                if (Files.isDirectory(sdkPath)) {
+                    // Only fetch what is missing or outdated, keep everything else installed
+                    SdkDownloadService.SdkPlan plan = sdkDownloadService.reconcileSdk(
+                        sdkPath, selectedComponents, true, false, this::updateProgress);
+                    log(String.format("Existing SDK: %d installed, %d upgraded, %d already up to date",
+                        plan.installs().size(), plan.upgrades().size(), plan.unchanged().size()));
+                    if (plan.isEmpty()) {
+                        message = "The SDK is already up to date.";
+                    }
+                } else {
+                    sdkDownloadService.downloadAndInstallSdk(sdkPath, selectedComponents, this::updateProgress);
+                }
 
                 configService.setSdkPath(sdkPath);
                 configService.saveConfig();
-                emulatorService = new EmulatorService(sdkPath);
+                setEmulatorService(new EmulatorService(sdkPath, sdkDownloadService));
 
                 log("=== SDK Installation Completed Successfully ===");
-                JOptionPane.showMessageDialog(this,
-                    "SDK downloaded and installed successfully!",
-                    "Success", JOptionPane.INFORMATION_MESSAGE);
+                JOptionPane.showMessageDialog(this, message, "Success", JOptionPane.INFORMATION_MESSAGE);
 
             } catch (Exception e) {
                 logger.error("SDK download failed", e);
@@ -848,7 +908,16 @@ public class AndroidEmulatorManager extends JFrame {
         return accepted;
     }
 
-    private List<String> showSdkComponentSelectionDialog() {
+    private List<String> showSdkComponentSelectionDialog(Path sdkPath) {
+        // Mark what the target SDK already has; it is not downloaded again
+        SdkInventory inventory;
+        try {
+            inventory = sdkDownloadService.getInventory(sdkPath);
+        } catch (IOException e) {
+            logger.warn("Cannot read installed packages in {}", sdkPath, e);
+            inventory = null;
+        }
+
         JPanel panel = new JPanel(new GridBagLayout());
         GridBagConstraints gbc = new GridBagConstraints();
         gbc.insets = new Insets(5, 5, 5, 5);
@@ -871,7 +940,8 @@ public class AndroidEmulatorManager extends JFrame {
         String[] essentialComponents = {"platform-tools", "emulator", "build-tools;35.0.0"};
         for (String component : essentialComponents) {
             gbc.gridy++;
-            JCheckBox cb = new JCheckBox(component, true);
+            boolean installed = inventory != null && inventory.isInstalled(component);
+            JCheckBox cb = new JCheckBox(installed ? component + " (installed)" : component, true);
             cb.setEnabled(false);
             essentialCheckboxes.add(cb);
             panel.add(cb, gbc);
@@ -886,7 +956,10 @@ public class AndroidEmulatorManager extends JFrame {
         Map<String, JCheckBox> apiCheckboxes = new LinkedHashMap<>();
         for (int api = 36; api >= 30; api--) {
             gbc.gridy++;
-            JCheckBox platformCb = new JCheckBox("Android " + api + " (Platform + System Image)", api >= 34);
+            boolean installed = inventory != null
+                && inventory.isApiLevelInstalled(String.valueOf(api), SdkDownloadService.DEFAULT_ABI);
+            JCheckBox platformCb = new JCheckBox("Android " + api + " (Platform + System Image)"
+                + (installed ? " - installed" : ""), installed || api >= 34);
             apiCheckboxes.put(String.valueOf(api), platformCb);
             panel.add(platformCb, gbc);
         }
@@ -935,17 +1008,108 @@ public class AndroidEmulatorManager extends JFrame {
     }
 
     private void verifySdk() {
-        if (configService.isSdkConfigured()) {
-            JOptionPane.showMessageDialog(this,
-                "SDK is properly configured!",
-                "SDK Verification", JOptionPane.INFORMATION_MESSAGE);
-            log("SDK verification: OK");
-        } else {
+        if (!configService.isSdkConfigured()) {
             JOptionPane.showMessageDialog(this,
                 "SDK is not properly configured. Please download SDK first.",
                 "SDK Verification", JOptionPane.WARNING_MESSAGE);
             log("SDK verification: FAILED");
+            return;
         }
+
+        // Hashing every installed file takes a while, keep the UI responsive
+        Path sdkPath = configService.getSdkPath();
+        new Thread(() -> {
+            try {
+                showProgress(true);
+                log("Verifying SDK integrity...");
+
+                SdkInventory inventory = sdkDownloadService.getInventory(sdkPath);
+                long platforms = inventory.getPackages().keySet().stream()
+                    .filter(path -> path.startsWith("platforms;")).count();
+                long systemImages = inventory.getPackages().keySet().stream()
+                    .filter(path -> path.startsWith("system-images;")).count();
+                SdkIntegrityScanner.Report report = sdkDownloadService.verifySdk(sdkPath, this::updateProgress);
+
+                StringBuilder message = new StringBuilder(report.isHealthy()
+                    ? "SDK is properly configured!" : "SDK has damaged packages!");
+                message.append(String.format("%n%nInstalled packages: %d%nPlatforms: %d%nSystem images: %d",
+                    inventory.getPackages().size(), platforms, systemImages));
+                message.append(String.format("%n%nVerified: %d, damaged: %d, without manifest: %d (%d MB in %.1f s)",
+                    report.count(SdkIntegrityScanner.Status.OK), report.count(SdkIntegrityScanner.Status.DAMAGED),
+                    report.count(SdkIntegrityScanner.Status.UNVERIFIED), report.bytesChecked() / (1024 * 1024),
+                    report.elapsed().toMillis() / 1000.0));
+                for (SdkIntegrityScanner.PackageReport damaged : report.getDamaged()) {
+                    message.append(String.format("%n- %s: %d corrupt, %d missing files",
+                        damaged.path(), damaged.corruptFiles().size(), damaged.missingFiles().size()));
+                    log("Damaged package " + damaged.path() + ": corrupt " + damaged.corruptFiles()
+                        + ", missing " + damaged.missingFiles());
+                }
+                if (!report.isHealthy()) {
+                    message.append(String.format("%n%nReinstall the damaged packages to repair them."));
+                }
+
+                JOptionPane.showMessageDialog(this, message.toString(), "SDK Verification",
+                    report.isHealthy() ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.WARNING_MESSAGE);
+                log("SDK verification: " + (report.isHealthy() ? "OK" : "DAMAGED"));
+            } catch (Exception e) {
+                logger.error("SDK verification failed", e);
+                log("ERROR: " + e.getMessage());
+            } finally {
+                showProgress(false);
+            }
+        }).start();
+    }
+
+    private void cleanSdk() {
+        if (!configService.isSdkConfigured()) {
+            JOptionPane.showMessageDialog(this,
+                "SDK is not properly configured. Please download SDK first.",
+                "Clean SDK", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        Path sdkPath = configService.getSdkPath();
+        long budget = configService.getSdkDiskBudgetBytes();
+        new Thread(() -> {
+            try {
+                // Show what would go before deleting anything
+                SdkDownloadService.GcReport plan = sdkDownloadService.collectGarbage(
+                    sdkPath, new AvdInventory(), budget, true);
+                if (plan.removed().isEmpty()) {
+                    log("Clean SDK: nothing to remove");
+                    JOptionPane.showMessageDialog(this,
+                        "No unused system images or platforms to remove.",
+                        "Clean SDK", JOptionPane.INFORMATION_MESSAGE);
+                    return;
+                }
+
+                StringBuilder message = new StringBuilder(String.format(
+                    "These packages are not used by any AVD (%d MB of %d MB):%n",
+                    plan.reclaimedBytes() / (1024 * 1024), plan.sdkBytes() / (1024 * 1024)));
+                for (SdkDownloadService.GcCandidate candidate : plan.removed()) {
+                    message.append(String.format("%n- %s (%d MB)", candidate.path(), candidate.sizeBytes() / (1024 * 1024)));
+                }
+                message.append(String.format("%n%nRemove them?"));
+                int confirm = JOptionPane.showConfirmDialog(this, message.toString(),
+                    "Clean SDK", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+                if (confirm != JOptionPane.YES_OPTION) {
+                    return;
+                }
+
+                showProgress(true);
+                // Only what the user saw, minus what got used meanwhile
+                List<SdkDownloadService.GcCandidate> removed = sdkDownloadService.removeCandidates(
+                    sdkPath, new AvdInventory(), plan.removed());
+                log(String.format("Clean SDK: removed %d of %d packages, %d MB freed",
+                    removed.size(), plan.removed().size(),
+                    removed.stream().mapToLong(SdkDownloadService.GcCandidate::sizeBytes).sum() / (1024 * 1024)));
+            } catch (Exception e) {
+                logger.error("Failed to clean SDK", e);
+                log("ERROR: " + e.getMessage());
+            } finally {
+                showProgress(false);
+            }
+        }).start();
     }
 
     private void createAvdDialog() {
@@ -971,11 +1135,50 @@ public class AndroidEmulatorManager extends JFrame {
         legacyApiCombo.setEnabled(false);
         legacyApiCombo.setVisible(false);
 
+        // Download the selected API in the background while the dialog is open,
+        // once the selection has settled
+        EmulatorService service = emulatorService;
+        SdkRepositoryClient.Prefetch[] prefetch = {SdkRepositoryClient.Prefetch.NONE};
+        // Bumped by every cancel, so a prefetch that starts late for an old selection stops itself
+        int[] prefetchGeneration = {0};
+        Runnable cancelPrefetch = () -> {
+            synchronized (prefetch) {
+                prefetchGeneration[0]++;
+                prefetch[0].cancel();
+                prefetch[0] = SdkRepositoryClient.Prefetch.NONE;
+            }
+        };
+        javax.swing.Timer prefetchTimer = new javax.swing.Timer(PREFETCH_DELAY_MILLIS, e -> {
+            cancelPrefetch.run();
+            int generation;
+            synchronized (prefetch) {
+                generation = prefetchGeneration[0];
+            }
+            String api = legacyCheckBox.isSelected() ?
+                (String) legacyApiCombo.getSelectedItem() :
+                (String) apiCombo.getSelectedItem();
+            // Checking what is installed may scan the SDK, keep it off the EDT
+            Thread.ofVirtual().name("prefetch-api-" + api).start(() -> {
+                SdkRepositoryClient.Prefetch started = service.prefetchApiLevel(api);
+                synchronized (prefetch) {
+                    if (prefetchGeneration[0] == generation) {
+                        prefetch[0] = started;
+                        return;
+                    }
+                }
+                started.cancel();
+            });
+        });
+        prefetchTimer.setRepeats(false);
+        apiCombo.addActionListener(e -> prefetchTimer.restart());
+        legacyApiCombo.addActionListener(e -> prefetchTimer.restart());
+
         legacyCheckBox.addActionListener(e -> {
             boolean showLegacy = legacyCheckBox.isSelected();
             apiCombo.setEnabled(!showLegacy);
             legacyApiCombo.setEnabled(showLegacy);
             legacyApiCombo.setVisible(showLegacy);
+            prefetchTimer.restart();
         });
 
         String[] devices = {"pixel", "pixel_2", "pixel_3", "pixel_4", "pixel_5",
@@ -1014,14 +1217,23 @@ public class AndroidEmulatorManager extends JFrame {
         gbc.gridx = 1; gbc.gridwidth = 2;
         panel.add(deviceCombo, gbc);
 
+        // The default selection is the most likely choice, start right away
+        prefetchTimer.setInitialDelay(0);
+        prefetchTimer.start();
+        prefetchTimer.setInitialDelay(PREFETCH_DELAY_MILLIS);
+
         int result = JOptionPane.showConfirmDialog(this, panel,
             "Create New AVD", JOptionPane.OK_CANCEL_OPTION);
+        prefetchTimer.stop();
 
-        if (result == JOptionPane.OK_OPTION) {
+        if (result != JOptionPane.OK_OPTION) {
+            cancelPrefetch.run();
+        } else {
             String avdName = nameField.getText().trim();
 
             // Validate AVD name
             if (!isValidAvdName(avdName)) {
+                cancelPrefetch.run();
                 JOptionPane.showMessageDialog(this,
                     "Invalid AVD name!\n\n" +
                     "The name cannot contain spaces or special characters.\n" +
@@ -1037,6 +1249,19 @@ public class AndroidEmulatorManager extends JFrame {
                         (String) legacyApiCombo.getSelectedItem() :
                         (String) apiCombo.getSelectedItem();
 
+                    // Installing a missing API level needs the SDK licenses, only the user may accept them
+                    List<String> missingLicenses = emulatorService.getMissingLicenses(selectedApi);
+                    if (!missingLicenses.isEmpty()) {
+                        log("SDK licenses not accepted yet: " + String.join(", ", missingLicenses));
+                        boolean[] accepted = {false};
+                        SwingUtilities.invokeAndWait(() -> accepted[0] = showLicenseAgreementDialog());
+                        if (!accepted[0]) {
+                            log("AVD creation cancelled: License not accepted");
+                            return;
+                        }
+                        emulatorService.acceptSdkLicenses();
+                    }
+
                     log("Creating AVD: " + avdName + " (API " + selectedApi + ")");
 
                     // Show progress bar for potential API installation
@@ -1059,6 +1284,8 @@ public class AndroidEmulatorManager extends JFrame {
                     logger.error("Failed to create AVD", e);
                     log("ERROR: " + e.getMessage());
                 } finally {
+                    // By now the installation has joined the downloads it needed
+                    cancelPrefetch.run();
                     showProgress(false);
                 }
             }).start();
@@ -1095,10 +1322,13 @@ public class AndroidEmulatorManager extends JFrame {
             return;
         }
 
-        emulatorService.stopEmulator(avdName);
-        log("Emulator stopped: " + avdName);
-        // Refresh cards to update status
-        refreshAvdList();
+        // May wait for another operation on the same AVD, keep it off the EDT
+        new Thread(() -> {
+            emulatorService.stopEmulator(avdName);
+            log("Emulator stopped: " + avdName);
+            // Refresh cards to update status
+            refreshAvdList();
+        }).start();
     }
 
     private void deleteAvdByName(String avdName) {
@@ -1150,35 +1380,7 @@ public class AndroidEmulatorManager extends JFrame {
                 try {
                     log("Renaming AVD: " + oldName + " -> " + finalNewName);
 
-                    // Get AVD path
-                    EmulatorService.AvdInfo avdInfo = allAvds.stream()
-                        .filter(avd -> avd.name().equals(oldName))
-                        .findFirst()
-                        .orElse(null);
-
-                    if (avdInfo == null || avdInfo.path() == null) {
-                        log("ERROR: Could not find AVD path");
-                        return;
-                    }
-
-                    Path avdPath = Path.of(avdInfo.path());
-                    Path iniFile = avdPath.getParent().resolve(oldName + ".ini");
-                    Path newAvdPath = avdPath.getParent().resolve(finalNewName + ".avd");
-                    Path newIniFile = avdPath.getParent().resolve(finalNewName + ".ini");
-
-                    // Rename .avd directory
-                    if (Files.exists(avdPath)) {
-                        Files.move(avdPath, newAvdPath);
-                    }
-
-                    // Rename .ini file
-                    if (Files.exists(iniFile)) {
-                        Files.move(iniFile, newIniFile);
-                        // Update path in ini file
-                        String iniContent = Files.readString(newIniFile);
-                        iniContent = iniContent.replace(oldName + ".avd", finalNewName + ".avd");
-                        Files.writeString(newIniFile, iniContent);
-                    }
+                    emulatorService.renameAvd(oldName, finalNewName);
 
                     log("AVD renamed successfully");
                     refreshAvdList();
@@ -1263,8 +1465,15 @@ public class AndroidEmulatorManager extends JFrame {
                 "Confirm Exit", JOptionPane.YES_NO_OPTION);
 
             if (result == JOptionPane.YES_OPTION) {
-                emulatorService.stopAllEmulators();
-                System.exit(0);
+                new Thread(() -> {
+                    showProgress(true);
+                    log("Stopping all emulators...");
+                    List<String> failed = emulatorService.stopAllEmulators(SHUTDOWN_DEADLINE, this::updateProgress);
+                    if (!failed.isEmpty()) {
+                        logger.warn("Emulators not terminated on exit: {}", failed);
+                    }
+                    System.exit(0);
+                }).start();
             }
         } else {
             System.exit(0);
@@ -0,0 +1,330 @@
+package net.nicolamurtas.android.emulator.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Live in-memory index of AVDs kept up to date by a {@link WatchService}.
+ *
+ * After the initial scan only the entries touched by filesystem events are
+ * reloaded, so reading the index costs nothing while nothing changes.
+ */
+public class AvdIndex implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(AvdIndex.class);
+
+    private static final String INI_SUFFIX = ".ini";
+    private static final String AVD_SUFFIX = ".avd";
+    /** The only file inside an .avd directory the index reads; disk images and locks change all the time. */
+    private static final String CONFIG_FILE = "config.ini";
+    private static final long COALESCE_MILLIS = 100;
+
+    /**
+     * Kind of change applied to the index.
+     */
+    public enum ChangeType {
+        ADDED,
+        REMOVED,
+        MODIFIED
+    }
+
+    /**
+     * Change event published to subscribers.
+     */
+    public record AvdChangeEvent(ChangeType type, EmulatorService.AvdInfo avd) {}
+
+    private final AvdInventory inventory;
+    private final Map<String, EmulatorService.AvdInfo> avds = new ConcurrentHashMap<>();
+    private final List<Consumer<AvdChangeEvent>> listeners = new CopyOnWriteArrayList<>();
+    private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+    private final Map<Path, String> avdDirNames = new ConcurrentHashMap<>();
+
+    private volatile List<EmulatorService.AvdInfo> snapshot = List.of();
+    private WatchService watchService;
+    private Thread watcherThread;
+    private volatile boolean running;
+
+    public AvdIndex(AvdInventory inventory) {
+        this.inventory = inventory;
+    }
+
+    /**
+     * Performs the initial scan and starts watching the AVD home directories.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+
+        watchService = FileSystems.getDefault().newWatchService();
+        for (Path root : inventory.getAvdRoots()) {
+            registerRoot(root);
+        }
+
+        for (EmulatorService.AvdInfo avd : inventory.scan()) {
+            avds.put(avd.name(), avd);
+            registerAvdDirectory(avd);
+        }
+        publishSnapshot();
+
+        running = true;
+        watcherThread = new Thread(this::watchLoop, "avd-index-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+
+        logger.info("AVD index started with {} AVDs", avds.size());
+    }
+
+    /**
+     * Returns true if the index is watching the AVD home directories.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Gets the current AVDs sorted by name. The list is rebuilt only when a change is applied.
+     */
+    public List<EmulatorService.AvdInfo> getAvds() {
+        return snapshot;
+    }
+
+    /**
+     * Subscribes to index changes. Listeners are called on the watcher thread.
+     */
+    public void addListener(Consumer<AvdChangeEvent> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a previously added listener.
+     */
+    public void removeListener(Consumer<AvdChangeEvent> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Reloads a single AVD by name, applying and publishing the resulting delta.
+     * Useful right after a local change, before the watcher notices it.
+     */
+    public void refresh(String avdName) {
+        Optional<EmulatorService.AvdInfo> loaded = loadByName(avdName);
+        List<AvdChangeEvent> events = new ArrayList<>(1);
+
+        synchronized (this) {
+            if (loaded.isPresent()) {
+                EmulatorService.AvdInfo avd = loaded.get();
+                EmulatorService.AvdInfo previous = avds.put(avdName, avd);
+                if (previous == null) {
+                    events.add(new AvdChangeEvent(ChangeType.ADDED, avd));
+                } else if (!previous.equals(avd)) {
+                    events.add(new AvdChangeEvent(ChangeType.MODIFIED, avd));
+                }
+                registerAvdDirectory(avd);
+            } else {
+                EmulatorService.AvdInfo removed = avds.remove(avdName);
+                if (removed != null) {
+                    events.add(new AvdChangeEvent(ChangeType.REMOVED, removed));
+                    avdDirNames.values().remove(avdName);
+                }
+            }
+
+            if (!events.isEmpty()) {
+                publishSnapshot();
+            }
+        }
+
+        events.forEach(this::fireEvent);
+    }
+
+    /**
+     * Rescans every AVD home directory and publishes the differences.
+     * Only used when the watcher lost events.
+     */
+    public void resync() {
+        try {
+            Set<String> names = new HashSet<>(avds.keySet());
+            inventory.scan().forEach(avd -> names.add(avd.name()));
+            names.forEach(this::refresh);
+        } catch (IOException e) {
+            logger.warn("Failed to resync AVD index", e);
+        }
+    }
+
+    /**
+     * Loads an AVD from the first root that defines it.
+     */
+    private Optional<EmulatorService.AvdInfo> loadByName(String avdName) {
+        for (Path root : inventory.getAvdRoots()) {
+            Path iniFile = root.resolve(avdName + INI_SUFFIX);
+            if (Files.isRegularFile(iniFile)) {
+                Optional<EmulatorService.AvdInfo> avd = inventory.load(iniFile);
+                if (avd.isPresent()) {
+                    return avd;
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    private void watchLoop() {
+        while (running) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+
+            Set<String> changedNames = new LinkedHashSet<>();
+            boolean overflow = false;
+
+            try {
+                // Coalesce bursts, e.g. avdmanager writing several files per AVD
+                while (key != null) {
+                    overflow |= collectChanges(key, changedNames);
+                    key = watchService.poll(COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+
+            if (overflow) {
+                logger.debug("AVD watcher overflow, resyncing index");
+                resync();
+            } else {
+                changedNames.forEach(this::refresh);
+            }
+        }
+        logger.debug("AVD index watcher stopped");
+    }
+
+    /**
+     * Collects the AVD names affected by the events of a watch key.
+     *
+     * @return true if events were lost
+     */
+    private boolean collectChanges(WatchKey key, Set<String> changedNames) {
+        Path dir = watchedDirs.get(key);
+        boolean overflow = false;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+
+            Path child = dir.resolve((Path) event.context());
+            String fileName = child.getFileName().toString();
+
+            String avdName = avdDirNames.get(dir);
+            boolean isRoot = inventory.getAvdRoots().contains(dir);
+            if (avdName != null) {
+                // Event inside an .avd directory, a running emulator writes there constantly
+                if (fileName.equals(CONFIG_FILE)) {
+                    changedNames.add(avdName);
+                }
+            } else if (isRoot && fileName.endsWith(INI_SUFFIX)) {
+                changedNames.add(fileName.substring(0, fileName.length() - INI_SUFFIX.length()));
+            } else if (isRoot && fileName.endsWith(AVD_SUFFIX) && event.kind() != ENTRY_MODIFY) {
+                // The directory itself created or deleted; modified only means its content changed
+                changedNames.add(fileName.substring(0, fileName.length() - AVD_SUFFIX.length()));
+            } else if (event.kind() == ENTRY_CREATE && inventory.getAvdRoots().contains(child)) {
+                // An AVD home that did not exist yet has been created
+                registerRoot(child);
+                overflow = true;
+            }
+        }
+
+        if (!key.reset()) {
+            watchedDirs.remove(key);
+            if (dir != null) {
+                avdDirNames.remove(dir);
+            }
+        }
+        return overflow;
+    }
+
+    /**
+     * Watches an AVD home directory, or its parent while it does not exist yet.
+     */
+    private void registerRoot(Path root) {
+        Path target = Files.isDirectory(root) ? root : root.getParent();
+        if (target != null && Files.isDirectory(target)) {
+            register(target);
+        }
+    }
+
+    private void registerAvdDirectory(EmulatorService.AvdInfo avd) {
+        if (avd.path() == null) {
+            return;
+        }
+        Path avdDir = Path.of(avd.path());
+        if (!avdDirNames.containsKey(avdDir) && register(avdDir)) {
+            avdDirNames.put(avdDir, avd.name());
+        }
+    }
+
+    private boolean register(Path dir) {
+        if (watchService == null) {
+            return false;
+        }
+        try {
+            WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            watchedDirs.put(key, dir);
+            return true;
+        } catch (IOException | ClosedWatchServiceException e) {
+            logger.debug("Cannot watch directory: {}", dir, e);
+            return false;
+        }
+    }
+
+    private void publishSnapshot() {
+        List<EmulatorService.AvdInfo> sorted = new ArrayList<>(avds.values());
+        sorted.sort(Comparator.comparing(EmulatorService.AvdInfo::name));
+        snapshot = List.copyOf(sorted);
+    }
+
+    private void fireEvent(AvdChangeEvent event) {
+        logger.debug("AVD {}: {}", event.type(), event.avd().name());
+        for (Consumer<AvdChangeEvent> listener : listeners) {
+            try {
+                listener.accept(event);
+            } catch (Exception e) {
+                logger.warn("AVD change listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Stops watching and releases the watch service.
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close AVD watch service", e);
+            }
+        }
+        if (watcherThread != null) {
+            watcherThread.interrupt();
+        }
+        watchedDirs.clear();
+        avdDirNames.clear();
+    }
+}
@@ -0,0 +1,254 @@
+package net.nicolamurtas.android.emulator.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Reads the AVD inventory straight from the filesystem.
+ *
+ * Every AVD is described by a {@code <name>.ini} file in an AVD home directory
+ * pointing to a {@code <name>.avd} folder that holds its {@code config.ini}.
+ * Reading these files directly avoids starting an {@code avdmanager} JVM just
+ * to list devices.
+ */
+public class AvdInventory {
+    private static final Logger logger = LoggerFactory.getLogger(AvdInventory.class);
+
+    private static final String INI_SUFFIX = ".ini";
+    private static final String AVD_SUFFIX = ".avd";
+    private static final String CONFIG_INI = "config.ini";
+
+    private final List<Path> avdRoots;
+
+    /**
+     * Creates an inventory over the AVD home directories resolved from the environment.
+     */
+    public AvdInventory() {
+        this(resolveAvdRoots(System.getenv(), System.getProperty("user.home")));
+    }
+
+    /**
+     * Creates an inventory over explicit AVD home directories, in priority order.
+     */
+    public AvdInventory(List<Path> avdRoots) {
+        this.avdRoots = List.copyOf(avdRoots);
+    }
+
+    /**
+     * Resolves the AVD home directories using the same variables as the SDK tools.
+     * The first entry wins when the same AVD name appears in several roots.
+     */
+    static List<Path> resolveAvdRoots(Map<String, String> env, String userHome) {
+        Set<Path> roots = new LinkedHashSet<>();
+
+        addRoot(roots, env.get("ANDROID_AVD_HOME"), null);
+        addRoot(roots, env.get("ANDROID_USER_HOME"), "avd");
+        addRoot(roots, env.get("ANDROID_EMULATOR_HOME"), "avd");
+        if (env.get("ANDROID_SDK_HOME") != null && !env.get("ANDROID_SDK_HOME").isBlank()) {
+            roots.add(Paths.get(env.get("ANDROID_SDK_HOME"), ".android", "avd").toAbsolutePath().normalize());
+        }
+        if (userHome != null) {
+            roots.add(Paths.get(userHome, ".android", "avd").toAbsolutePath().normalize());
+        }
+
+        return new ArrayList<>(roots);
+    }
+
+    private static void addRoot(Set<Path> roots, String base, String child) {
+        if (base == null || base.isBlank()) {
+            return;
+        }
+        Path root = child != null ? Paths.get(base, child) : Paths.get(base);
+        roots.add(root.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Gets the AVD home directories scanned by this inventory.
+     */
+    public List<Path> getAvdRoots() {
+        return avdRoots;
+    }
+
+    /**
+     * Returns true if at least one AVD home directory exists.
+     */
+    public boolean hasExistingRoot() {
+        return avdRoots.stream().anyMatch(Files::isDirectory);
+    }
+
+    /**
+     * Scans all AVD home directories in parallel.
+     *
+     * @return AVDs sorted by name, deduplicated by root priority
+     * @throws IOException If an existing AVD home directory cannot be read
+     */
+    public List<EmulatorService.AvdInfo> scan() throws IOException {
+        long start = System.nanoTime();
+
+        List<List<EmulatorService.AvdInfo>> perRoot;
+        try {
+            perRoot = avdRoots.parallelStream()
+                .map(root -> {
+                    try {
+                        return scanRoot(root);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .toList();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        // Roots are in priority order: keep the first occurrence of each name
+        Map<String, EmulatorService.AvdInfo> byName = new LinkedHashMap<>();
+        for (List<EmulatorService.AvdInfo> avds : perRoot) {
+            for (EmulatorService.AvdInfo avd : avds) {
+                byName.putIfAbsent(avd.name(), avd);
+            }
+        }
+
+        List<EmulatorService.AvdInfo> result = new ArrayList<>(byName.values());
+        result.sort(Comparator.comparing(EmulatorService.AvdInfo::name));
+
+        logger.debug("Scanned {} AVDs in {} roots in {} ms",
+            result.size(), avdRoots.size(), (System.nanoTime() - start) / 1_000_000);
+        return result;
+    }
+
+    /**
+     * Scans a single AVD home directory, parsing its entries in parallel.
+     */
+    List<EmulatorService.AvdInfo> scanRoot(Path root) throws IOException {
+        if (!Files.isDirectory(root)) {
+            return List.of();
+        }
+
+        List<Path> iniFiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, "*" + INI_SUFFIX)) {
+            for (Path iniFile : stream) {
+                if (Files.isRegularFile(iniFile)) {
+                    iniFiles.add(iniFile);
+                }
+            }
+        }
+
+        return iniFiles.parallelStream()
+            .map(this::load)
+            .flatMap(Optional::stream)
+            .toList();
+    }
+
+    /**
+     * Loads a single AVD from its {@code <name>.ini} file.
+     *
+     * @return the AVD, or empty if the entry is incomplete or unreadable
+     */
+    public Optional<EmulatorService.AvdInfo> load(Path iniFile) {
+        String fileName = iniFile.getFileName().toString();
+        if (!fileName.endsWith(INI_SUFFIX)) {
+            return Optional.empty();
+        }
+        String name = fileName.substring(0, fileName.length() - INI_SUFFIX.length());
+
+        try {
+            Map<String, String> ini = readIni(iniFile);
+            Path avdDir = resolveAvdDirectory(iniFile, name, ini);
+            if (avdDir == null) {
+                logger.debug("AVD {} has no valid .avd directory, skipping", name);
+                return Optional.empty();
+            }
+
+            Path configIni = avdDir.resolve(CONFIG_INI);
+            Map<String, String> config = Files.isRegularFile(configIni) ? readIni(configIni) : Map.of();
+
+            return Optional.of(new EmulatorService.AvdInfo(name, describeTarget(ini, config), avdDir.toString()));
+        } catch (IOException | InvalidPathException e) {
+            logger.debug("Could not read AVD entry: {}", iniFile, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Resolves the {@code .avd} directory referenced by an AVD ini file.
+     * Tries the absolute {@code path}, then {@code path.rel}, then the sibling directory.
+     */
+    private Path resolveAvdDirectory(Path iniFile, String name, Map<String, String> ini) {
+        List<Path> candidates = new ArrayList<>(3);
+
+        String path = ini.get("path");
+        if (path != null && !path.isEmpty()) {
+            candidates.add(Paths.get(path));
+        }
+
+        // path.rel is relative to the Android user home, i.e. the parent of the AVD root
+        String relPath = ini.get("path.rel");
+        Path rootParent = iniFile.toAbsolutePath().getParent().getParent();
+        if (relPath != null && !relPath.isEmpty() && rootParent != null) {
+            candidates.add(rootParent.resolve(relPath));
+        }
+
+        candidates.add(iniFile.resolveSibling(name + AVD_SUFFIX));
+
+        for (Path candidate : candidates) {
+            if (Files.isDirectory(candidate)) {
+                return candidate.toAbsolutePath().normalize();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds a target description similar to the one printed by avdmanager,
+     * e.g. "Google APIs (API level 35)".
+     */
+    private String describeTarget(Map<String, String> ini, Map<String, String> config) {
+        String apiLevel = null;
+        String target = ini.get("target");
+        if (target != null && target.startsWith("android-")) {
+            apiLevel = target.substring("android-".length());
+        }
+
+        String tagDisplay = config.get("tag.display");
+        if (tagDisplay == null || tagDisplay.isEmpty()) {
+            tagDisplay = "Android";
+        }
+
+        if (apiLevel != null) {
+            return tagDisplay + " (API level " + apiLevel + ")";
+        }
+        return target != null ? target : tagDisplay;
+    }
+
+    /**
+     * Reads a key=value ini file.
+     * Backslashes are kept verbatim, unlike {@link Properties}, so Windows paths survive.
+     */
+    static Map<String, String> readIni(Path file) throws IOException {
+        Map<String, String> values = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int equalPos = line.indexOf('=');
+                if (equalPos <= 0 || line.startsWith("#")) {
+                    continue;
+                }
+                values.put(line.substring(0, equalPos).trim(), line.substring(equalPos + 1).trim());
+            }
+        }
+        return values;
+    }
+}
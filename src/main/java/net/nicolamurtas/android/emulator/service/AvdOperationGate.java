@@ -0,0 +1,150 @@
+package net.nicolamurtas.android.emulator.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Serializes operations per AVD name while letting different AVDs proceed in parallel.
+ *
+ * Each AVD has its own FIFO lane: an operation starts once the previous one
+ * on the same AVD completed, whether it succeeded or not. Lanes exist only
+ * while operations are queued, so the gate does not grow with the number of
+ * AVDs ever touched. Works for blocking and asynchronous operations alike.
+ *
+ * Lanes are not reentrant: an operation must not queue another one on the
+ * same AVD and wait for it.
+ */
+public class AvdOperationGate {
+    private static final Logger logger = LoggerFactory.getLogger(AvdOperationGate.class);
+
+    /**
+     * Blocking operation run while holding an AVD lane.
+     */
+    @FunctionalInterface
+    public interface Operation<T> {
+        T run() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Snapshot of gate activity.
+     *
+     * @param operations Operations started since creation
+     * @param contendedOperations Operations that had to wait for another one on the same AVD
+     * @param totalWaitMillis Total time spent waiting for a lane
+     * @param maxWaitMillis Longest single wait
+     * @param queuedOperations Operations currently running or waiting
+     */
+    public record Metrics(long operations, long contendedOperations, long totalWaitMillis,
+                          long maxWaitMillis, int queuedOperations) {
+
+        public double averageWaitMillis() {
+            return operations == 0 ? 0 : (double) totalWaitMillis / operations;
+        }
+    }
+
+    private static final class Lane {
+        CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        int pending;
+    }
+
+    private record Ticket(Lane lane, CompletableFuture<Void> previous, CompletableFuture<Void> done,
+                          long queuedAt, boolean contended) {}
+
+    private final Map<String, Lane> lanes = new HashMap<>();
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong contendedOperations = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * Runs a blocking operation on the caller thread once the AVD lane is free.
+     */
+    public <T> T call(String avdName, String operationName, Operation<T> operation)
+            throws IOException, InterruptedException {
+        Ticket ticket = enqueue(avdName);
+        try {
+            ticket.previous().get();
+        } catch (ExecutionException e) {
+            // The previous operation failed, ours still runs
+        } catch (InterruptedException e) {
+            // Keep the lane order: hand over only when the previous operation is done
+            ticket.previous().whenComplete((ignored, error) -> release(avdName, ticket));
+            throw e;
+        }
+
+        try {
+            recordWait(avdName, operationName, ticket);
+            return operation.run();
+        } finally {
+            release(avdName, ticket);
+        }
+    }
+
+    /**
+     * Queues an asynchronous operation; it is started once the AVD lane is free
+     * and holds the lane until the returned future completes.
+     */
+    public <T> CompletableFuture<T> submit(String avdName, String operationName,
+                                           Supplier<CompletableFuture<T>> operation) {
+        Ticket ticket = enqueue(avdName);
+        return ticket.previous()
+            .handle((ignored, error) -> null)
+            .thenCompose(ignored -> {
+                recordWait(avdName, operationName, ticket);
+                return operation.get();
+            })
+            .whenComplete((result, error) -> release(avdName, ticket));
+    }
+
+    /**
+     * Gets a snapshot of gate activity.
+     */
+    public Metrics getMetrics() {
+        int queued;
+        synchronized (lanes) {
+            queued = lanes.values().stream().mapToInt(lane -> lane.pending).sum();
+        }
+        return new Metrics(operations.get(), contendedOperations.get(),
+            totalWaitNanos.get() / 1_000_000, maxWaitNanos.get() / 1_000_000, queued);
+    }
+
+    private Ticket enqueue(String avdName) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        synchronized (lanes) {
+            Lane lane = lanes.computeIfAbsent(avdName, name -> new Lane());
+            CompletableFuture<Void> previous = lane.tail;
+            lane.tail = done;
+            lane.pending++;
+            return new Ticket(lane, previous, done, System.nanoTime(), !previous.isDone());
+        }
+    }
+
+    private void release(String avdName, Ticket ticket) {
+        synchronized (lanes) {
+            if (--ticket.lane().pending == 0) {
+                lanes.remove(avdName, ticket.lane());
+            }
+        }
+        ticket.done().complete(null);
+    }
+
+    private void recordWait(String avdName, String operationName, Ticket ticket) {
+        long waited = System.nanoTime() - ticket.queuedAt();
+        operations.incrementAndGet();
+        totalWaitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        if (ticket.contended()) {
+            contendedOperations.incrementAndGet();
+            logger.debug("{} on AVD {} waited {} ms for a previous operation",
+                operationName, avdName, waited / 1_000_000);
+        }
+    }
+}
@@ -0,0 +1,507 @@
+package net.nicolamurtas.android.emulator.service;
+
+import net.nicolamurtas.android.emulator.util.OutputCapture;
+import net.nicolamurtas.android.emulator.util.PlatformUtils;
+import net.nicolamurtas.android.emulator.util.ProcessExecutor;
+import net.nicolamurtas.android.emulator.util.ProcessIoExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the SDK command-line tools (sdkmanager, avdmanager) inside this JVM.
+ *
+ * The jars under {@code cmdline-tools/latest/lib} are loaded once into an
+ * isolated, cached class loader and the tool's main class is invoked with
+ * captured {@code System.out}/{@code System.err}, saving the JVM startup of
+ * the wrapper scripts on every call. When the tool cannot be run safely
+ * in-process the wrapper script is executed as a subprocess instead.
+ *
+ * {@code System.exit} can only be intercepted while a security manager may
+ * be installed ({@code -Djava.security.manager=allow}). Without it, only
+ * entry points that report failure by throwing ({@code main(List)}) are used
+ * in-process and everything else runs as a subprocess.
+ */
+public class CmdlineToolsRunner {
+    private static final Logger logger = LoggerFactory.getLogger(CmdlineToolsRunner.class);
+
+    private static final Pattern MAIN_CLASS_PATTERN = Pattern.compile("(com\\.android\\.[\\w.]+)");
+    private static final String TOOLS_DIR_PROPERTY = "com.android.sdkmanager.toolsdir";
+
+    /** Cached class loaders by lib directory. */
+    private static final Map<Path, ToolClassLoader> classLoaders = new ConcurrentHashMap<>();
+
+    /** System streams and properties are global: one in-process run at a time. */
+    private static final ReentrantLock inProcessLock = new ReentrantLock(true);
+    /** Past this wait for the in-process lock, starting the wrapper script is faster. */
+    private static final Duration IN_PROCESS_LOCK_WAIT = Duration.ofSeconds(5);
+
+    private static final InheritableThreadLocal<ConsoleCapture> currentCapture = new InheritableThreadLocal<>();
+    private static volatile boolean consoleInstalled;
+
+    private static volatile boolean inProcessEnabled = true;
+
+    /**
+     * Command-line tool with its wrapper script name.
+     */
+    public enum Tool {
+        SDKMANAGER("sdkmanager"),
+        AVDMANAGER("avdmanager");
+
+        private final String scriptName;
+
+        Tool(String scriptName) {
+            this.scriptName = scriptName;
+        }
+    }
+
+    private record ToolClassLoader(long libLastModified, URLClassLoader classLoader) {}
+
+    private record ConsoleCapture(PrintStream out, PrintStream err) {}
+
+    /**
+     * Thrown by the exit trap instead of terminating the JVM.
+     */
+    private static final class ExitTrappedException extends SecurityException {
+        private final int status;
+
+        ExitTrappedException(int status) {
+            super("System.exit(" + status + ") intercepted");
+            this.status = status;
+        }
+    }
+
+    private final Path sdkPath;
+
+    public CmdlineToolsRunner(Path sdkPath) {
+        this.sdkPath = sdkPath;
+    }
+
+    /**
+     * Enables or disables in-process execution for all runners.
+     */
+    public static void setInProcessEnabled(boolean enabled) {
+        inProcessEnabled = enabled;
+    }
+
+    /**
+     * Gets the wrapper script of a tool, or null if the tool is not installed.
+     */
+    public Path getScriptPath(Tool tool) {
+        Path path = getToolsDirectory().resolve("bin").resolve(tool.scriptName + PlatformUtils.getExecutableExtension());
+        return Files.exists(path) ? path : null;
+    }
+
+    /**
+     * Runs a tool, in-process when possible.
+     *
+     * @param tool Tool to run
+     * @param timeout Deadline for the run
+     * @param inputProvider Optional input written to the tool's stdin
+     * @param outputCapture How much of stdout is kept
+     * @param errorCapture How much of stderr is kept
+     * @param args Tool arguments
+     */
+    public CompletableFuture<ProcessExecutor.ExecutionResult> run(
+            Tool tool,
+            Duration timeout,
+            Consumer<PrintWriter> inputProvider,
+            OutputCapture outputCapture,
+            OutputCapture errorCapture,
+            String... args) {
+        return run(tool, timeout, inputProvider, outputCapture, errorCapture, null, args);
+    }
+
+    /**
+     * Runs a tool, in-process when possible, streaming every stdout line to a callback as it is produced.
+     */
+    public CompletableFuture<ProcessExecutor.ExecutionResult> run(
+            Tool tool,
+            Duration timeout,
+            Consumer<PrintWriter> inputProvider,
+            OutputCapture outputCapture,
+            OutputCapture errorCapture,
+            Consumer<String> outputConsumer,
+            String... args) {
+
+        Path script = getScriptPath(tool);
+        if (script == null) {
+            return CompletableFuture.failedFuture(new IOException(tool.scriptName + " not found in SDK: " + sdkPath));
+        }
+
+        Optional<Method> entryPoint = inProcessEnabled ? findEntryPoint(tool) : Optional.empty();
+        if (entryPoint.isEmpty()) {
+            return runSubprocess(script, timeout, inputProvider, outputCapture, errorCapture, outputConsumer, args);
+        }
+
+        String[] toolArgs = tool == Tool.SDKMANAGER ? withSdkRoot(args) : args;
+        CompletableFuture<Optional<ProcessExecutor.ExecutionResult>> result = ProcessIoExecutor.supply(() -> {
+            try {
+                return runInProcess(entryPoint.get(), inputProvider, outputCapture, errorCapture,
+                    outputConsumer, toolArgs);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        // The tool cannot be killed; the caller is released at the deadline while it finishes
+        return result.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+            .exceptionallyCompose(error -> {
+                Throwable cause = error instanceof java.util.concurrent.CompletionException ? error.getCause() : error;
+                if (cause instanceof java.util.concurrent.TimeoutException) {
+                    // The hung tool may hold the in-process lock forever, later runs must not queue behind it
+                    inProcessEnabled = false;
+                    logger.warn("In-process {} timed out, running the command-line tools as subprocesses from now on",
+                        tool.scriptName);
+                    return CompletableFuture.failedFuture(
+                        new IOException(tool.scriptName + " timed out after " + timeout.toMinutes() + " minutes"));
+                }
+                return CompletableFuture.failedFuture(cause);
+            })
+            .thenCompose(executionResult -> executionResult.isPresent()
+                ? CompletableFuture.completedFuture(executionResult.get())
+                : runSubprocess(script, timeout, inputProvider, outputCapture, errorCapture, outputConsumer, args));
+    }
+
+    private CompletableFuture<ProcessExecutor.ExecutionResult> runSubprocess(
+            Path script, Duration timeout, Consumer<PrintWriter> inputProvider,
+            OutputCapture outputCapture, OutputCapture errorCapture,
+            Consumer<String> outputConsumer, String... args) {
+        Map<String, String> env = Map.of(
+            "ANDROID_HOME", sdkPath.toString(),
+            "ANDROID_SDK_ROOT", sdkPath.toString()
+        );
+
+        String[] command = new String[args.length + 1];
+        command[0] = script.toString();
+        System.arraycopy(args, 0, command, 1, args.length);
+
+        return ProcessExecutor.executeNonBlocking(sdkPath, env, timeout, inputProvider,
+            outputCapture, errorCapture, outputConsumer, null, command);
+    }
+
+    /**
+     * Invokes the tool's entry point with captured console streams.
+     *
+     * @return the result, or empty if another in-process run kept the lock too long
+     */
+    private Optional<ProcessExecutor.ExecutionResult> runInProcess(
+            Method entryPoint, Consumer<PrintWriter> inputProvider,
+            OutputCapture outputCapture, OutputCapture errorCapture,
+            Consumer<String> outputConsumer, String... args) throws IOException {
+
+        OutputCapture.Collector out = outputCapture.newCollector(outputConsumer);
+        OutputCapture.Collector err = errorCapture.newCollector(null);
+        PrintStream outStream = new PrintStream(out, true, StandardCharsets.UTF_8);
+        PrintStream errStream = new PrintStream(err, true, StandardCharsets.UTF_8);
+
+        byte[] input = new byte[0];
+        if (inputProvider != null) {
+            StringWriter buffer = new StringWriter();
+            try (PrintWriter writer = new PrintWriter(buffer)) {
+                inputProvider.accept(writer);
+            }
+            input = buffer.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        try {
+            if (!inProcessLock.tryLock(IN_PROCESS_LOCK_WAIT.toMillis(), TimeUnit.MILLISECONDS)) {
+                logger.debug("In-process tools busy, running {} as a subprocess",
+                    entryPoint.getDeclaringClass().getSimpleName());
+                outStream.close();
+                errStream.close();
+                return Optional.empty();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the in-process tools");
+        }
+
+        int exitCode;
+        InputStream originalIn = System.in;
+        String originalToolsDir = System.getProperty(TOOLS_DIR_PROPERTY);
+        Thread thread = Thread.currentThread();
+        ClassLoader originalContextLoader = thread.getContextClassLoader();
+        try {
+            logger.debug("Running {} in-process: {}", entryPoint.getDeclaringClass().getSimpleName(),
+                String.join(" ", args));
+
+            installConsole();
+            currentCapture.set(new ConsoleCapture(outStream, errStream));
+            System.setIn(new ByteArrayInputStream(input));
+            System.setProperty(TOOLS_DIR_PROPERTY, getToolsDirectory().toString());
+            thread.setContextClassLoader(entryPoint.getDeclaringClass().getClassLoader());
+
+            exitCode = invoke(entryPoint, args);
+        } finally {
+            thread.setContextClassLoader(originalContextLoader);
+            if (originalToolsDir != null) {
+                System.setProperty(TOOLS_DIR_PROPERTY, originalToolsDir);
+            } else {
+                System.clearProperty(TOOLS_DIR_PROPERTY);
+            }
+            System.setIn(originalIn);
+            currentCapture.remove();
+            inProcessLock.unlock();
+            outStream.close();
+            errStream.close();
+        }
+
+        if (exitCode != 0) {
+            logger.warn("In-process {} failed with exit code {}", entryPoint.getDeclaringClass().getSimpleName(), exitCode);
+        }
+        return Optional.of(new ProcessExecutor.ExecutionResult(exitCode, out.getLines(), err.getLines()));
+    }
+
+    /**
+     * Invokes an entry point, mapping normal return, thrown failures and trapped exits to exit codes.
+     */
+    @SuppressWarnings("removal")
+    private int invoke(Method entryPoint, String[] args) {
+        boolean listEntryPoint = entryPoint.getParameterTypes()[0] == List.class;
+        SecurityManager previous = System.getSecurityManager();
+        try {
+            if (!listEntryPoint) {
+                System.setSecurityManager(new ExitTrap(previous, currentCapture.get()));
+            }
+            entryPoint.invoke(null, listEntryPoint ? Arrays.asList(args) : (Object) args);
+            return 0;
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ExitTrappedException exit) {
+                return exit.status;
+            }
+            // Routed to the error capture of this run
+            System.err.println("Error: " + cause.getMessage());
+            logger.debug("In-process tool failed", cause);
+            return 1;
+        } catch (IllegalAccessException e) {
+            logger.debug("In-process tool entry point not accessible", e);
+            return 1;
+        } finally {
+            if (!listEntryPoint) {
+                System.setSecurityManager(previous);
+            }
+        }
+    }
+
+    /**
+     * Finds an in-process entry point for a tool, if it can be run without risking {@code System.exit}.
+     */
+    private Optional<Method> findEntryPoint(Tool tool) {
+        try {
+            Class<?> mainClass = loadMainClass(tool);
+            if (mainClass == null) {
+                return Optional.empty();
+            }
+
+            // Reports failure by throwing instead of exiting
+            try {
+                return Optional.of(mainClass.getMethod("main", List.class));
+            } catch (NoSuchMethodException e) {
+                // fall through
+            }
+
+            if (canTrapExit()) {
+                return Optional.of(mainClass.getMethod("main", String[].class));
+            }
+        } catch (IOException | ReflectiveOperationException | LinkageError e) {
+            logger.debug("Cannot run {} in-process, using subprocess", tool.scriptName, e);
+        }
+        return Optional.empty();
+    }
+
+    private Class<?> loadMainClass(Tool tool) throws IOException, ClassNotFoundException {
+        Path script = getScriptPath(tool);
+        String mainClassName = script != null ? readMainClassName(script) : null;
+        if (mainClassName == null) {
+            return null;
+        }
+        URLClassLoader classLoader = getClassLoader(getToolsDirectory().resolve("lib"));
+        return classLoader != null ? Class.forName(mainClassName, false, classLoader) : null;
+    }
+
+    /**
+     * Reads the main class launched by a wrapper script.
+     */
+    static String readMainClassName(Path script) throws IOException {
+        String content = Files.readString(script, StandardCharsets.ISO_8859_1);
+        Matcher matcher = MAIN_CLASS_PATTERN.matcher(content);
+        String last = null;
+        while (matcher.find()) {
+            last = matcher.group(1);
+        }
+        return last;
+    }
+
+    /**
+     * Gets the cached class loader for a lib directory, rebuilding it when the directory changed.
+     */
+    private static URLClassLoader getClassLoader(Path libDir) throws IOException {
+        if (!Files.isDirectory(libDir)) {
+            return null;
+        }
+        long lastModified = Files.getLastModifiedTime(libDir).toMillis();
+
+        ToolClassLoader cached = classLoaders.get(libDir);
+        if (cached != null && cached.libLastModified() == lastModified) {
+            return cached.classLoader();
+        }
+
+        List<URL> jars = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(libDir, "*.jar")) {
+            for (Path jar : stream) {
+                jars.add(jar.toUri().toURL());
+            }
+        }
+        if (jars.isEmpty()) {
+            return null;
+        }
+
+        URLClassLoader classLoader = new URLClassLoader("cmdline-tools", jars.toArray(URL[]::new),
+            ClassLoader.getPlatformClassLoader());
+        ToolClassLoader previous = classLoaders.put(libDir, new ToolClassLoader(lastModified, classLoader));
+        if (previous != null) {
+            try {
+                previous.classLoader().close();
+            } catch (IOException e) {
+                logger.debug("Failed to close stale cmdline-tools class loader", e);
+            }
+        }
+        logger.debug("Loaded {} cmdline-tools jars from {}", jars.size(), libDir);
+        return classLoader;
+    }
+
+    /**
+     * Returns true if a security manager can be installed to trap {@code System.exit}.
+     */
+    @SuppressWarnings("removal")
+    private static boolean canTrapExit() {
+        return System.getSecurityManager() != null
+            || "allow".equals(System.getProperty("java.security.manager"));
+    }
+
+    /**
+     * Routes System.out/err to the capture of the current tool run, if any.
+     * Threads started by the tool inherit the capture; other threads are unaffected.
+     * Console output of the application's logging always goes to the real streams.
+     */
+    private static synchronized void installConsole() {
+        if (consoleInstalled) {
+            return;
+        }
+        PrintStream originalOut = System.out;
+        PrintStream originalErr = System.err;
+        System.setOut(new PrintStream(new RoutingOutputStream(originalOut, true), true));
+        System.setErr(new PrintStream(new RoutingOutputStream(originalErr, false), true));
+        consoleInstalled = true;
+    }
+
+    private static final class RoutingOutputStream extends OutputStream {
+        private static final StackWalker STACK_WALKER = StackWalker.getInstance();
+        private static final String LOGBACK_PACKAGE = "ch.qos.logback.";
+
+        private final PrintStream fallback;
+        private final boolean stdout;
+
+        RoutingOutputStream(PrintStream fallback, boolean stdout) {
+            this.fallback = fallback;
+            this.stdout = stdout;
+        }
+
+        private PrintStream target() {
+            ConsoleCapture capture = currentCapture.get();
+            if (capture == null || isLoggingAppender()) {
+                return fallback;
+            }
+            return stdout ? capture.out() : capture.err();
+        }
+
+        /**
+         * Returns true if the write comes from a logback appender. The tools do not use logback.
+         */
+        private static boolean isLoggingAppender() {
+            return STACK_WALKER.walk(frames -> frames.anyMatch(frame -> frame.getClassName().startsWith(LOGBACK_PACKAGE)));
+        }
+
+        @Override
+        public void write(int b) {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            target().write(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() {
+            target().flush();
+        }
+    }
+
+    /**
+     * Security manager that turns {@code System.exit} into an exception on the
+     * threads of one tool run. Exits from any other thread go through.
+     */
+    @SuppressWarnings("removal")
+    private static final class ExitTrap extends SecurityManager {
+        private final SecurityManager delegate;
+        private final ConsoleCapture capture;
+
+        ExitTrap(SecurityManager delegate, ConsoleCapture capture) {
+            this.delegate = delegate;
+            this.capture = capture;
+        }
+
+        @Override
+        public void checkExit(int status) {
+            if (capture != null && currentCapture.get() == capture) {
+                throw new ExitTrappedException(status);
+            }
+            if (delegate != null) {
+                delegate.checkExit(status);
+            }
+        }
+
+        @Override
+        public void checkPermission(java.security.Permission permission) {
+            if (delegate != null) {
+                delegate.checkPermission(permission);
+            }
+        }
+    }
+
+    private String[] withSdkRoot(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--sdk_root")) {
+                return args;
+            }
+        }
+        String[] result = Arrays.copyOf(args, args.length + 1);
+        result[args.length] = "--sdk_root=" + sdkPath;
+        return result;
+    }
+
+    private Path getToolsDirectory() {
+        return sdkPath.resolve("cmdline-tools").resolve("latest");
+    }
+}
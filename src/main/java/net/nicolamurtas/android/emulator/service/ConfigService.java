@@ -1,5 +1,6 @@
 package net.nicolamurtas.android.emulator.service;
 
+import net.nicolamurtas.android.emulator.util.DownloadCache;
 import net.nicolamurtas.android.emulator.util.PlatformUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,6 +19,9 @@ public class ConfigService {
     private static final Logger logger = LoggerFactory.getLogger(ConfigService.class);
     private static final String CONFIG_FILE = "android_emulator_config.properties";
     private static final String SDK_PATH_KEY = "sdk.path";
+    private static final String DOWNLOAD_CACHE_PATH_KEY = "download.cache.path";
+    private static final String DOWNLOAD_CACHE_MAX_BYTES_KEY = "download.cache.maxBytes";
+    private static final String SDK_DISK_BUDGET_BYTES_KEY = "sdk.diskBudgetBytes";
 
     private final Path configFilePath;
     private final Properties properties;
@@ -76,6 +80,48 @@ public class ConfigService {
         logger.info("SDK path set to: {}", path);
     }
 
+    /**
+     * Gets the directory of the shared download cache, or the default if not set.
+     */
+    public Path getDownloadCachePath() {
+        String pathString = properties.getProperty(DOWNLOAD_CACHE_PATH_KEY);
+        if (pathString != null && !pathString.isEmpty()) {
+            return Paths.get(pathString);
+        }
+        return PlatformUtils.getDefaultDownloadCachePath();
+    }
+
+    /**
+     * Gets the size limit of the shared download cache in bytes.
+     */
+    public long getDownloadCacheMaxBytes() {
+        String value = properties.getProperty(DOWNLOAD_CACHE_MAX_BYTES_KEY);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid {}: {}", DOWNLOAD_CACHE_MAX_BYTES_KEY, value);
+            }
+        }
+        return DownloadCache.DEFAULT_MAX_BYTES;
+    }
+
+    /**
+     * Gets the size the installed SDK packages may take before unused ones are
+     * removed; 0, the default, removes every unused package.
+     */
+    public long getSdkDiskBudgetBytes() {
+        String value = properties.getProperty(SDK_DISK_BUDGET_BYTES_KEY);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid {}: {}", SDK_DISK_BUDGET_BYTES_KEY, value);
+            }
+        }
+        return 0;
+    }
+
     /**
      * Gets a configuration value.
      */
@@ -101,6 +147,31 @@ public class ConfigService {
      * Checks if SDK is configured and valid.
      */
     public boolean isSdkConfigured() {
+        return isSdkConfigured(false);
+    }
+
+    /**
+     * Checks if SDK is configured and valid.
+     *
+     * @param deep Whether to also hash the installed packages and compare them with
+     *             the manifests recorded at install time; this reads the whole SDK
+     */
+    public boolean isSdkConfigured(boolean deep) {
+        if (!hasSdkTools()) {
+            return false;
+        }
+        if (!deep) {
+            return true;
+        }
+        try {
+            return new SdkIntegrityScanner().scan(getSdkPath(), null).isHealthy();
+        } catch (IOException e) {
+            logger.error("Failed to verify SDK integrity", e);
+            return false;
+        }
+    }
+
+    private boolean hasSdkTools() {
         Path sdkPath = getSdkPath();
         if (!Files.exists(sdkPath)) {
             return false;
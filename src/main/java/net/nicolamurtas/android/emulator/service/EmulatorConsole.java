@@ -0,0 +1,126 @@
+package net.nicolamurtas.android.emulator.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+
+/**
+ * Minimal client for the emulator telnet console on localhost.
+ */
+public class EmulatorConsole {
+    private static final Logger logger = LoggerFactory.getLogger(EmulatorConsole.class);
+
+    /** First console port used by the emulator; each instance takes an even port and the next one for adb. */
+    public static final int FIRST_CONSOLE_PORT = 5554;
+    public static final int LAST_CONSOLE_PORT = 5682;
+
+    private static final Path AUTH_TOKEN_FILE = Paths.get(System.getProperty("user.home"), ".emulator_console_auth_token");
+
+    private final int port;
+
+    public EmulatorConsole(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Asks the emulator to shut down through the {@code kill} console command.
+     *
+     * @param timeout Timeout for connecting and for each reply
+     * @return true if the command was accepted
+     */
+    public boolean kill(Duration timeout) {
+        int timeoutMillis = (int) Math.max(1, timeout.toMillis());
+
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+
+            // Banner ends with OK once the console is ready
+            if (!readUntilOk(reader)) {
+                return false;
+            }
+
+            String token = readAuthToken();
+            if (token != null) {
+                send(writer, "auth " + token);
+                if (!readUntilOk(reader)) {
+                    logger.warn("Emulator console on port {} rejected the auth token", port);
+                    return false;
+                }
+            }
+
+            send(writer, "kill");
+            // The emulator closes the connection while exiting, the reply may never arrive
+            try {
+                readUntilOk(reader);
+            } catch (IOException e) {
+                logger.trace("Console on port {} closed after kill", port);
+            }
+            logger.debug("Sent kill to emulator console on port {}", port);
+            return true;
+        } catch (IOException e) {
+            logger.debug("Emulator console on port {} not reachable", port, e);
+            return false;
+        }
+    }
+
+    /**
+     * Checks if a console port and its adb port are free on localhost.
+     */
+    public static boolean isPortPairFree(int consolePort) {
+        return isPortFree(consolePort) && isPortFree(consolePort + 1);
+    }
+
+    private static boolean isPortFree(int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 200);
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private boolean readUntilOk(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("OK")) {
+                return true;
+            }
+            if (line.startsWith("KO")) {
+                logger.debug("Emulator console on port {} replied: {}", port, line);
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void send(Writer writer, String command) throws IOException {
+        writer.write(command + "\r\n");
+        writer.flush();
+    }
+
+    private String readAuthToken() {
+        try {
+            if (Files.isRegularFile(AUTH_TOKEN_FILE)) {
+                String token = Files.readString(AUTH_TOKEN_FILE, StandardCharsets.US_ASCII).trim();
+                return token.isEmpty() ? null : token;
+            }
+        } catch (IOException e) {
+            logger.debug("Cannot read emulator console auth token", e);
+        }
+        return null;
+    }
+}
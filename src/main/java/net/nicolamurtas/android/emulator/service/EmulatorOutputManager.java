@@ -0,0 +1,292 @@
+package net.nicolamurtas.android.emulator.service;
+
+import net.nicolamurtas.android.emulator.util.ProcessIoExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routes the stdout/stderr of emulator processes so they never block on a full pipe.
+ *
+ * Output can be redirected by the OS straight into a rotating log file,
+ * pumped into a bounded in-memory tail, or discarded.
+ */
+public class EmulatorOutputManager implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(EmulatorOutputManager.class);
+
+    private static final int MAX_LINE_LENGTH = 4096;
+    private static final int LOG_TAIL_READ_BYTES = 64 * 1024;
+    private static final long ROTATION_CHECK_SECONDS = 30;
+
+    /**
+     * How emulator output is handled.
+     */
+    public enum OutputMode {
+        /** Redirected by the OS to a log file, rotated by size. */
+        LOG_FILE,
+        /** Pumped into a bounded ring buffer of recent lines. */
+        TAIL,
+        /** Discarded by the OS. */
+        DISCARD
+    }
+
+    private final Path logDirectory;
+    private final int tailLines;
+    private final long maxLogBytes;
+    private final int maxRotatedFiles;
+    private final Map<String, EmulatorOutput> outputs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService rotationScheduler;
+
+    public EmulatorOutputManager() {
+        this(Paths.get("logs", "emulators"), 500, 10L * 1024 * 1024, 3);
+    }
+
+    /**
+     * @param logDirectory Directory for per-AVD log files
+     * @param tailLines Number of lines kept in memory in TAIL mode
+     * @param maxLogBytes Size after which a log file is rotated
+     * @param maxRotatedFiles Number of rotated log files kept per AVD
+     */
+    public EmulatorOutputManager(Path logDirectory, int tailLines, long maxLogBytes, int maxRotatedFiles) {
+        this.logDirectory = logDirectory;
+        this.tailLines = tailLines;
+        this.maxLogBytes = maxLogBytes;
+        this.maxRotatedFiles = maxRotatedFiles;
+        this.rotationScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "emulator-log-rotation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rotationScheduler.scheduleWithFixedDelay(this::rotateOversizedLogs,
+            ROTATION_CHECK_SECONDS, ROTATION_CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Output of a single emulator.
+     */
+    private record EmulatorOutput(OutputMode mode, Path logFile, LineRingBuffer tail, Process process) {}
+
+    /**
+     * Prepares the output redirect for an emulator about to be started.
+     *
+     * @return the redirect to apply to the merged stdout/stderr of the process
+     */
+    public ProcessBuilder.Redirect prepare(String avdName, OutputMode mode) throws IOException {
+        return switch (mode) {
+            case LOG_FILE -> {
+                Path logFile = getLogFilePath(avdName);
+                Files.createDirectories(logDirectory);
+                rotate(logFile);
+                yield ProcessBuilder.Redirect.appendTo(logFile.toFile());
+            }
+            case TAIL -> ProcessBuilder.Redirect.PIPE;
+            case DISCARD -> ProcessBuilder.Redirect.DISCARD;
+        };
+    }
+
+    /**
+     * Attaches the output handling to a started emulator process.
+     */
+    public void attach(String avdName, OutputMode mode, Process process) {
+        LineRingBuffer tail = null;
+        if (mode == OutputMode.TAIL) {
+            tail = new LineRingBuffer(tailLines);
+            startPump(avdName, process.getInputStream(), tail);
+        }
+        Path logFile = mode == OutputMode.LOG_FILE ? getLogFilePath(avdName) : null;
+        outputs.put(avdName, new EmulatorOutput(mode, logFile, tail, process));
+        logger.debug("Emulator {} output mode: {}", avdName, mode);
+    }
+
+    /**
+     * Gets the most recent output lines of an emulator, oldest first.
+     */
+    public List<String> getRecentOutput(String avdName) {
+        EmulatorOutput output = outputs.get(avdName);
+        if (output == null) {
+            return List.of();
+        }
+
+        return switch (output.mode()) {
+            case TAIL -> output.tail().snapshot();
+            case LOG_FILE -> readLogTail(output.logFile());
+            case DISCARD -> List.of();
+        };
+    }
+
+    /**
+     * Gets the log file of an emulator running in LOG_FILE mode.
+     */
+    public Optional<Path> getLogFile(String avdName) {
+        EmulatorOutput output = outputs.get(avdName);
+        return output != null ? Optional.ofNullable(output.logFile()) : Optional.empty();
+    }
+
+    /**
+     * Gets the log file path used for an AVD.
+     */
+    public Path getLogFilePath(String avdName) {
+        return logDirectory.resolve(avdName + ".log");
+    }
+
+    /**
+     * Reads the last lines of a log file without loading all of it.
+     */
+    private List<String> readLogTail(Path logFile) {
+        if (logFile == null || !Files.exists(logFile)) {
+            return List.of();
+        }
+
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = Math.max(0, size - LOG_TAIL_READ_BYTES);
+            byte[] bytes = new byte[(int) (size - start)];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) <= 0) {
+                    break;
+                }
+            }
+
+            List<String> lines = new ArrayList<>(
+                new String(bytes, 0, buffer.position(), StandardCharsets.UTF_8).lines().toList());
+            if (start > 0 && !lines.isEmpty()) {
+                lines.remove(0); // first line is likely partial
+            }
+            return lines.size() > tailLines ? lines.subList(lines.size() - tailLines, lines.size()) : lines;
+        } catch (IOException e) {
+            logger.debug("Failed to read emulator log: {}", logFile, e);
+            return List.of();
+        }
+    }
+
+    /**
+     * Shifts {@code name.log -> name.log.1 -> ... -> name.log.N}, dropping the oldest.
+     */
+    private void rotate(Path logFile) throws IOException {
+        if (!Files.exists(logFile) || Files.size(logFile) == 0) {
+            return;
+        }
+
+        shiftRotatedFiles(logFile);
+        Files.move(logFile, rotatedPath(logFile, 1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Makes room for a new {@code name.log.1}, dropping the oldest rotated file.
+     */
+    private void shiftRotatedFiles(Path logFile) throws IOException {
+        Files.deleteIfExists(rotatedPath(logFile, maxRotatedFiles));
+        for (int i = maxRotatedFiles - 1; i >= 1; i--) {
+            Path source = rotatedPath(logFile, i);
+            if (Files.exists(source)) {
+                Files.move(source, rotatedPath(logFile, i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    /**
+     * Rotates the logs of running emulators that grew past the size limit.
+     * Uses copy-and-truncate since the emulator keeps the file open in append mode.
+     */
+    private void rotateOversizedLogs() {
+        for (EmulatorOutput output : outputs.values()) {
+            if (output.mode() != OutputMode.LOG_FILE || !output.process().isAlive()) {
+                continue;
+            }
+
+            Path logFile = output.logFile();
+            try {
+                if (Files.exists(logFile) && Files.size(logFile) > maxLogBytes) {
+                    Path copy = logFile.resolveSibling(logFile.getFileName() + ".rotating");
+                    Files.copy(logFile, copy, StandardCopyOption.REPLACE_EXISTING);
+                    try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+                        channel.truncate(0);
+                    }
+                    shiftRotatedFiles(logFile);
+                    Files.move(copy, rotatedPath(logFile, 1), StandardCopyOption.REPLACE_EXISTING);
+                    logger.debug("Rotated emulator log: {}", logFile);
+                }
+            } catch (IOException e) {
+                logger.debug("Failed to rotate emulator log: {}", logFile, e);
+            }
+        }
+    }
+
+    private Path rotatedPath(Path logFile, int index) {
+        return logFile.resolveSibling(logFile.getFileName() + "." + index);
+    }
+
+    /**
+     * Drains a process stream into a ring buffer on a virtual I/O thread.
+     */
+    private void startPump(String avdName, InputStream inputStream, LineRingBuffer tail) {
+        ProcessIoExecutor.run(() -> {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    tail.add(line.length() > MAX_LINE_LENGTH ? line.substring(0, MAX_LINE_LENGTH) : line);
+                }
+            } catch (IOException e) {
+                logger.debug("Emulator {} output stream closed", avdName, e);
+            }
+        });
+    }
+
+    /**
+     * Forgets the output of an emulator.
+     */
+    public void remove(String avdName) {
+        outputs.remove(avdName);
+    }
+
+    @Override
+    public void close() {
+        rotationScheduler.shutdownNow();
+    }
+
+    /**
+     * Fixed-capacity buffer keeping the most recent lines.
+     */
+    private static final class LineRingBuffer {
+        private final String[] lines;
+        private int next;
+        private int size;
+
+        LineRingBuffer(int capacity) {
+            this.lines = new String[Math.max(1, capacity)];
+        }
+
+        synchronized void add(String line) {
+            lines[next] = line;
+            next = (next + 1) % lines.length;
+            if (size < lines.length) {
+                size++;
+            }
+        }
+
+        synchronized List<String> snapshot() {
+            List<String> result = new ArrayList<>(size);
+            int start = (next - size + lines.length) % lines.length;
+            for (int i = 0; i < size; i++) {
+                result.add(lines[(start + i) % lines.length]);
+            }
+            return result;
+        }
+    }
+}
@@ -1,31 +1,71 @@
 package net.nicolamurtas.android.emulator.service;
 
+import net.nicolamurtas.android.emulator.util.OutputCapture;
 import net.nicolamurtas.android.emulator.util.PlatformUtils;
 import net.nicolamurtas.android.emulator.util.ProcessExecutor;
+import net.nicolamurtas.android.emulator.util.ProcessIoExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * Service for managing Android Virtual Devices (AVDs) and emulators.
  */
-public class EmulatorService {
+public class EmulatorService implements AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(EmulatorService.class);
+    private static final int TOOL_OUTPUT_TAIL_LINES = 100;
+    private static final Duration EMULATOR_GRACE_PERIOD = Duration.ofSeconds(5);
+    private static final Duration EMULATOR_FORCE_TIMEOUT = Duration.ofSeconds(2);
+    private static final Duration CONSOLE_TIMEOUT = Duration.ofSeconds(2);
+    private static final Duration DEFAULT_SHUTDOWN_DEADLINE = Duration.ofSeconds(15);
 
     private final Path sdkPath;
     private final Map<String, Process> runningEmulators;
+    private final Map<String, Integer> consolePorts = new ConcurrentHashMap<>();
     private final SdkDownloadService sdkDownloadService;
+    private final CmdlineToolsRunner cmdlineTools;
+    private final AvdOperationGate operationGate = new AvdOperationGate();
+    private final AvdInventory avdInventory;
+    private final AvdIndex avdIndex;
+    private final EmulatorOutputManager outputManager;
+    private volatile EmulatorOutputManager.OutputMode outputMode = EmulatorOutputManager.OutputMode.LOG_FILE;
 
     public EmulatorService(Path sdkPath) {
+        this(sdkPath, new AvdInventory());
+    }
+
+    public EmulatorService(Path sdkPath, AvdInventory avdInventory) {
+        this(sdkPath, avdInventory, new SdkDownloadService());
+    }
+
+    /**
+     * @param sdkDownloadService Service installing missing components, with the download cache configured
+     */
+    public EmulatorService(Path sdkPath, SdkDownloadService sdkDownloadService) {
+        this(sdkPath, new AvdInventory(), sdkDownloadService);
+    }
+
+    public EmulatorService(Path sdkPath, AvdInventory avdInventory, SdkDownloadService sdkDownloadService) {
         this.sdkPath = sdkPath;
         this.runningEmulators = new ConcurrentHashMap<>();
-        this.sdkDownloadService = new SdkDownloadService();
+        this.sdkDownloadService = sdkDownloadService;
+        this.cmdlineTools = new CmdlineToolsRunner(sdkPath);
+        this.avdInventory = avdInventory;
+        this.avdIndex = new AvdIndex(avdInventory);
+        this.outputManager = new EmulatorOutputManager();
     }
 
     /**
@@ -58,9 +98,92 @@ public class EmulatorService {
     public boolean createAvd(String name, String apiLevel, String deviceType,
                             BiConsumer<Integer, String> progressCallback)
             throws IOException, InterruptedException {
+        return ProcessExecutor.await(createAvdAsync(name, apiLevel, deviceType, progressCallback));
+    }
+
+    /**
+     * Creates a new Android Virtual Device with auto-install support, without blocking the caller.
+     *
+     * @param name AVD name
+     * @param apiLevel API level (e.g., "33")
+     * @param deviceType Device type (e.g., "pixel_5")
+     * @param progressCallback Optional callback for installation progress
+     * @return future completing with true if creation was successful
+     */
+    public CompletableFuture<Boolean> createAvdAsync(String name, String apiLevel, String deviceType,
+                                                     BiConsumer<Integer, String> progressCallback) {
+        return operationGate.submit(name, "create",
+            () -> createAvdUnlocked(name, apiLevel, deviceType, progressCallback));
+    }
 
+    /**
+     * Starts downloading the components an AVD of an API level needs into the
+     * download cache, while the user is still configuring it. Creating the AVD
+     * then joins the download in progress.
+     *
+     * @param apiLevel API level (e.g., "33")
+     * @return handle to cancel the prefetch
+     */
+    public SdkRepositoryClient.Prefetch prefetchApiLevel(String apiLevel) {
+        if (sdkDownloadService.isApiLevelInstalled(sdkPath, apiLevel)) {
+            return SdkRepositoryClient.Prefetch.NONE;
+        }
+        return sdkDownloadService.prefetchComponents(sdkPath, componentsForApiLevel(apiLevel));
+    }
+
+    /**
+     * Gets the SDK licenses to accept before creating an AVD of an API level,
+     * none if the API level is installed already.
+     *
+     * @param apiLevel API level (e.g., "33")
+     */
+    public List<String> getMissingLicenses(String apiLevel) throws InterruptedException {
+        if (sdkDownloadService.isApiLevelInstalled(sdkPath, apiLevel)) {
+            return List.of();
+        }
+        return sdkDownloadService.getMissingLicenses(sdkPath, componentsForApiLevel(apiLevel));
+    }
+
+    /**
+     * Records the SDK licenses as accepted, once the user accepted them.
+     */
+    public void acceptSdkLicenses() throws IOException {
+        sdkDownloadService.acceptLicenses(sdkPath);
+    }
+
+    private static List<String> componentsForApiLevel(String apiLevel) {
+        return List.of(
+            "platforms;android-" + apiLevel,
+            defaultSystemImage(apiLevel)
+        );
+    }
+
+    private static String defaultSystemImage(String apiLevel) {
+        return "system-images;android-" + apiLevel + ";google_apis;" + SdkDownloadService.DEFAULT_ABI;
+    }
+
+    /**
+     * Picks the system image for a new AVD: an installed one of any tag if there
+     * is one, otherwise the default image, which gets installed.
+     */
+    private String selectSystemImage(String apiLevel) {
+        try {
+            return sdkDownloadService.getInventory(sdkPath)
+                .findSystemImage(apiLevel, SdkDownloadService.DEFAULT_ABI)
+                .map(SdkInventory.InstalledPackage::path)
+                .orElse(defaultSystemImage(apiLevel));
+        } catch (IOException e) {
+            logger.warn("Cannot read installed packages in {}", sdkPath, e);
+            return defaultSystemImage(apiLevel);
+        }
+    }
+
+    private CompletableFuture<Boolean> createAvdUnlocked(String name, String apiLevel, String deviceType,
+                                                         BiConsumer<Integer, String> progressCallback) {
         logger.info("Creating AVD: name={}, api={}, device={}", name, apiLevel, deviceType);
 
+        CompletableFuture<Boolean> installed = CompletableFuture.completedFuture(true);
+
         // Check if API is installed, if not, install it
         if (!sdkDownloadService.isApiLevelInstalled(sdkPath, apiLevel)) {
             logger.info("API level {} not found, installing...", apiLevel);
@@ -69,82 +192,129 @@ public class EmulatorService {
                 progressCallback.accept(0, "Installing missing API " + apiLevel + "...");
             }
 
-            List<String> componentsToInstall = List.of(
-                "platforms;android-" + apiLevel,
-                "system-images;android-" + apiLevel + ";google_apis;x86_64"
-            );
-
-            // Install missing components
-            for (String component : componentsToInstall) {
-                boolean success = sdkDownloadService.installSingleComponent(sdkPath, component);
-                if (!success) {
-                    logger.error("Failed to install component: {}", component);
-                    return false;
-                }
-            }
-
-            if (progressCallback != null) {
-                progressCallback.accept(100, "API " + apiLevel + " installed successfully");
+            List<String> componentsToInstall = componentsForApiLevel(apiLevel);
+
+            // Install missing components, stopping at the first failure. Concurrent creations
+            // needing the same components share the installation.
+            for (int i = 0; i < componentsToInstall.size(); i++) {
+                String component = componentsToInstall.get(i);
+                int progressStart = 100 * i / componentsToInstall.size();
+                int progressSpan = 100 / componentsToInstall.size();
+                BiConsumer<Integer, String> componentProgress = progressCallback == null ? null
+                    : (progress, message) -> progressCallback.accept(progressStart + progress * progressSpan / 100, message);
+
+                installed = installed.thenCompose(ok -> {
+                    if (!ok) {
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    return sdkDownloadService.installComponentAsync(sdkPath, component, componentProgress)
+                        .thenApply(success -> {
+                            if (!success) {
+                                logger.error("Failed to install component: {}", component);
+                            }
+                            return success;
+                        });
+                });
             }
 
-            logger.info("API level {} installed successfully", apiLevel);
-        }
-
-        Path avdManagerPath = getAvdManagerPath();
-        if (avdManagerPath == null) {
-            throw new IOException("avdmanager not found in SDK: " + sdkPath);
+            installed = installed.thenApply(ok -> {
+                if (ok) {
+                    if (progressCallback != null) {
+                        progressCallback.accept(100, "API " + apiLevel + " installed successfully");
+                    }
+                    logger.info("API level {} installed successfully", apiLevel);
+                }
+                return ok;
+            });
         }
 
-        String systemImage = "system-images;android-" + apiLevel + ";google_apis;x86_64";
+        return installed.thenCompose(ok -> ok
+            ? runAvdManagerCreate(name, selectSystemImage(apiLevel), deviceType)
+            : CompletableFuture.completedFuture(false));
+    }
 
-        Map<String, String> env = Map.of(
-            "ANDROID_HOME", sdkPath.toString(),
-            "ANDROID_SDK_ROOT", sdkPath.toString()
-        );
+    /**
+     * Runs {@code avdmanager create avd} for an installed system image.
+     */
+    private CompletableFuture<Boolean> runAvdManagerCreate(String name, String systemImage, String deviceType) {
+        logger.info("Using system image {}", systemImage);
 
-        ProcessExecutor.ExecutionResult result = ProcessExecutor.execute(
-            sdkPath,
-            env,
-            10,
+        return cmdlineTools.run(
+            CmdlineToolsRunner.Tool.AVDMANAGER,
+            Duration.ofMinutes(10),
             writer -> writer.println("no"), // Don't create custom hardware profile
-            avdManagerPath.toString(),
+            OutputCapture.tailLines(TOOL_OUTPUT_TAIL_LINES),
+            OutputCapture.tailLines(TOOL_OUTPUT_TAIL_LINES),
             "create", "avd",
             "-n", name,
             "-k", systemImage,
             "-d", deviceType
-        );
-
-        if (result.isSuccess()) {
-            logger.info("AVD created successfully: {}", name);
-            return true;
-        } else {
-            logger.error("Failed to create AVD: {}", name);
-            logger.error("Errors: {}", result.errors());
-            return false;
-        }
+        ).thenApply(result -> {
+            if (result.isSuccess()) {
+                logger.info("AVD created successfully: {}", name);
+                refreshIndex(name);
+                return true;
+            } else {
+                logger.error("Failed to create AVD: {}", name);
+                logger.error("Errors: {}", result.errors());
+                return false;
+            }
+        });
     }
 
     /**
      * Lists all available AVDs.
+     * Served from the live AVD index, which is started on first use. Falls back
+     * to avdmanager when no AVD home exists or it cannot be read.
      */
     public List<AvdInfo> listAvds() throws IOException, InterruptedException {
         logger.debug("Listing available AVDs");
 
-        Path avdManagerPath = getAvdManagerPath();
-        if (avdManagerPath == null || !Files.exists(avdManagerPath)) {
+        if (avdIndex.isRunning()) {
+            return avdIndex.getAvds();
+        }
+
+        if (avdInventory.hasExistingRoot()) {
+            try {
+                avdIndex.start();
+                return avdIndex.getAvds();
+            } catch (IOException e) {
+                logger.warn("Failed to index AVD directories, falling back to avdmanager", e);
+            }
+        }
+
+        return listAvdsWithAvdManager();
+    }
+
+    /**
+     * Subscribes to AVD additions, removals and modifications.
+     * Events are delivered on the index watcher thread.
+     */
+    public void addAvdChangeListener(Consumer<AvdIndex.AvdChangeEvent> listener) {
+        avdIndex.addListener(listener);
+    }
+
+    /**
+     * Removes an AVD change listener.
+     */
+    public void removeAvdChangeListener(Consumer<AvdIndex.AvdChangeEvent> listener) {
+        avdIndex.removeListener(listener);
+    }
+
+    /**
+     * Lists all available AVDs by running {@code avdmanager list avd}.
+     */
+    private List<AvdInfo> listAvdsWithAvdManager() throws IOException, InterruptedException {
+        if (cmdlineTools.getScriptPath(CmdlineToolsRunner.Tool.AVDMANAGER) == null) {
             logger.warn("avdmanager not found, returning empty list");
             return List.of();
         }
 
-        Map<String, String> env = Map.of(
-            "ANDROID_HOME", sdkPath.toString(),
-            "ANDROID_SDK_ROOT", sdkPath.toString()
-        );
-
-        ProcessExecutor.ExecutionResult result = ProcessExecutor.execute(
-            sdkPath, env, 5, null,
-            avdManagerPath.toString(), "list", "avd"
-        );
+        ProcessExecutor.ExecutionResult result = ProcessExecutor.await(cmdlineTools.run(
+            CmdlineToolsRunner.Tool.AVDMANAGER, Duration.ofMinutes(5), null,
+            OutputCapture.full(), OutputCapture.tailLines(TOOL_OUTPUT_TAIL_LINES),
+            "list", "avd"
+        ));
 
         return parseAvdList(result.output());
     }
@@ -182,13 +352,29 @@ public class EmulatorService {
         return avds;
     }
 
+    /**
+     * Starts an emulator with the given AVD name using the configured output mode.
+     *
+     * @param avdName Name of the AVD to start
+     * @return The emulator process
+     */
+    public Process startEmulator(String avdName) throws IOException, InterruptedException {
+        return startEmulator(avdName, outputMode);
+    }
+
     /**
      * Starts an emulator with the given AVD name.
      *
      * @param avdName Name of the AVD to start
+     * @param mode How the emulator stdout/stderr is handled
      * @return The emulator process
      */
-    public Process startEmulator(String avdName) throws IOException {
+    public Process startEmulator(String avdName, EmulatorOutputManager.OutputMode mode)
+            throws IOException, InterruptedException {
+        return operationGate.call(avdName, "start", () -> startEmulatorUnlocked(avdName, mode));
+    }
+
+    private Process startEmulatorUnlocked(String avdName, EmulatorOutputManager.OutputMode mode) throws IOException {
         logger.info("Starting emulator: {}", avdName);
 
         if (runningEmulators.containsKey(avdName)) {
@@ -211,13 +397,24 @@ public class EmulatorService {
             "ANDROID_SDK_ROOT", sdkPath.toString()
         );
 
-        Process process = ProcessExecutor.executeAsync(
-            sdkPath, env,
-            emulatorPath.toString(), "-avd", avdName
-        );
+        // A known console port lets the emulator be shut down gracefully later
+        int consolePort = allocateConsolePort(avdName);
+        Process process;
+        try {
+            ProcessBuilder.Redirect outputRedirect = outputManager.prepare(avdName, mode);
+            process = ProcessExecutor.executeAsync(
+                sdkPath, env, outputRedirect,
+                emulatorPath.toString(), "-avd", avdName, "-port", String.valueOf(consolePort)
+            );
+        } catch (IOException e) {
+            consolePorts.remove(avdName);
+            throw e;
+        }
+        outputManager.attach(avdName, mode, process);
 
         runningEmulators.put(avdName, process);
-        logger.info("Emulator {} started (PID: {})", avdName, process.pid());
+        logger.info("Emulator {} started (PID: {}, console port: {})", avdName, process.pid(), consolePort);
+        recordAvdUse(avdName, false);
 
         return process;
     }
@@ -226,13 +423,35 @@ public class EmulatorService {
      * Stops a running emulator.
      */
     public void stopEmulator(String avdName) {
+        try {
+            operationGate.call(avdName, "stop", () -> {
+                stopEmulatorUnlocked(avdName);
+                return null;
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while waiting to stop emulator: {}", avdName);
+        } catch (IOException e) {
+            // not thrown by stopEmulatorUnlocked
+            logger.error("Failed to stop emulator: {}", avdName, e);
+        }
+    }
+
+    private void stopEmulatorUnlocked(String avdName) {
         logger.info("Stopping emulator: {}", avdName);
 
         Process process = runningEmulators.get(avdName);
         if (process != null) {
-            ProcessExecutor.killProcess(process);
+            // The launcher spawns qemu and crashpad children that must go too
+            boolean exited = ProcessExecutor.killProcessTree(process.toHandle(),
+                EMULATOR_GRACE_PERIOD, EMULATOR_FORCE_TIMEOUT);
             runningEmulators.remove(avdName);
-            logger.info("Emulator {} stopped", avdName);
+            consolePorts.remove(avdName);
+            if (exited) {
+                logger.info("Emulator {} stopped", avdName);
+            } else {
+                logger.warn("Emulator {} stopped, but some of its processes are still alive", avdName);
+            }
         } else {
             logger.warn("No running emulator found for: {}", avdName);
         }
@@ -242,42 +461,302 @@ public class EmulatorService {
      * Stops all running emulators.
      */
     public void stopAllEmulators() {
-        logger.info("Stopping all running emulators");
-        new ArrayList<>(runningEmulators.keySet()).forEach(this::stopEmulator);
+        stopAllEmulators(DEFAULT_SHUTDOWN_DEADLINE, null);
+    }
+
+    /**
+     * Stops all running emulators in parallel within a global deadline.
+     *
+     * Each emulator is asked to exit through its console {@code kill} command
+     * (or a normal termination request when the console is unreachable). Process
+     * trees still alive shortly before the deadline are force-killed, so the
+     * total time stays close to the slowest single emulator.
+     *
+     * @param deadline Maximum time for the whole shutdown
+     * @param progressCallback Optional callback reporting each stopped emulator
+     * @return names of the emulators whose processes could not be terminated
+     */
+    public List<String> stopAllEmulators(Duration deadline, BiConsumer<Integer, String> progressCallback) {
+        Map<String, Process> emulators = new HashMap<>(runningEmulators);
+        if (emulators.isEmpty()) {
+            return List.of();
+        }
+
+        logger.info("Stopping {} running emulators", emulators.size());
+        long start = System.nanoTime();
+        Duration gracefulWindow = deadline.minus(EMULATOR_FORCE_TIMEOUT);
+        if (gracefulWindow.isNegative()) {
+            gracefulWindow = Duration.ZERO;
+        }
+
+        AtomicInteger stopped = new AtomicInteger();
+        Set<String> gracefullyStopped = ConcurrentHashMap.newKeySet();
+        Map<String, List<ProcessHandle>> trees = new HashMap<>();
+        List<CompletableFuture<Void>> gracefulStops = new ArrayList<>();
+
+        for (Map.Entry<String, Process> entry : emulators.entrySet()) {
+            String avdName = entry.getKey();
+            Process process = entry.getValue();
+
+            // Snapshot before signalling: children are re-parented once the launcher exits
+            List<ProcessHandle> tree = new ArrayList<>();
+            tree.add(process.toHandle());
+            process.toHandle().descendants().forEach(tree::add);
+            trees.put(avdName, tree);
+
+            Integer consolePort = consolePorts.get(avdName);
+            CompletableFuture<Void> gracefulStop = ProcessIoExecutor.run(() -> {
+                boolean killSent = consolePort != null && new EmulatorConsole(consolePort).kill(CONSOLE_TIMEOUT);
+                if (!killSent) {
+                    logger.debug("Console of {} unreachable, requesting termination", avdName);
+                    tree.forEach(ProcessHandle::destroy);
+                }
+            }).thenCompose(ignored -> CompletableFuture.allOf(
+                tree.stream().map(ProcessHandle::onExit).toArray(CompletableFuture[]::new))
+            ).thenAccept(ignored -> {
+                gracefullyStopped.add(avdName);
+                int done = stopped.incrementAndGet();
+                logger.info("Emulator {} stopped", avdName);
+                updateProgress(progressCallback, done * 100 / emulators.size(),
+                    "Stopped " + avdName + " (" + done + "/" + emulators.size() + ")");
+            });
+            gracefulStops.add(gracefulStop);
+        }
+
+        try {
+            CompletableFuture.allOf(gracefulStops.toArray(CompletableFuture[]::new))
+                .get(gracefulWindow.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.warn("Graceful shutdown window elapsed, forcing remaining emulators");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.debug("Error during graceful emulator shutdown", e.getCause());
+        }
+
+        // Force-kill stragglers and any leftover children, all in parallel
+        List<CompletableFuture<Boolean>> sweeps = new ArrayList<>();
+        Map<String, CompletableFuture<Boolean>> sweepByName = new HashMap<>();
+        trees.forEach((avdName, tree) -> {
+            List<CompletableFuture<Boolean>> nodeSweeps = tree.stream()
+                .filter(ProcessHandle::isAlive)
+                .map(handle -> ProcessIoExecutor.supply(() ->
+                    ProcessExecutor.killProcessTree(handle, Duration.ZERO, EMULATOR_FORCE_TIMEOUT)))
+                .toList();
+            if (nodeSweeps.isEmpty()) {
+                return;
+            }
+            CompletableFuture<Boolean> sweep = CompletableFuture.allOf(nodeSweeps.toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> nodeSweeps.stream().allMatch(CompletableFuture::join));
+            sweeps.add(sweep);
+            sweepByName.put(avdName, sweep);
+        });
+        CompletableFuture.allOf(sweeps.toArray(CompletableFuture[]::new)).join();
+
+        List<String> failed = new ArrayList<>();
+        for (String avdName : emulators.keySet()) {
+            CompletableFuture<Boolean> sweep = sweepByName.get(avdName);
+            if (sweep != null && !sweep.join()) {
+                failed.add(avdName);
+            } else if (sweep != null && !gracefullyStopped.contains(avdName)) {
+                int done = stopped.incrementAndGet();
+                updateProgress(progressCallback, done * 100 / emulators.size(),
+                    "Force-stopped " + avdName + " (" + done + "/" + emulators.size() + ")");
+            }
+            runningEmulators.remove(avdName);
+            consolePorts.remove(avdName);
+        }
+
+        logger.info("Stopped {} emulators in {} ms ({} could not be terminated)",
+            emulators.size(), (System.nanoTime() - start) / 1_000_000, failed.size());
+        return failed;
+    }
+
+    /**
+     * Reserves for an AVD the lowest even console port not used by another emulator.
+     */
+    private synchronized int allocateConsolePort(String avdName) throws IOException {
+        consolePorts.remove(avdName);
+        Collection<Integer> used = consolePorts.values();
+        for (int port = EmulatorConsole.FIRST_CONSOLE_PORT; port <= EmulatorConsole.LAST_CONSOLE_PORT; port += 2) {
+            if (!used.contains(port) && EmulatorConsole.isPortPairFree(port)) {
+                consolePorts.put(avdName, port);
+                return port;
+            }
+        }
+        throw new IOException("No free emulator console port between "
+            + EmulatorConsole.FIRST_CONSOLE_PORT + " and " + EmulatorConsole.LAST_CONSOLE_PORT);
+    }
+
+    private void updateProgress(BiConsumer<Integer, String> callback, int progress, String message) {
+        if (callback != null) {
+            callback.accept(progress, message);
+        }
     }
 
     /**
      * Deletes an AVD.
      */
     public boolean deleteAvd(String avdName) throws IOException, InterruptedException {
+        return ProcessExecutor.await(deleteAvdAsync(avdName));
+    }
+
+    /**
+     * Deletes an AVD without blocking the caller.
+     *
+     * @return future completing with true if deletion was successful
+     */
+    public CompletableFuture<Boolean> deleteAvdAsync(String avdName) {
+        return operationGate.submit(avdName, "delete", () -> deleteAvdUnlocked(avdName));
+    }
+
+    private CompletableFuture<Boolean> deleteAvdUnlocked(String avdName) {
         logger.info("Deleting AVD: {}", avdName);
 
         // Stop emulator if running
-        stopEmulator(avdName);
+        return ProcessIoExecutor.run(() -> {
+            stopEmulatorUnlocked(avdName);
+            recordAvdUse(avdName, true);
+        }).thenCompose(ignored -> cmdlineTools.run(
+            CmdlineToolsRunner.Tool.AVDMANAGER, Duration.ofMinutes(5), null,
+            OutputCapture.tailLines(TOOL_OUTPUT_TAIL_LINES),
+            OutputCapture.tailLines(TOOL_OUTPUT_TAIL_LINES),
+            "delete", "avd", "-n", avdName
+        )).thenApply(result -> {
+            if (result.isSuccess()) {
+                logger.info("AVD deleted successfully: {}", avdName);
+                outputManager.remove(avdName);
+                refreshIndex(avdName);
+                return true;
+            } else {
+                logger.error("Failed to delete AVD: {}", avdName);
+                logger.error("Errors: {}", result.errors());
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Renames an AVD: its .avd directory, its .ini file and the paths stored in it.
+     * Both names are locked, so no other operation can touch either AVD meanwhile.
+     *
+     * @throws IOException if the AVD is running, does not exist, the new name is taken
+     *                     or is the current one
+     */
+    public void renameAvd(String oldName, String newName) throws IOException, InterruptedException {
+        // The lanes are not reentrant, locking the same name twice would wait forever
+        if (oldName.equals(newName)) {
+            throw new IOException("The new name of AVD " + oldName + " is the same as the current one");
+        }
+
+        // Lock in a stable order so two opposite renames cannot deadlock
+        String first = oldName.compareTo(newName) < 0 ? oldName : newName;
+        String second = first.equals(oldName) ? newName : oldName;
+
+        operationGate.call(first, "rename", () -> operationGate.call(second, "rename", () -> {
+            renameAvdUnlocked(oldName, newName);
+            return null;
+        }));
+    }
+
+    private void renameAvdUnlocked(String oldName, String newName) throws IOException {
+        logger.info("Renaming AVD: {} -> {}", oldName, newName);
 
-        Path avdManagerPath = getAvdManagerPath();
-        if (avdManagerPath == null) {
-            throw new IOException("avdmanager not found in SDK: " + sdkPath);
+        if (isEmulatorRunning(oldName)) {
+            throw new IOException("Cannot rename a running emulator: " + oldName);
         }
 
-        Map<String, String> env = Map.of(
-            "ANDROID_HOME", sdkPath.toString(),
-            "ANDROID_SDK_ROOT", sdkPath.toString()
-        );
+        Path iniFile = findIniFile(oldName);
+        if (iniFile == null) {
+            throw new IOException("AVD not found: " + oldName);
+        }
 
-        ProcessExecutor.ExecutionResult result = ProcessExecutor.execute(
-            sdkPath, env, 5, null,
-            avdManagerPath.toString(), "delete", "avd", "-n", avdName
-        );
+        AvdInfo avdInfo = avdInventory.load(iniFile)
+            .orElseThrow(() -> new IOException("Cannot read AVD: " + oldName));
+        Path avdPath = avdInfo.path() != null ? Path.of(avdInfo.path()) : iniFile.resolveSibling(oldName + ".avd");
+        Path newAvdPath = avdPath.resolveSibling(newName + ".avd");
+        Path newIniFile = iniFile.resolveSibling(newName + ".ini");
 
-        if (result.isSuccess()) {
-            logger.info("AVD deleted successfully: {}", avdName);
-            return true;
-        } else {
-            logger.error("Failed to delete AVD: {}", avdName);
-            logger.error("Errors: {}", result.errors());
-            return false;
+        if (Files.exists(newIniFile) || Files.exists(newAvdPath)) {
+            throw new IOException("An AVD named " + newName + " already exists");
+        }
+
+        // Rename .avd directory
+        if (Files.exists(avdPath)) {
+            Files.move(avdPath, newAvdPath);
         }
+
+        // Rename .ini file and update the paths in it
+        Files.move(iniFile, newIniFile);
+        String iniContent = Files.readString(newIniFile);
+        iniContent = iniContent.replace(oldName + ".avd", newName + ".avd");
+        Files.writeString(newIniFile, iniContent);
+
+        outputManager.remove(oldName);
+        refreshIndex(oldName);
+        refreshIndex(newName);
+        logger.info("AVD renamed: {} -> {}", oldName, newName);
+    }
+
+    private Path findIniFile(String avdName) {
+        for (Path root : avdInventory.getAvdRoots()) {
+            Path candidate = root.resolve(avdName + ".ini");
+            if (Files.isRegularFile(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records a launch or the deletion of an AVD as a use of its system image, so that
+     * garbage collection removes the images unused for the longest time first.
+     */
+    private void recordAvdUse(String avdName, boolean removal) {
+        Path iniFile = findIniFile(avdName);
+        Optional<AvdInfo> avdInfo = iniFile != null ? avdInventory.load(iniFile) : Optional.empty();
+        if (avdInfo.isEmpty() || avdInfo.get().path() == null) {
+            return;
+        }
+        Path avdPath = Path.of(avdInfo.get().path());
+        try {
+            if (removal) {
+                sdkDownloadService.recordAvdRemoval(sdkPath, avdPath);
+            } else {
+                sdkDownloadService.recordAvdLaunch(sdkPath, avdPath);
+            }
+        } catch (IOException e) {
+            logger.debug("Failed to record the use of AVD {}", avdName, e);
+        }
+    }
+
+    /**
+     * Gets how long AVD operations waited for other operations on the same AVD.
+     */
+    public AvdOperationGate.Metrics getAvdOperationMetrics() {
+        return operationGate.getMetrics();
+    }
+
+    /**
+     * Sets how the output of emulators started from now on is handled.
+     */
+    public void setOutputMode(EmulatorOutputManager.OutputMode outputMode) {
+        this.outputMode = outputMode;
+    }
+
+    /**
+     * Gets the most recent output lines of an emulator, oldest first.
+     * Still available after the emulator stopped, until it is started again.
+     */
+    public List<String> getEmulatorOutput(String avdName) {
+        return outputManager.getRecentOutput(avdName);
+    }
+
+    /**
+     * Gets the log file of an emulator started in LOG_FILE mode.
+     */
+    public Optional<Path> getEmulatorLogFile(String avdName) {
+        return outputManager.getLogFile(avdName);
     }
 
     /**
@@ -298,16 +777,21 @@ public class EmulatorService {
     }
 
     /**
-     * Gets the path to avdmanager executable.
+     * Applies a local change to the AVD index without waiting for the watcher.
      */
-    private Path getAvdManagerPath() {
-        String executable = "avdmanager" + PlatformUtils.getExecutableExtension();
-        Path path = sdkPath.resolve("cmdline-tools")
-            .resolve("latest")
-            .resolve("bin")
-            .resolve(executable);
+    private void refreshIndex(String avdName) {
+        if (avdIndex.isRunning()) {
+            avdIndex.refresh(avdName);
+        }
+    }
 
-        return Files.exists(path) ? path : null;
+    /**
+     * Stops watching the AVD home directories and releases background resources.
+     */
+    @Override
+    public void close() {
+        avdIndex.close();
+        outputManager.close();
     }
 
     /**
@@ -1,5 +1,8 @@
 package net.nicolamurtas.android.emulator.service;
 
+import net.nicolamurtas.android.emulator.util.DownloadCache;
+import net.nicolamurtas.android.emulator.util.HttpDownloader;
+import net.nicolamurtas.android.emulator.util.OutputCapture;
 import net.nicolamurtas.android.emulator.util.PlatformUtils;
 import net.nicolamurtas.android.emulator.util.ProcessExecutor;
 import org.slf4j.Logger;
@@ -7,13 +10,36 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.URI;
-import java.net.URL;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -22,6 +48,16 @@ import java.util.zip.ZipInputStream;
  */
 public class SdkDownloadService {
     private static final Logger logger = LoggerFactory.getLogger(SdkDownloadService.class);
+    private static final int TOOL_OUTPUT_TAIL_LINES = 100;
+    /** ABI of the system images installed and used for new AVDs. */
+    public static final String DEFAULT_ABI = "x86_64";
+    /** Files written when a package is installed, and only then. */
+    private static final Set<String> INSTALL_RECORDS = Set.of("package.xml", SdkIntegrityScanner.MANIFEST_FILE);
+    /** File in a package directory whose modification time is the last launch of an AVD using the package. */
+    private static final String LAST_USED_FILE = ".last-used";
+
+    /** sdkmanager progress bar, e.g. "[=====      ] 45% Downloading android-35_r02.zip..." */
+    private static final Pattern SDKMANAGER_PROGRESS_PATTERN = Pattern.compile("\\[[= ]*\\]\\s+(\\d{1,3})%\\s*(.*)");
 
     private static final String[] SDK_COMPONENTS = {
         "platform-tools",
@@ -43,6 +79,83 @@ public class SdkDownloadService {
         "build-tools;35.0.0"
     };
 
+    /** Installs in progress in this JVM, shared by every instance of this service. */
+    private static final Map<InstallKey, InFlightInstall> inFlightInstalls = new ConcurrentHashMap<>();
+
+    private record InstallKey(Path sdkPath, String component) {}
+
+    /** Components of the SDK installs and reconciles running in this JVM, with the number of them installing each. */
+    private static final Map<InstallKey, Integer> batchInstalls = new ConcurrentHashMap<>();
+
+    /**
+     * Installation shared by concurrent callers, forwarding progress to each of them.
+     */
+    private static final class InFlightInstall {
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        private final List<BiConsumer<Integer, String>> listeners = new CopyOnWriteArrayList<>();
+        private volatile int lastProgress = -1;
+        private volatile String lastMessage;
+
+        void addListener(BiConsumer<Integer, String> listener) {
+            if (listener != null) {
+                listeners.add(listener);
+                if (lastProgress >= 0) {
+                    listener.accept(lastProgress, lastMessage);
+                }
+            }
+        }
+
+        void progress(int progress, String message) {
+            lastMessage = message;
+            lastProgress = progress;
+            for (BiConsumer<Integer, String> listener : listeners) {
+                listener.accept(progress, message);
+            }
+        }
+    }
+
+    private final HttpDownloader httpDownloader;
+    private final SdkRepositoryClient repositoryClient;
+    private volatile boolean nativeInstallEnabled = true;
+    private volatile DownloadCache downloadCache;
+    private final SdkIntegrityScanner integrityScanner = new SdkIntegrityScanner();
+
+    public SdkDownloadService() {
+        this(new HttpDownloader());
+    }
+
+    public SdkDownloadService(HttpDownloader httpDownloader) {
+        this(httpDownloader, new SdkRepositoryClient(httpDownloader));
+    }
+
+    public SdkDownloadService(HttpDownloader httpDownloader, SdkRepositoryClient repositoryClient) {
+        this.httpDownloader = httpDownloader;
+        this.repositoryClient = repositoryClient;
+    }
+
+    /**
+     * Sets the cache of downloaded archives, shared with other SDK installations.
+     * Without one, every archive is downloaded.
+     *
+     * @param downloadCache Cache to use, or null to always download
+     */
+    public void setDownloadCache(DownloadCache downloadCache) {
+        this.downloadCache = downloadCache;
+        repositoryClient.setDownloadCache(downloadCache);
+    }
+
+    public DownloadCache getDownloadCache() {
+        return downloadCache;
+    }
+
+    /**
+     * Enables or disables installing components with the built-in repository client
+     * instead of sdkmanager. Components it cannot install still go through sdkmanager.
+     */
+    public void setNativeInstallEnabled(boolean enabled) {
+        this.nativeInstallEnabled = enabled;
+    }
+
     /**
      * Downloads and installs the Android SDK to the specified path with default components.
      *
@@ -73,33 +186,11 @@ public class SdkDownloadService {
         Files.createDirectories(sdkPath);
         updateProgress(progressCallback, 5, "Inizializzazione download...");
 
-        // Download command line tools
-        String downloadUrl = PlatformUtils.getSdkToolsDownloadUrl();
-        String fileName = PlatformUtils.getSdkToolsFileName();
-        Path downloadedFile = sdkPath.resolve(fileName);
-
-        logger.info("Downloading SDK tools from: {}", downloadUrl);
-        downloadFile(downloadUrl, downloadedFile, progressCallback);
-
-        updateProgress(progressCallback, 50, "Estrazione archivio...");
-        logger.info("Extracting archive...");
-
-        // Extract archive
+        // Download and extract command line tools in a single pass
         Path cmdlineToolsPath = sdkPath.resolve("cmdline-tools");
         Files.createDirectories(cmdlineToolsPath);
-        extractZip(downloadedFile, cmdlineToolsPath);
-
-        // Rename cmdline-tools/cmdline-tools to cmdline-tools/latest
-        Path extractedCmdTools = cmdlineToolsPath.resolve("cmdline-tools");
         Path latestPath = cmdlineToolsPath.resolve("latest");
-
-        if (Files.exists(extractedCmdTools)) {
-            if (Files.exists(latestPath)) {
-                deleteDirectory(latestPath);
-            }
-            Files.move(extractedCmdTools, latestPath);
-            logger.info("Renamed cmdline-tools directory to 'latest'");
-        }
+        installCmdlineTools(cmdlineToolsPath, latestPath, progressCallback);
 
         updateProgress(progressCallback, 70, "Configurazione permessi...");
 
@@ -109,9 +200,6 @@ public class SdkDownloadService {
             PlatformUtils.makeDirectoryExecutable(binPath);
         }
 
-        // Clean up downloaded archive
-        Files.deleteIfExists(downloadedFile);
-
         updateProgress(progressCallback, 80, "Installazione componenti SDK...");
         logger.info("Installing SDK components...");
 
@@ -120,127 +208,825 @@ public class SdkDownloadService {
 
         updateProgress(progressCallback, 100, "Completato!");
         logger.info("SDK installation completed successfully");
+        DownloadCache cache = downloadCache;
+        if (cache != null) {
+            DownloadCache.Stats stats = cache.getStats();
+            logger.info("Download cache: {} hits, {} misses, {} MB served from {}",
+                stats.hits(), stats.misses(), stats.bytesServed() / (1024 * 1024), cache.getDirectory());
+        }
     }
 
     /**
-     * Downloads a file from a URL with progress reporting.
+     * Changes needed to bring an SDK to a desired set of components.
+     *
+     * @param installs Components to install
+     * @param upgrades Installed components with a newer revision available
+     * @param removals Installed components to remove
+     * @param unchanged Components already up to date
+     * @param installCmdlineTools Whether the command line tools are missing
      */
-    private void downloadFile(String urlString, Path outputPath,
-                            BiConsumer<Integer, String> progressCallback) throws IOException {
-        URL url = URI.create(urlString).toURL();
+    public record SdkPlan(List<String> installs, List<String> upgrades, List<String> removals,
+                          List<String> unchanged, boolean installCmdlineTools) {
 
-        try (InputStream in = url.openStream();
-             FileOutputStream out = new FileOutputStream(outputPath.toFile())) {
+        public boolean isEmpty() {
+            return installs.isEmpty() && upgrades.isEmpty() && removals.isEmpty() && !installCmdlineTools;
+        }
+    }
 
-            long fileSize = url.openConnection().getContentLengthLong();
-            byte[] buffer = new byte[8192];
-            long totalBytesRead = 0;
-            int bytesRead;
+    /**
+     * Computes the changes needed to bring an SDK to a desired set of components.
+     * Without update checks this only reads the local package.xml files.
+     *
+     * @param sdkPath SDK installation path
+     * @param components Desired components
+     * @param checkForUpdates Whether to look up newer revisions of installed components in the repository
+     * @param removeUnlisted Whether to remove installed components that are not desired; command line tools are kept
+     */
+    public SdkPlan planSdk(Path sdkPath, List<String> components, boolean checkForUpdates, boolean removeUnlisted)
+            throws IOException, InterruptedException {
+        SdkInventory inventory = getInventory(sdkPath);
+        List<String> installs = new ArrayList<>();
+        List<String> upgrades = new ArrayList<>();
+        List<String> unchanged = new ArrayList<>();
+
+        for (String component : new LinkedHashSet<>(components)) {
+            if (component.startsWith("cmdline-tools;")) {
+                continue; // handled by installCmdlineTools
+            }
+            (inventory.isInstalled(component) ? unchanged : installs).add(component);
+        }
 
-            while ((bytesRead = in.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
-                totalBytesRead += bytesRead;
+        if (checkForUpdates && !unchanged.isEmpty()) {
+            Map<String, SdkRepositoryClient.RemotePackage> remote = repositoryClient.resolve(unchanged);
+            for (SdkRepositoryClient.RemotePackage remotePackage : remote.values()) {
+                String installedRevision = inventory.get(remotePackage.path()).orElseThrow().revision();
+                if (SdkRepositoryClient.compareRevisions(remotePackage.revision(), installedRevision) > 0) {
+                    logger.info("Update available for {}: {} -> {}",
+                        remotePackage.path(), installedRevision, remotePackage.revision());
+                    upgrades.add(remotePackage.path());
+                }
+            }
+            unchanged.removeAll(upgrades);
+        }
 
-                if (fileSize > 0) {
-                    int progress = (int) ((totalBytesRead * 40) / fileSize) + 5; // 5-45%
-                    String progressText = String.format("Download: %.1f MB / %.1f MB",
-                        totalBytesRead / 1024.0 / 1024.0,
-                        fileSize / 1024.0 / 1024.0);
-                    updateProgress(progressCallback, progress, progressText);
+        List<String> removals = new ArrayList<>();
+        if (removeUnlisted) {
+            for (String installed : inventory.getPackages().keySet()) {
+                if (!components.contains(installed) && !installed.startsWith("cmdline-tools;")) {
+                    removals.add(installed);
                 }
             }
         }
 
-        logger.info("Download completed: {}", outputPath.getFileName());
+        boolean installCmdlineTools = !Files.isRegularFile(sdkPath.resolve("cmdline-tools").resolve("latest")
+            .resolve("bin").resolve("sdkmanager" + PlatformUtils.getExecutableExtension()));
+        return new SdkPlan(installs, upgrades, removals, unchanged, installCmdlineTools);
+    }
+
+    /**
+     * Brings an SDK to a desired set of components, changing only what differs:
+     * missing components are installed, outdated ones upgraded and, if requested,
+     * unlisted ones removed. An up-to-date SDK is left untouched.
+     *
+     * @param sdkPath SDK installation path
+     * @param components Desired components
+     * @param checkForUpdates Whether to upgrade installed components with a newer revision available
+     * @param removeUnlisted Whether to remove installed components that are not desired
+     * @param progressCallback Callback for progress updates (progress 0-100, message)
+     * @return the executed plan
+     */
+    public SdkPlan reconcileSdk(Path sdkPath, List<String> components, boolean checkForUpdates, boolean removeUnlisted,
+                                BiConsumer<Integer, String> progressCallback) throws IOException, InterruptedException {
+        updateProgress(progressCallback, 2, "Analisi SDK installato...");
+        SdkPlan plan = planSdk(sdkPath, components, checkForUpdates, removeUnlisted);
+        logger.info("SDK plan for {}: install {}, upgrade {}, remove {}, cmdline-tools {}",
+            sdkPath, plan.installs(), plan.upgrades(), plan.removals(), plan.installCmdlineTools());
+
+        if (plan.isEmpty()) {
+            updateProgress(progressCallback, 100, "SDK già aggiornato");
+            return plan;
+        }
+
+        Files.createDirectories(sdkPath);
+        if (plan.installCmdlineTools()) {
+            Path cmdlineToolsPath = Files.createDirectories(sdkPath.resolve("cmdline-tools"));
+            Path latestPath = cmdlineToolsPath.resolve("latest");
+            installCmdlineTools(cmdlineToolsPath, latestPath, progressCallback);
+            if (!PlatformUtils.isWindows()) {
+                PlatformUtils.makeDirectoryExecutable(latestPath.resolve("bin"));
+            }
+        }
+
+        SdkInventory inventory = getInventory(sdkPath);
+        for (String component : plan.removals()) {
+            updateProgress(progressCallback, 75, "Rimozione: " + component);
+            Optional<SdkInventory.InstalledPackage> installed = inventory.get(component);
+            if (installed.isPresent()) {
+                deleteDirectory(installed.get().location());
+                logger.info("Removed {}", component);
+            }
+        }
+        if (!plan.removals().isEmpty()) {
+            SdkInventoryIndex.forSdk(sdkPath).invalidate();
+        }
+
+        List<String> changes = new ArrayList<>(plan.installs());
+        changes.addAll(plan.upgrades());
+        if (!changes.isEmpty()) {
+            updateProgress(progressCallback, 80, "Installazione componenti SDK...");
+            installSdkComponents(sdkPath, changes, progressCallback);
+        }
+
+        updateProgress(progressCallback, 100, "Completato!");
+        return plan;
+    }
+
+    /**
+     * Installed package that no AVD uses.
+     *
+     * @param path Package path, e.g. "system-images;android-30;google_apis;x86_64"
+     * @param location Package directory
+     * @param sizeBytes Size of the package's files
+     * @param lastUsed Last launch of an AVD using the package, or its install time if none was recorded
+     */
+    public record GcCandidate(String path, Path location, long sizeBytes, Instant lastUsed) {}
+
+    /**
+     * Outcome of an SDK garbage collection.
+     *
+     * @param candidates Unused packages, in removal order
+     * @param removed Candidates removed, or that would be removed in a dry run, to fit the budget
+     * @param sdkBytes Size of the installed packages before the collection
+     * @param reclaimedBytes Space freed, or that would be freed in a dry run
+     * @param dryRun Whether nothing was deleted
+     */
+    public record GcReport(List<GcCandidate> candidates, List<GcCandidate> removed, long sdkBytes,
+                           long reclaimedBytes, boolean dryRun) {}
+
+    /**
+     * Removes the system images and platforms that no AVD uses, until the installed
+     * packages fit a disk budget.
+     *
+     * An image is in use when an AVD's {@code config.ini} points to it with
+     * {@code image.sysdir.1}; the platform of its API level is then in use too.
+     * Unused packages are removed least recently used first and, among those used
+     * at the same time, largest first. A package is used when an AVD pointing to it
+     * is launched, see {@link #recordAvdLaunch}. Each package is moved out of the SDK
+     * layout before its files are deleted, and packages are deleted in parallel.
+     *
+     * @param sdkPath SDK installation path
+     * @param avdInventory AVDs to keep the images of
+     * @param diskBudgetBytes Size the installed packages may take; 0 removes every unused package
+     * @param dryRun Whether to only report what would be removed
+     * @throws IOException If an AVD's system image cannot be determined, nothing is removed then
+     */
+    public GcReport collectGarbage(Path sdkPath, AvdInventory avdInventory, long diskBudgetBytes, boolean dryRun)
+            throws IOException {
+        SdkInventory inventory = getInventory(sdkPath);
+        Usage usage = findUsage(sdkPath, inventory, avdInventory);
+
+        // Sizes and last use of every package, to know how much the SDK takes
+        List<GcCandidate> measured;
+        try {
+            measured = inventory.getPackages().values().parallelStream()
+                .map(installed -> {
+                    try {
+                        return measure(installed);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .toList();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        long sdkBytes = measured.stream().mapToLong(GcCandidate::sizeBytes).sum();
+
+        List<GcCandidate> candidates = new ArrayList<>();
+        for (GcCandidate candidate : measured) {
+            if (usage.isRemovable(candidate.path(), candidate.location())) {
+                candidates.add(candidate);
+            }
+        }
+        candidates.sort(Comparator.comparing(GcCandidate::lastUsed)
+            .thenComparing(Comparator.comparingLong(GcCandidate::sizeBytes).reversed()));
+
+        List<GcCandidate> selected = new ArrayList<>();
+        long remaining = sdkBytes;
+        for (GcCandidate candidate : candidates) {
+            if (remaining <= diskBudgetBytes && diskBudgetBytes > 0) {
+                break;
+            }
+            selected.add(candidate);
+            remaining -= candidate.sizeBytes();
+        }
+
+        long reclaimed = selected.stream().mapToLong(GcCandidate::sizeBytes).sum();
+        if (!dryRun && !selected.isEmpty()) {
+            removePackages(sdkPath, selected);
+        }
+        logger.info("SDK garbage collection{} in {}: {} unused packages, {} {} ({} MB of {} MB)",
+            dryRun ? " (dry run)" : "", sdkPath, candidates.size(), dryRun ? "would remove" : "removed",
+            selected.size(), reclaimed / (1024 * 1024), sdkBytes / (1024 * 1024));
+        return new GcReport(candidates, selected, sdkBytes, reclaimed, dryRun);
+    }
+
+    /**
+     * Removes packages picked by a dry run of {@link #collectGarbage}, e.g. once the user confirmed them.
+     *
+     * AVDs or installs may have started using a package since the dry run, so each one is
+     * checked again and only those still installed at the same location and still unused
+     * are removed.
+     *
+     * @param sdkPath SDK installation path
+     * @param avdInventory AVDs to keep the images of
+     * @param confirmed Candidates to remove
+     * @return Candidates removed
+     * @throws IOException If an AVD's system image cannot be determined, nothing is removed then
+     */
+    public List<GcCandidate> removeCandidates(Path sdkPath, AvdInventory avdInventory, List<GcCandidate> confirmed)
+            throws IOException {
+        SdkInventory inventory = getInventory(sdkPath);
+        Usage usage = findUsage(sdkPath, inventory, avdInventory);
+
+        List<GcCandidate> removable = new ArrayList<>();
+        for (GcCandidate candidate : confirmed) {
+            SdkInventory.InstalledPackage installed = inventory.getPackages().get(candidate.path());
+            if (installed == null || !installed.location().equals(candidate.location())) {
+                logger.info("Package {} changed since it was picked, keeping it", candidate.path());
+            } else if (!usage.isRemovable(candidate.path(), candidate.location())) {
+                logger.info("Package {} is in use now, keeping it", candidate.path());
+            } else {
+                removable.add(candidate);
+            }
+        }
+
+        if (!removable.isEmpty()) {
+            removePackages(sdkPath, removable);
+        }
+        logger.info("SDK garbage collection in {}: removed {} of {} confirmed packages ({} MB)", sdkPath,
+            removable.size(), confirmed.size(),
+            removable.stream().mapToLong(GcCandidate::sizeBytes).sum() / (1024 * 1024));
+        return removable;
+    }
+
+    /**
+     * Packages the AVDs and the running installs of an SDK use.
+     *
+     * @param images System image directories the AVDs point to
+     * @param apiLevels API levels of those images, whose platforms are in use too
+     * @param installing Packages being installed
+     */
+    private record Usage(Set<Path> images, Set<String> apiLevels, Set<String> installing) {
+
+        /**
+         * Checks that a package is a system image or platform nothing uses.
+         */
+        boolean isRemovable(String path, Path location) {
+            String[] segments = path.split(";");
+            boolean unused = switch (segments[0]) {
+                case "system-images" -> !images.contains(location.toAbsolutePath().normalize());
+                case "platforms" -> !apiLevels.contains(segments[1]);
+                default -> false;
+            };
+            return unused && !installing.contains(path);
+        }
+    }
+
+    private Usage findUsage(Path sdkPath, SdkInventory inventory, AvdInventory avdInventory) throws IOException {
+        Set<Path> usedImages = new HashSet<>();
+        Set<String> usedApiLevels = new HashSet<>();
+        for (EmulatorService.AvdInfo avd : avdInventory.scan()) {
+            Path image = findImageDirectory(sdkPath, Path.of(avd.path()));
+            if (image == null) {
+                throw new IOException("Cannot tell which system image AVD " + avd.name() + " uses");
+            }
+            usedImages.add(image);
+            inventory.getPackages().values().stream()
+                .filter(installed -> installed.location().toAbsolutePath().normalize().equals(image))
+                .findFirst()
+                .ifPresent(installed -> usedApiLevels.add(installed.path().split(";")[1]));
+        }
+
+        Path root = sdkPath.toAbsolutePath().normalize();
+        Set<String> installing = new HashSet<>();
+        Stream.concat(inFlightInstalls.keySet().stream(), batchInstalls.keySet().stream())
+            .filter(key -> key.sdkPath().equals(root))
+            .forEach(key -> installing.add(key.component()));
+        return new Usage(usedImages, usedApiLevels, installing);
+    }
+
+    /**
+     * Gets the system image directory an AVD's {@code config.ini} points to, or null if it has none.
+     */
+    private static Path findImageDirectory(Path sdkPath, Path avdDir) throws IOException {
+        Path configIni = avdDir.resolve("config.ini");
+        String sysdir = Files.isRegularFile(configIni) ? AvdInventory.readIni(configIni).get("image.sysdir.1") : null;
+        if (sysdir == null || sysdir.isBlank()) {
+            return null;
+        }
+        return sdkPath.resolve(sysdir.replace('\\', '/')).toAbsolutePath().normalize();
     }
 
     /**
-     * Extracts a ZIP archive.
+     * Records that an AVD is being launched, as a use of its system image and platform.
      */
-    private void extractZip(Path zipPath, Path destPath) throws IOException {
-        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipPath.toFile()))) {
-            ZipEntry entry;
-            while ((entry = zis.getNextEntry()) != null) {
-                Path entryPath = destPath.resolve(entry.getName());
+    public void recordAvdLaunch(Path sdkPath, Path avdDir) throws IOException {
+        recordUse(sdkPath, avdDir, FileTime.from(Instant.now()));
+    }
 
-                // Security check: prevent zip slip vulnerability
-                if (!entryPath.normalize().startsWith(destPath.normalize())) {
-                    throw new IOException("Zip entry is outside target directory: " + entry.getName());
+    /**
+     * Records the last launch of an AVD about to be deleted, as a use of its system image
+     * and platform. The emulator rewrites files of the AVD directory at every launch, the
+     * latest of their modification times is taken.
+     */
+    public void recordAvdRemoval(Path sdkPath, Path avdDir) throws IOException {
+        FileTime lastLaunch = FileTime.fromMillis(0);
+        try (Stream<Path> files = Files.list(avdDir)) {
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                FileTime modified = Files.getLastModifiedTime(file);
+                if (modified.compareTo(lastLaunch) > 0) {
+                    lastLaunch = modified;
                 }
+            }
+        }
+        recordUse(sdkPath, avdDir, lastLaunch);
+    }
+
+    private void recordUse(Path sdkPath, Path avdDir, FileTime time) throws IOException {
+        Path image = findImageDirectory(sdkPath, avdDir);
+        if (image == null) {
+            return;
+        }
+        Optional<SdkInventory.InstalledPackage> installed = getInventory(sdkPath).getPackages().values().stream()
+            .filter(candidate -> candidate.location().toAbsolutePath().normalize().equals(image))
+            .findFirst();
+        if (installed.isEmpty()) {
+            return;
+        }
+        touchLastUsed(image, time);
+        Path platform = sdkPath.resolve("platforms").resolve(installed.get().path().split(";")[1]);
+        if (Files.isDirectory(platform)) {
+            touchLastUsed(platform, time);
+        }
+    }
+
+    /**
+     * Moves the last use of a package forward to the given time.
+     */
+    private static void touchLastUsed(Path packageDir, FileTime time) throws IOException {
+        Path marker = packageDir.resolve(LAST_USED_FILE);
+        if (Files.exists(marker) && Files.getLastModifiedTime(marker).compareTo(time) >= 0) {
+            return;
+        }
+        if (!Files.exists(marker)) {
+            Files.createFile(marker);
+        }
+        Files.setLastModifiedTime(marker, time);
+    }
 
-                if (entry.isDirectory()) {
-                    Files.createDirectories(entryPath);
-                } else {
-                    Files.createDirectories(entryPath.getParent());
-                    Files.copy(zis, entryPath, StandardCopyOption.REPLACE_EXISTING);
+    private static GcCandidate measure(SdkInventory.InstalledPackage installed) throws IOException {
+        long[] size = {0};
+        FileTime[] lastUsed = {FileTime.fromMillis(0)};
+        Files.walkFileTree(installed.location(), new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                size[0] += attrs.size();
+                // Reading a package, e.g. to verify it, is no use; only installs and AVD launches count
+                String name = file.getFileName().toString();
+                boolean record = INSTALL_RECORDS.contains(name) || name.equals(LAST_USED_FILE);
+                if (record && file.getParent().equals(installed.location())
+                        && attrs.lastModifiedTime().compareTo(lastUsed[0]) > 0) {
+                    lastUsed[0] = attrs.lastModifiedTime();
                 }
-                zis.closeEntry();
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return new GcCandidate(installed.path(), installed.location(), size[0], lastUsed[0].toInstant());
+    }
+
+    /**
+     * Deletes packages in parallel. Each one is first moved into the SDK temp directory,
+     * so an interrupted deletion never leaves a half-deleted package installed.
+     */
+    private void removePackages(Path sdkPath, List<GcCandidate> packages) throws IOException {
+        Path trash = Files.createTempDirectory(Files.createDirectories(sdkPath.resolve(".temp")), "gc-");
+        try {
+            for (int i = 0; i < packages.size(); i++) {
+                Files.move(packages.get(i).location(), trash.resolve(String.valueOf(i)), StandardCopyOption.ATOMIC_MOVE);
+                logger.info("Removing unused package {}", packages.get(i).path());
             }
+        } finally {
+            SdkInventoryIndex.forSdk(sdkPath).invalidate();
+            try (Stream<Path> moved = Files.list(trash)) {
+                moved.toList().parallelStream().forEach(dir -> {
+                    try {
+                        deleteDirectory(dir);
+                    } catch (IOException e) {
+                        logger.warn("Failed to delete {}", dir, e);
+                    }
+                });
+            }
+            Files.deleteIfExists(trash);
         }
     }
 
     /**
-     * Installs SDK components using sdkmanager.
+     * Streams the command line tools archive straight into the extractor, so
+     * download and extraction overlap and the zip never touches the disk.
+     *
+     * The SHA-1 is computed on the same bytes and checked against the repository
+     * manifest before the tools replace the previous installation.
+     */
+    private void installCmdlineTools(Path cmdlineToolsPath, Path latestPath,
+                                     BiConsumer<Integer, String> progressCallback) throws IOException, InterruptedException {
+        URI downloadUri = URI.create(PlatformUtils.getSdkToolsDownloadUrl());
+        logger.info("Downloading SDK tools from: {}", downloadUri);
+
+        // Fetch the published checksum while the archive streams in
+        CompletableFuture<Optional<SdkRepositoryClient.Archive>> published = CompletableFuture.supplyAsync(() -> {
+            try {
+                return repositoryClient.findArchive(downloadUri);
+            } catch (IOException e) {
+                logger.warn("Cannot read the checksum of {}: {}", downloadUri, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Optional.empty();
+        }, Thread.ofVirtual()::start);
+
+        DownloadCache cache = downloadCache;
+        Optional<Path> cached = Optional.empty();
+        if (cache != null) {
+            // The URL is versioned, so the hash recorded by the last download finds the archive without the manifest
+            Optional<String> knownSha1 = cache.findUrl(downloadUri);
+            if (knownSha1.isPresent()) {
+                cached = cache.lookup(knownSha1.get(), -1);
+            }
+        }
+
+        Path staging = Files.createTempDirectory(cmdlineToolsPath, ".staging-");
+        Path cacheFile = null;
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            AtomicLong received = new AtomicLong();
+            AtomicInteger lastProgress = new AtomicInteger(-1);
+            HttpDownloader.ProgressListener listener = (totalBytesRead, fileSize) -> {
+                received.set(totalBytesRead);
+                if (fileSize > 0) {
+                    int progress = (int) ((totalBytesRead * 60) / fileSize) + 5; // 5-65%
+                    if (lastProgress.getAndSet(progress) != progress) {
+                        String progressText = String.format("Download ed estrazione: %.1f MB / %.1f MB",
+                            totalBytesRead / 1024.0 / 1024.0,
+                            fileSize / 1024.0 / 1024.0);
+                        updateProgress(progressCallback, progress, progressText);
+                    }
+                }
+            };
+
+            InputStream source;
+            if (cached.isPresent()) {
+                logger.info("Using cached SDK tools archive");
+                source = Files.newInputStream(cached.get());
+                received.set(Files.size(cached.get()));
+            } else {
+                source = httpDownloader.openStream(downloadUri, listener);
+                if (cache != null) {
+                    // Keep a copy for the cache while extracting; without one the download goes on uncached
+                    Path copy = null;
+                    try {
+                        copy = cache.createTempFile();
+                        source = new TeeInputStream(source, new BufferedOutputStream(Files.newOutputStream(copy)));
+                        cacheFile = copy;
+                    } catch (IOException e) {
+                        logger.warn("Cannot cache the SDK tools archive: {}", e.getMessage());
+                        deleteQuietly(copy);
+                    }
+                }
+            }
+
+            try (InputStream in = new DigestInputStream(source, sha1)) {
+                extractZip(in, staging);
+                // The central directory follows the entries and is part of the checksum
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+
+            String actualSha1 = HexFormat.of().formatHex(sha1.digest());
+            Optional<SdkRepositoryClient.Archive> archive = published.join();
+            if (archive.isPresent()) {
+                if (archive.get().size() != received.get() || !archive.get().sha1().equalsIgnoreCase(actualSha1)) {
+                    throw new IOException("Checksum mismatch for " + downloadUri
+                        + " (size " + received.get() + ", sha1 " + actualSha1 + ")");
+                }
+                logger.info("Verified SDK tools archive (sha1 {})", actualSha1);
+                if (cacheFile != null) {
+                    cache.store(actualSha1, cacheFile);
+                    cacheFile = null;
+                    cache.recordUrl(downloadUri, actualSha1);
+                }
+            } else {
+                logger.warn("No published checksum for {}, sha1 is {}", downloadUri, actualSha1);
+            }
+
+            // The archive has a single cmdline-tools directory, installed as cmdline-tools/latest
+            Path extractedCmdTools = staging.resolve("cmdline-tools");
+            if (!Files.isDirectory(extractedCmdTools)) {
+                throw new IOException("Unexpected layout of " + downloadUri);
+            }
+            if (Files.exists(latestPath)) {
+                deleteDirectory(latestPath);
+            }
+            Files.move(extractedCmdTools, latestPath);
+            logger.info("Installed cmdline-tools into 'latest'");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 not available", e);
+        } finally {
+            deleteDirectory(staging);
+            if (cacheFile != null) {
+                Files.deleteIfExists(cacheFile);
+            }
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.debug("Failed to delete {}", file, e);
+        }
+    }
+
+    /**
+     * Extracts a ZIP archive from a stream.
+     */
+    private void extractZip(InputStream in, Path destPath) throws IOException {
+        ZipInputStream zis = new ZipInputStream(in);
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            Path entryPath = destPath.resolve(entry.getName());
+
+            // Security check: prevent zip slip vulnerability
+            if (!entryPath.normalize().startsWith(destPath.normalize())) {
+                throw new IOException("Zip entry is outside target directory: " + entry.getName());
+            }
+
+            if (entry.isDirectory()) {
+                Files.createDirectories(entryPath);
+            } else {
+                Files.createDirectories(entryPath.getParent());
+                Files.copy(zis, entryPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            zis.closeEntry();
+        }
+    }
+
+    /**
+     * Installs SDK components, downloading them directly from the repository when possible.
+     * Only called on the download path, where the user accepted the SDK license.
      */
     private void installSdkComponents(Path sdkPath, List<String> components, BiConsumer<Integer, String> progressCallback)
             throws IOException, InterruptedException {
 
-        Path sdkManagerPath = getSdkManagerPath(sdkPath);
+        // Garbage collection must not remove what is being installed
+        Path root = sdkPath.toAbsolutePath().normalize();
+        List<InstallKey> keys = components.stream().map(component -> new InstallKey(root, component)).toList();
+        keys.forEach(key -> batchInstalls.merge(key, 1, Integer::sum));
+        try {
+            // Write the acceptance files directly, the repository client only installs packages under accepted licenses
+            SdkLicenses licenses = new SdkLicenses(sdkPath);
+            licenses.acceptKnownLicenses();
+
+            List<String> remaining = components;
+            if (nativeInstallEnabled) {
+                // Fetch archives in parallel without sdkmanager, it only handles what is left
+                try {
+                    remaining = repositoryClient.install(sdkPath, components, 80, 90, progressCallback);
+                } catch (IOException e) {
+                    logger.warn("Native repository install failed, falling back to sdkmanager", e);
+                }
+                if (remaining.isEmpty()) {
+                    SdkInventoryIndex.forSdk(sdkPath).invalidate();
+                    logger.info("SDK components installation completed");
+                    return;
+                }
+                logger.info("Installing {} components with sdkmanager: {}", remaining.size(), remaining);
+            }
+
+            installWithSdkManager(sdkPath, remaining, progressCallback);
+        } finally {
+            keys.forEach(key -> batchInstalls.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null));
+        }
+    }
+
+    /**
+     * Installs SDK components using sdkmanager.
+     */
+    private void installWithSdkManager(Path sdkPath, List<String> components, BiConsumer<Integer, String> progressCallback)
+            throws IOException, InterruptedException {
 
-        if (sdkManagerPath == null || !Files.exists(sdkManagerPath)) {
+        CmdlineToolsRunner runner = new CmdlineToolsRunner(sdkPath);
+        if (runner.getScriptPath(CmdlineToolsRunner.Tool.SDKMANAGER) == null) {
             throw new IOException("sdkmanager not found in: " + sdkPath);
         }
 
-        Map<String, String> env = Map.of(
-            "ANDROID_HOME", sdkPath.toString(),
-            "ANDROID_SDK_ROOT", sdkPath.toString()
-        );
+        // The acceptance files are written already, sdkmanager --licenses is only needed for licenses we do not know
+        List<String> missingLicenses = new SdkLicenses(sdkPath).getMissingLicenses();
+        if (!missingLicenses.isEmpty()) {
+            logger.warn("Could not record SDK licenses: {}", missingLicenses);
+            acceptLicensesWithSdkManager(runner);
+        }
+
+        // Install in as few sdkmanager runs as possible
+        List<String> failed = new ArrayList<>();
+        List<List<String>> batches = partitionBatches(components);
+        int batchStart = 80;
+        for (List<String> batch : batches) {
+            int batchEnd = batchStart + 15 * batch.size() / components.size();
+            failed.addAll(installBatch(runner, sdkPath, batch, batchStart, batchEnd, progressCallback));
+            batchStart = batchEnd;
+        }
+
+        // A package under a license we do not know fails too, accept it before retrying
+        if (!failed.isEmpty() && missingLicenses.isEmpty()) {
+            acceptLicensesWithSdkManager(runner);
+        }
+
+        // A single unknown package makes sdkmanager reject the whole run, retry failures alone
+        for (String component : failed) {
+            logger.info("Retrying component on its own: {}", component);
+            updateProgress(progressCallback, 95, "Installazione " + component + "...");
 
-        // Accept licenses
-        logger.info("Accepting SDK licenses...");
-        ProcessExecutor.ExecutionResult licenseResult = ProcessExecutor.execute(
-            sdkPath,
-            env,
-            10,
+            ProcessExecutor.ExecutionResult result = ProcessExecutor.await(runner.run(
+                CmdlineToolsRunner.Tool.SDKMANAGER,
+                Duration.ofMinutes(30), // 30 minutes timeout per component
+                null,
+                OutputCapture.tailLines(TOOL_OUTPUT_TAIL_LINES),
+                OutputCapture.tailLines(TOOL_OUTPUT_TAIL_LINES),
+                component
+            ));
+
+            if (result.isSuccess() && isComponentInstalled(sdkPath, component)) {
+                recordManifest(sdkPath, component);
+                logger.info("Successfully installed: {}", component);
+                updateProgress(progressCallback, 95, "Installato: " + component);
+            } else {
+                logger.error("Failed to install component: {}", component);
+                logger.error("Errors: {}", result.errors());
+                updateProgress(progressCallback, 95, "Errore installazione: " + component);
+            }
+        }
+
+        SdkInventoryIndex.forSdk(sdkPath).invalidate();
+        logger.info("SDK components installation completed");
+    }
+
+    /**
+     * Installs a group of components with a single sdkmanager run, forwarding its
+     * progress bar and reporting the outcome of each component.
+     *
+     * @return the components that are not installed afterwards
+     */
+    private List<String> installBatch(CmdlineToolsRunner runner, Path sdkPath, List<String> batch,
+                                      int progressStart, int progressEnd,
+                                      BiConsumer<Integer, String> progressCallback)
+            throws IOException, InterruptedException {
+
+        logger.info("Installing {} components in one sdkmanager run: {}", batch.size(), batch);
+        updateProgress(progressCallback, progressStart, "Installazione " + batch.size() + " componenti...");
+
+        AtomicInteger lastPercent = new AtomicInteger(-1);
+        ProcessExecutor.ExecutionResult result = ProcessExecutor.await(runner.run(
+            CmdlineToolsRunner.Tool.SDKMANAGER,
+            Duration.ofMinutes(30L * batch.size()),
+            null,
+            OutputCapture.tailLines(TOOL_OUTPUT_TAIL_LINES),
+            OutputCapture.tailLines(TOOL_OUTPUT_TAIL_LINES),
+            line -> {
+                Matcher matcher = SDKMANAGER_PROGRESS_PATTERN.matcher(line);
+                if (matcher.find()) {
+                    int percent = Integer.parseInt(matcher.group(1));
+                    // The bar is redrawn many times per percent, only forward changes
+                    if (lastPercent.getAndSet(percent) != percent) {
+                        String message = matcher.group(2).isBlank() ? "Installazione componenti SDK..." : matcher.group(2);
+                        updateProgress(progressCallback,
+                            progressStart + (progressEnd - progressStart) * percent / 100, message);
+                    }
+                } else if (line.startsWith("Warning:") || line.startsWith("Error:")) {
+                    logger.warn("sdkmanager: {}", line);
+                }
+            },
+            batch.toArray(String[]::new)
+        ));
+
+        if (!result.isSuccess()) {
+            logger.warn("sdkmanager batch exited with code {}: {}", result.exitCode(), result.errors());
+        }
+
+        List<String> failed = new ArrayList<>();
+        for (String component : batch) {
+            if (isComponentInstalled(sdkPath, component)) {
+                recordManifest(sdkPath, component);
+                logger.info("Successfully installed: {}", component);
+                updateProgress(progressCallback, progressEnd, "Installato: " + component);
+            } else {
+                failed.add(component);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Accepts every pending license through {@code sdkmanager --licenses}.
+     */
+    private void acceptLicensesWithSdkManager(CmdlineToolsRunner runner) throws IOException, InterruptedException {
+        logger.info("Accepting SDK licenses with sdkmanager...");
+        ProcessExecutor.ExecutionResult licenseResult = ProcessExecutor.await(runner.run(
+            CmdlineToolsRunner.Tool.SDKMANAGER,
+            Duration.ofMinutes(10),
             writer -> {
                 // Send 'y' multiple times to accept all licenses
                 for (int i = 0; i < 20; i++) {
                     writer.println("y");
                 }
             },
-            sdkManagerPath.toString(), "--licenses"
-        );
+            OutputCapture.tailLines(TOOL_OUTPUT_TAIL_LINES),
+            OutputCapture.tailLines(TOOL_OUTPUT_TAIL_LINES),
+            "--licenses"
+        ));
 
         if (!licenseResult.isSuccess()) {
             logger.warn("License acceptance may have failed, continuing anyway");
         }
+    }
 
-        // Install each component
-        int componentIndex = 0;
+    /**
+     * Groups components that can be installed together. cmdline-tools packages replace
+     * the sdkmanager that is running, so they get a run of their own, after the rest.
+     */
+    private List<List<String>> partitionBatches(List<String> components) {
+        List<String> regular = new ArrayList<>();
+        List<String> tools = new ArrayList<>();
         for (String component : components) {
-            logger.info("Installing component: {}", component);
-            int progress = 80 + (componentIndex * 15 / components.size());
-            updateProgress(progressCallback, progress, "Installazione " + component + "...");
-
-            ProcessExecutor.ExecutionResult result = ProcessExecutor.execute(
-                sdkPath,
-                env,
-                30, // 30 minutes timeout per component
-                null,
-                sdkManagerPath.toString(), component
-            );
+            (component.startsWith("cmdline-tools;") ? tools : regular).add(component);
+        }
 
-            if (result.isSuccess()) {
-                logger.info("Successfully installed: {}", component);
-            } else {
-                logger.error("Failed to install component: {}", component);
-                logger.error("Errors: {}", result.errors());
-            }
+        List<List<String>> batches = new ArrayList<>();
+        if (!regular.isEmpty()) {
+            batches.add(regular);
+        }
+        if (!tools.isEmpty()) {
+            batches.add(tools);
+        }
+        return batches;
+    }
 
-            componentIndex++;
+    /**
+     * Checks if a component is installed, e.g. "platforms;android-35" maps to
+     * platforms/android-35/package.xml. Reads the disk rather than the inventory
+     * index, since it runs right after installs the watcher may not have seen yet.
+     */
+    private boolean isComponentInstalled(Path sdkPath, String component) {
+        return Files.exists(packageDirectory(sdkPath, component).resolve("package.xml"));
+    }
+
+    private static Path packageDirectory(Path sdkPath, String component) {
+        Path packagePath = sdkPath;
+        for (String segment : component.split(";")) {
+            packagePath = packagePath.resolve(segment);
         }
+        return packagePath;
+    }
 
-        logger.info("SDK components installation completed");
+    /**
+     * Records the integrity manifest of a component installed by sdkmanager, which
+     * does not write one, so that later verifications can detect damage.
+     */
+    private void recordManifest(Path sdkPath, String component) {
+        try {
+            integrityScanner.writeManifest(packageDirectory(sdkPath, component));
+        } catch (IOException e) {
+            logger.warn("Cannot record the integrity manifest of {}", component, e);
+        }
+    }
+
+    /**
+     * Verifies the installed packages of an SDK against the manifests recorded at
+     * install time, hashing every file.
+     *
+     * @param sdkPath SDK installation path
+     * @param progressCallback Optional callback for progress updates (progress 0-100, message)
+     */
+    public SdkIntegrityScanner.Report verifySdk(Path sdkPath, BiConsumer<Integer, String> progressCallback)
+            throws IOException {
+        return integrityScanner.scan(sdkPath, progressCallback);
     }
 
     /**
@@ -252,68 +1038,210 @@ public class SdkDownloadService {
      */
     public boolean installSingleComponent(Path sdkPath, String component)
             throws IOException, InterruptedException {
+        return ProcessExecutor.await(installSingleComponentAsync(sdkPath, component));
+    }
 
-        logger.info("Installing single component: {}", component);
+    /**
+     * Installs a single SDK component without blocking the caller.
+     *
+     * @param sdkPath SDK installation path
+     * @param component Component to install (e.g., "platforms;android-35")
+     * @return future completing with true if installation was successful
+     */
+    public CompletableFuture<Boolean> installSingleComponentAsync(Path sdkPath, String component) {
+        return installComponentAsync(sdkPath, component, null);
+    }
 
-        Path sdkManagerPath = getSdkManagerPath(sdkPath);
-        if (sdkManagerPath == null || !Files.exists(sdkManagerPath)) {
-            throw new IOException("sdkmanager not found in: " + sdkPath);
+    /**
+     * Installs a single SDK component without blocking the caller, sharing the work
+     * with concurrent requests for the same component in the same SDK from any
+     * instance of this service. Late callers get the last progress update replayed,
+     * then every following one. An installed component completes immediately.
+     *
+     * @param sdkPath SDK installation path
+     * @param component Component to install (e.g., "platforms;android-35")
+     * @param progressCallback Optional callback for this caller (progress 0-100, message)
+     * @return future completing with true if installation was successful; cancelling it
+     *         does not stop the installation for other callers
+     */
+    public CompletableFuture<Boolean> installComponentAsync(Path sdkPath, String component,
+                                                            BiConsumer<Integer, String> progressCallback) {
+        // Finished installations are served from their package.xml, also when another process did them
+        if (isComponentInstalled(sdkPath, component)) {
+            updateProgress(progressCallback, 100, "Installato: " + component);
+            return CompletableFuture.completedFuture(true);
         }
 
-        Map<String, String> env = Map.of(
-            "ANDROID_HOME", sdkPath.toString(),
-            "ANDROID_SDK_ROOT", sdkPath.toString()
-        );
+        InstallKey key = new InstallKey(sdkPath.toAbsolutePath().normalize(), component);
+        InFlightInstall[] created = new InFlightInstall[1];
+        InFlightInstall install = inFlightInstalls.computeIfAbsent(key, k -> created[0] = new InFlightInstall());
+        install.addListener(progressCallback);
 
-        ProcessExecutor.ExecutionResult result = ProcessExecutor.execute(
-            sdkPath,
-            env,
-            30,
-            null,
-            sdkManagerPath.toString(), component
-        );
+        if (install == created[0]) {
+            logger.info("Installing single component: {}", component);
+            Thread.ofVirtual().name("install-" + component).start(() -> {
+                boolean success = false;
+                try {
+                    // An installation that just finished may have removed its entry after our first check
+                    if (isComponentInstalled(sdkPath, component)) {
+                        success = true;
+                        install.progress(100, "Installato: " + component);
+                        return;
+                    }
+                    success = installComponent(sdkPath, component, install::progress);
+                    SdkInventoryIndex.forSdk(sdkPath).invalidate();
+                    if (success) {
+                        logger.info("Successfully installed: {}", component);
+                    } else {
+                        logger.error("Failed to install component: {}", component);
+                    }
+                } catch (IOException e) {
+                    logger.error("Failed to install component: {}", component, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    inFlightInstalls.remove(key, install);
+                    install.future.complete(success);
+                }
+            });
+        } else {
+            logger.info("Joining the installation of {} already in progress", component);
+        }
+
+        // Each caller gets its own future, so one of them cancelling leaves the others waiting
+        return install.future.copy();
+    }
 
-        if (result.isSuccess()) {
-            logger.info("Successfully installed: {}", component);
+    /**
+     * Downloads the archives of components into the download cache in the background,
+     * so that installing them later does not wait for the network. Installed components
+     * are skipped; without a download cache nothing is fetched.
+     *
+     * @param sdkPath SDK installation path
+     * @param components Components likely to be installed soon (e.g., "platforms;android-35")
+     * @return handle to cancel the prefetch
+     */
+    public SdkRepositoryClient.Prefetch prefetchComponents(Path sdkPath, List<String> components) {
+        List<String> missing = components.stream()
+            .filter(component -> !isComponentInstalled(sdkPath, component))
+            .toList();
+        if (!nativeInstallEnabled || downloadCache == null || missing.isEmpty()) {
+            return SdkRepositoryClient.Prefetch.NONE;
+        }
+        return repositoryClient.prefetch(missing);
+    }
+
+    /**
+     * Installs a component from the repository, or with sdkmanager if that is not possible.
+     */
+    private boolean installComponent(Path sdkPath, String component, BiConsumer<Integer, String> progressCallback)
+            throws IOException, InterruptedException {
+        List<String> remaining = List.of(component);
+        if (nativeInstallEnabled) {
+            try {
+                remaining = repositoryClient.install(sdkPath, remaining, 0, 95, progressCallback);
+            } catch (IOException e) {
+                logger.warn("Native repository install failed, falling back to sdkmanager", e);
+            }
+        }
+        if (remaining.isEmpty()) {
             return true;
-        } else {
-            logger.error("Failed to install component: {}", component);
+        }
+
+        AtomicInteger lastPercent = new AtomicInteger(-1);
+        ProcessExecutor.ExecutionResult result = ProcessExecutor.await(new CmdlineToolsRunner(sdkPath).run(
+            CmdlineToolsRunner.Tool.SDKMANAGER,
+            Duration.ofMinutes(30),
+            null,
+            OutputCapture.tailLines(TOOL_OUTPUT_TAIL_LINES),
+            OutputCapture.tailLines(TOOL_OUTPUT_TAIL_LINES),
+            line -> {
+                Matcher matcher = SDKMANAGER_PROGRESS_PATTERN.matcher(line);
+                if (matcher.find()) {
+                    int percent = Integer.parseInt(matcher.group(1));
+                    if (lastPercent.getAndSet(percent) != percent) {
+                        updateProgress(progressCallback, percent * 95 / 100,
+                            matcher.group(2).isBlank() ? "Installazione " + component + "..." : matcher.group(2));
+                    }
+                }
+            },
+            // Also the dependencies the native install could not fetch
+            remaining.toArray(String[]::new)
+        ));
+        if (!result.isSuccess()) {
             logger.error("Errors: {}", result.errors());
+            // Licenses are only accepted by the user, see acceptLicenses
+            List<String> missingLicenses = getMissingLicenses(sdkPath, remaining);
+            if (!missingLicenses.isEmpty()) {
+                logger.error("SDK licenses not accepted: {}", missingLicenses);
+            }
+            return false;
+        }
+        if (!isComponentInstalled(sdkPath, component)) {
             return false;
         }
+        recordManifest(sdkPath, component);
+        return true;
     }
 
     /**
-     * Checks if a specific API level is installed.
+     * Gets the licenses that installing components on demand needs and that are not
+     * accepted yet, from the packages and dependencies the repository lists for them.
      *
      * @param sdkPath SDK installation path
-     * @param apiLevel API level to check (e.g., "35")
-     * @return true if both platform and system image are installed
+     * @param components Components to install; installed ones need nothing
      */
-    public boolean isApiLevelInstalled(Path sdkPath, String apiLevel) {
-        Path platformPath = sdkPath.resolve("platforms").resolve("android-" + apiLevel);
-        Path systemImagePath = sdkPath.resolve("system-images")
-            .resolve("android-" + apiLevel)
-            .resolve("google_apis")
-            .resolve("x86_64");
-
-        boolean platformExists = Files.exists(platformPath);
-        boolean systemImageExists = Files.exists(systemImagePath);
+    public List<String> getMissingLicenses(Path sdkPath, List<String> components) throws InterruptedException {
+        List<String> missing = components.stream()
+            .filter(component -> !isComponentInstalled(sdkPath, component))
+            .toList();
+        if (missing.isEmpty()) {
+            return List.of();
+        }
+        try {
+            return repositoryClient.getMissingLicenses(sdkPath, missing);
+        } catch (IOException e) {
+            // Without the manifest the licenses are unknown, most packages use the SDK license
+            logger.warn("Cannot read the licenses of {}: {}", missing, e.getMessage());
+            return new SdkLicenses(sdkPath).getMissingLicenses(List.of(SdkLicenses.SDK_LICENSE));
+        }
+    }
 
-        logger.debug("API {} - Platform: {}, System Image: {}", apiLevel, platformExists, systemImageExists);
+    /**
+     * Records the known SDK licenses as accepted. Only call it once the user accepted them.
+     *
+     * @param sdkPath SDK installation path
+     */
+    public void acceptLicenses(Path sdkPath) throws IOException {
+        new SdkLicenses(sdkPath).acceptKnownLicenses();
+    }
 
-        return platformExists && systemImageExists;
+    /**
+     * Gets the packages installed in an SDK, from an index kept up to date by
+     * watching the SDK directory.
+     *
+     * @param sdkPath SDK installation path
+     */
+    public SdkInventory getInventory(Path sdkPath) throws IOException {
+        return SdkInventoryIndex.forSdk(sdkPath).get();
     }
 
     /**
-     * Gets the path to sdkmanager executable.
+     * Checks if a specific API level is installed.
+     *
+     * @param sdkPath SDK installation path
+     * @param apiLevel API level to check (e.g., "35")
+     * @return true if the platform and an x86_64 system image, of any tag, are installed
      */
-    private Path getSdkManagerPath(Path sdkPath) {
-        String executable = "sdkmanager" + PlatformUtils.getExecutableExtension();
-        return sdkPath.resolve("cmdline-tools")
-            .resolve("latest")
-            .resolve("bin")
-            .resolve(executable);
+    public boolean isApiLevelInstalled(Path sdkPath, String apiLevel) {
+        try {
+            boolean installed = getInventory(sdkPath).isApiLevelInstalled(apiLevel, DEFAULT_ABI);
+            logger.debug("API {} installed: {}", apiLevel, installed);
+            return installed;
+        } catch (IOException e) {
+            logger.warn("Cannot read installed packages in {}", sdkPath, e);
+            return false;
+        }
     }
 
     /**
@@ -333,6 +1261,43 @@ public class SdkDownloadService {
         }
     }
 
+    /**
+     * Input stream that copies everything read to an output stream.
+     */
+    private static final class TeeInputStream extends FilterInputStream {
+        private final OutputStream copy;
+
+        TeeInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                copy.write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (copy) {
+                super.close();
+            }
+        }
+    }
+
     /**
      * Helper to update progress safely.
      */
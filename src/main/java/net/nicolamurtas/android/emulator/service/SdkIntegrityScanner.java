@@ -0,0 +1,318 @@
+package net.nicolamurtas.android.emulator.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Verifies installed SDK packages against the file manifest recorded when they
+ * were installed.
+ *
+ * Each package directory holds a {@value #MANIFEST_FILE} file listing the
+ * CRC32C and size of every file. Verification walks the package with
+ * fork-join tasks, one per directory and file, and hashes files through
+ * memory-mapped reads, so the whole SDK is read once at disk speed.
+ */
+public class SdkIntegrityScanner {
+    private static final Logger logger = LoggerFactory.getLogger(SdkIntegrityScanner.class);
+
+    static final String MANIFEST_FILE = ".integrity";
+
+    private static final String MANIFEST_HEADER = "# crc32c size path";
+    /** Mapping costs more than reading below this size. */
+    private static final long MIN_MAPPED_SIZE = 64 * 1024;
+    private static final long MAP_CHUNK_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Outcome of the verification of a package.
+     */
+    public enum Status {
+        /** Every file matches the manifest. */
+        OK,
+        /** Files are missing or differ from the manifest. */
+        DAMAGED,
+        /** The package has no manifest, e.g. it was installed by another tool. */
+        UNVERIFIED
+    }
+
+    /**
+     * Verification of a package.
+     *
+     * @param path Package path, e.g. "platforms;android-35"
+     * @param status Outcome
+     * @param corruptFiles Files whose size or CRC32C differs, relative to the package directory
+     * @param missingFiles Files in the manifest that do not exist anymore
+     * @param bytesChecked Bytes hashed
+     */
+    public record PackageReport(String path, Status status, List<String> corruptFiles, List<String> missingFiles,
+                                long bytesChecked) {}
+
+    /**
+     * Verification of an SDK.
+     *
+     * @param packages Reports by package, in package path order
+     * @param bytesChecked Bytes hashed in total
+     * @param elapsed Time taken
+     */
+    public record Report(List<PackageReport> packages, long bytesChecked, Duration elapsed) {
+
+        /**
+         * Checks that no package is damaged; packages without a manifest do not count.
+         */
+        public boolean isHealthy() {
+            return getDamaged().isEmpty();
+        }
+
+        public List<PackageReport> getDamaged() {
+            return packages.stream().filter(report -> report.status() == Status.DAMAGED).toList();
+        }
+
+        public long count(Status status) {
+            return packages.stream().filter(report -> report.status() == status).count();
+        }
+    }
+
+    private record FileDigest(long size, long crc) {}
+
+    private final ForkJoinPool pool;
+
+    public SdkIntegrityScanner() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool Pool running the hashing tasks
+     */
+    public SdkIntegrityScanner(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Verifies every installed package of an SDK.
+     *
+     * @param sdkPath SDK installation path
+     * @param progressCallback Optional callback called after each package (progress 0-100, message)
+     */
+    public Report scan(Path sdkPath, BiConsumer<Integer, String> progressCallback) throws IOException {
+        long start = System.nanoTime();
+        List<SdkInventory.InstalledPackage> installed =
+            new ArrayList<>(SdkInventoryIndex.forSdk(sdkPath).get().getPackages().values());
+
+        // Packages are verified concurrently too, so small ones do not wait behind system images
+        AtomicInteger done = new AtomicInteger();
+        List<ForkJoinTask<PackageReport>> tasks = new ArrayList<>();
+        for (SdkInventory.InstalledPackage installedPackage : installed) {
+            tasks.add(pool.submit(() -> {
+                PackageReport report;
+                try {
+                    report = verify(installedPackage);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (progressCallback != null) {
+                    progressCallback.accept(100 * done.incrementAndGet() / installed.size(),
+                        "Verified " + installedPackage.path());
+                }
+                return report;
+            }));
+        }
+
+        List<PackageReport> reports = new ArrayList<>();
+        for (ForkJoinTask<PackageReport> task : tasks) {
+            reports.add(join(task));
+        }
+
+        long bytes = reports.stream().mapToLong(PackageReport::bytesChecked).sum();
+        Report report = new Report(reports, bytes, Duration.ofNanos(System.nanoTime() - start));
+        logger.info("Verified {} packages ({} MB) in {} ms: {} damaged, {} without manifest",
+            reports.size(), bytes / (1024 * 1024), report.elapsed().toMillis(),
+            report.count(Status.DAMAGED), report.count(Status.UNVERIFIED));
+        for (PackageReport damaged : report.getDamaged()) {
+            logger.warn("Package {} is damaged: corrupt {}, missing {}",
+                damaged.path(), damaged.corruptFiles(), damaged.missingFiles());
+        }
+        return report;
+    }
+
+    /**
+     * Verifies a package against its manifest.
+     */
+    public PackageReport verify(SdkInventory.InstalledPackage installedPackage) throws IOException {
+        Path packageDir = installedPackage.location();
+        Path manifestFile = packageDir.resolve(MANIFEST_FILE);
+        if (!Files.isRegularFile(manifestFile)) {
+            return new PackageReport(installedPackage.path(), Status.UNVERIFIED, List.of(), List.of(), 0);
+        }
+
+        Map<String, FileDigest> expected = readManifest(manifestFile);
+        Map<String, FileDigest> actual = hashTree(packageDir, expected.keySet());
+
+        List<String> corrupt = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        for (Map.Entry<String, FileDigest> entry : expected.entrySet()) {
+            FileDigest digest = actual.get(entry.getKey());
+            if (digest == null) {
+                missing.add(entry.getKey());
+            } else if (!digest.equals(entry.getValue())) {
+                corrupt.add(entry.getKey());
+            }
+        }
+
+        long bytes = actual.values().stream().mapToLong(FileDigest::size).sum();
+        Status status = corrupt.isEmpty() && missing.isEmpty() ? Status.OK : Status.DAMAGED;
+        return new PackageReport(installedPackage.path(), status, corrupt, missing, bytes);
+    }
+
+    /**
+     * Records the manifest of a package directory from its current files.
+     * Called right after a package is installed.
+     */
+    public void writeManifest(Path packageDir) throws IOException {
+        Map<String, FileDigest> digests = new TreeMap<>(hashTree(packageDir, null));
+        Path temp = packageDir.resolve(MANIFEST_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(MANIFEST_HEADER);
+            writer.newLine();
+            for (Map.Entry<String, FileDigest> entry : digests.entrySet()) {
+                writer.write(String.format("%08x %d %s", entry.getValue().crc(), entry.getValue().size(), entry.getKey()));
+                writer.newLine();
+            }
+        }
+        Files.move(temp, packageDir.resolve(MANIFEST_FILE), StandardCopyOption.REPLACE_EXISTING);
+        logger.debug("Recorded manifest of {} files in {}", digests.size(), packageDir);
+    }
+
+    /**
+     * Hashes the files of a directory tree.
+     *
+     * @param only Relative paths to hash, or null for every file
+     * @return digests by path relative to the root, with '/' separators
+     */
+    private Map<String, FileDigest> hashTree(Path root, Set<String> only) throws IOException {
+        Map<String, FileDigest> digests = new ConcurrentHashMap<>();
+        try {
+            pool.invoke(new DirectoryTask(root, root, only, digests));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return digests;
+    }
+
+    /**
+     * Lists a directory, forking a task per subdirectory and per file.
+     */
+    private static final class DirectoryTask extends RecursiveAction {
+        private final Path root;
+        private final Path directory;
+        private final Set<String> only;
+        private final Map<String, FileDigest> digests;
+
+        DirectoryTask(Path root, Path directory, Set<String> only, Map<String, FileDigest> digests) {
+            this.root = root;
+            this.directory = directory;
+            this.only = only;
+            this.digests = digests;
+        }
+
+        @Override
+        protected void compute() {
+            List<ForkJoinTask<?>> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                for (Path child : children) {
+                    BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        subtasks.add(new DirectoryTask(root, child, only, digests));
+                    } else if (attributes.isRegularFile()) {
+                        String relative = relativize(child);
+                        if (directory.equals(root) && relative.startsWith(MANIFEST_FILE)) {
+                            continue;
+                        }
+                        if (only == null || only.contains(relative)) {
+                            subtasks.add(ForkJoinTask.adapt(() -> {
+                                try {
+                                    digests.put(relative, new FileDigest(attributes.size(), crc32c(child)));
+                                } catch (NoSuchFileException e) {
+                                    // Reported as missing
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            }));
+                        }
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                return;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            invokeAll(subtasks);
+        }
+
+        private String relativize(Path file) {
+            return root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+        }
+    }
+
+    /**
+     * Computes the CRC32C of a file, mapping it into memory in chunks.
+     */
+    static long crc32c(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < MIN_MAPPED_SIZE) {
+                crc.update(Files.readAllBytes(file));
+            } else {
+                for (long position = 0; position < size; position += MAP_CHUNK_SIZE) {
+                    crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_CHUNK_SIZE, size - position)));
+                }
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static Map<String, FileDigest> readManifest(Path manifestFile) throws IOException {
+        Map<String, FileDigest> digests = new HashMap<>();
+        for (String line : Files.readAllLines(manifestFile, StandardCharsets.UTF_8)) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(" ", 3);
+            if (fields.length != 3) {
+                throw new IOException("Invalid manifest line in " + manifestFile + ": " + line);
+            }
+            try {
+                digests.put(fields[2], new FileDigest(Long.parseLong(fields[1]), Long.parseLong(fields[0], 16)));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid manifest line in " + manifestFile + ": " + line, e);
+            }
+        }
+        return digests;
+    }
+
+    private static <T> T join(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package net.nicolamurtas.android.emulator.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Packages installed under an SDK root, read from their {@code package.xml} files.
+ *
+ * Instances are immutable snapshots; {@link SdkInventoryIndex} keeps one per
+ * SDK up to date. System images are also indexed by API level, with every
+ * tag and ABI variant.
+ */
+public class SdkInventory {
+    private static final Logger logger = LoggerFactory.getLogger(SdkInventory.class);
+
+    private static final String PACKAGE_XML = "package.xml";
+    /** Package directories are at most four levels deep, e.g. system-images/android-35/google_apis/x86_64. */
+    private static final int MAX_PACKAGE_DEPTH = 4;
+    private static final String SYSTEM_IMAGES = "system-images";
+    private static final String DEFAULT_TAG = "google_apis";
+
+    /** Creating a parser costs more than parsing a package.xml, so each scanning thread keeps one. */
+    private static final ThreadLocal<DocumentBuilder> documentBuilders = new ThreadLocal<>();
+
+    /**
+     * Installed package.
+     *
+     * @param path Package path, e.g. "platforms;android-35"
+     * @param revision Installed revision, e.g. "35.0.1"
+     * @param location Package directory
+     */
+    public record InstalledPackage(String path, String revision, Path location) {}
+
+    private final Path sdkPath;
+    private final Map<String, InstalledPackage> packages;
+    private final Map<String, List<InstalledPackage>> systemImagesByApi = new HashMap<>();
+    private final List<Path> directories;
+
+    private SdkInventory(Path sdkPath, Map<String, InstalledPackage> packages, List<Path> directories) {
+        this.sdkPath = sdkPath;
+        this.packages = packages;
+        this.directories = directories;
+        for (InstalledPackage installed : packages.values()) {
+            String[] segments = installed.path().split(";");
+            if (segments.length == 4 && SYSTEM_IMAGES.equals(segments[0])) {
+                systemImagesByApi.computeIfAbsent(apiLevelOf(segments[1]), k -> new ArrayList<>()).add(installed);
+            }
+        }
+    }
+
+    /**
+     * Scans an SDK root. Directories holding a package.xml are not descended
+     * into, so only the package roots are visited; the package.xml files are
+     * then parsed in parallel.
+     */
+    public static SdkInventory scan(Path sdkPath) throws IOException {
+        List<Path> packageXmls = new ArrayList<>();
+        List<Path> directories = new ArrayList<>();
+        if (!Files.isDirectory(sdkPath)) {
+            return new SdkInventory(sdkPath, new TreeMap<>(), directories);
+        }
+
+        Files.walkFileTree(sdkPath, EnumSet.noneOf(FileVisitOption.class), MAX_PACKAGE_DEPTH + 1,
+            new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    String name = dir.getFileName() != null ? dir.getFileName().toString() : "";
+                    if (!dir.equals(sdkPath) && name.startsWith(".")) {
+                        return FileVisitResult.SKIP_SUBTREE; // .temp, .downloadIntermediates, staging
+                    }
+                    directories.add(dir);
+                    Path packageXml = dir.resolve(PACKAGE_XML);
+                    if (!dir.equals(sdkPath) && Files.isRegularFile(packageXml)) {
+                        packageXmls.add(packageXml);
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    logger.debug("Cannot read {}", file, e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+        Map<String, InstalledPackage> packages = new TreeMap<>();
+        packageXmls.parallelStream()
+            .map(SdkInventory::readPackage)
+            .filter(Objects::nonNull)
+            .toList()
+            .forEach(installed -> packages.put(installed.path(), installed));
+
+        logger.debug("Found {} installed packages in {}", packages.size(), sdkPath);
+        return new SdkInventory(sdkPath, packages, List.copyOf(directories));
+    }
+
+    public Path getSdkPath() {
+        return sdkPath;
+    }
+
+    /**
+     * Gets the installed packages by path.
+     */
+    public Map<String, InstalledPackage> getPackages() {
+        return Collections.unmodifiableMap(packages);
+    }
+
+    public Optional<InstalledPackage> get(String path) {
+        return Optional.ofNullable(packages.get(path));
+    }
+
+    public boolean isInstalled(String path) {
+        return packages.containsKey(path);
+    }
+
+    /**
+     * Gets the system images installed for an API level, in every tag and ABI.
+     *
+     * @param apiLevel API level (e.g., "35")
+     */
+    public List<InstalledPackage> getSystemImages(String apiLevel) {
+        return Collections.unmodifiableList(systemImagesByApi.getOrDefault(apiLevel, List.of()));
+    }
+
+    /**
+     * Finds an installed system image for an API level and ABI, preferring the
+     * {@code google_apis} tag over the other ones.
+     *
+     * @param apiLevel API level (e.g., "35")
+     * @param abi ABI (e.g., "x86_64")
+     */
+    public Optional<InstalledPackage> findSystemImage(String apiLevel, String abi) {
+        Optional<InstalledPackage> preferred = get(systemImagePath(apiLevel, DEFAULT_TAG, abi));
+        if (preferred.isPresent()) {
+            return preferred;
+        }
+        return getSystemImages(apiLevel).stream()
+            .filter(image -> image.path().endsWith(";" + abi))
+            .findFirst();
+    }
+
+    /**
+     * Checks if the platform and a system image of an ABI are installed for an API level.
+     */
+    public boolean isApiLevelInstalled(String apiLevel, String abi) {
+        return isInstalled("platforms;android-" + apiLevel) && findSystemImage(apiLevel, abi).isPresent();
+    }
+
+    static String systemImagePath(String apiLevel, String tag, String abi) {
+        return SYSTEM_IMAGES + ";android-" + apiLevel + ";" + tag + ";" + abi;
+    }
+
+    /**
+     * Gets the directories visited by the scan: the SDK root, the directories
+     * leading to packages and the package roots.
+     */
+    List<Path> getScannedDirectories() {
+        return directories;
+    }
+
+    /**
+     * Extracts the API level from a platform segment, e.g. "android-35" or "android-33-ext5".
+     */
+    private static String apiLevelOf(String segment) {
+        String level = segment.startsWith("android-") ? segment.substring("android-".length()) : segment;
+        int extension = level.indexOf("-ext");
+        return extension > 0 ? level.substring(0, extension) : level;
+    }
+
+    private static InstalledPackage readPackage(Path packageXml) {
+        try {
+            DocumentBuilder builder = documentBuilders.get();
+            if (builder == null) {
+                builder = SdkRepositoryClient.newDocumentBuilder();
+                documentBuilders.set(builder);
+            }
+            builder.reset();
+            Document document = builder.parse(packageXml.toFile());
+            for (Node node = document.getDocumentElement().getFirstChild(); node != null; node = node.getNextSibling()) {
+                if (node instanceof Element element && "localPackage".equals(element.getLocalName())) {
+                    String path = element.getAttribute("path");
+                    if (path.isEmpty()) {
+                        return null;
+                    }
+                    Element revision = null;
+                    for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+                        if (child instanceof Element candidate && "revision".equals(candidate.getLocalName())) {
+                            revision = candidate;
+                        }
+                    }
+                    return new InstalledPackage(path, SdkRepositoryClient.formatRevision(revision), packageXml.getParent());
+                }
+            }
+        } catch (IOException | SAXException | RuntimeException e) {
+            logger.warn("Ignoring unreadable {}: {}", packageXml, e.getMessage());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,124 @@
+package net.nicolamurtas.android.emulator.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Cached {@link SdkInventory} of an SDK root, invalidated by a {@link WatchService}.
+ *
+ * The directories leading to packages and the package roots are watched, so
+ * installing, replacing or removing a package marks the inventory stale; it is
+ * rescanned on the next read. While nothing changes, reads cost nothing.
+ */
+public class SdkInventoryIndex {
+    private static final Logger logger = LoggerFactory.getLogger(SdkInventoryIndex.class);
+
+    private static final Map<Path, SdkInventoryIndex> instances = new ConcurrentHashMap<>();
+
+    private final Path sdkPath;
+    private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+    /** Bumped by every change, so a scan racing with one is not cached. */
+    private final AtomicLong generation = new AtomicLong();
+    private volatile SdkInventory inventory;
+    private WatchService watchService;
+
+    private SdkInventoryIndex(Path sdkPath) {
+        this.sdkPath = sdkPath;
+    }
+
+    /**
+     * Gets the index of an SDK root, shared by every caller in this JVM.
+     */
+    public static SdkInventoryIndex forSdk(Path sdkPath) {
+        return instances.computeIfAbsent(sdkPath.toAbsolutePath().normalize(), SdkInventoryIndex::new);
+    }
+
+    /**
+     * Gets the current inventory, scanning the SDK if it changed since the last read.
+     */
+    public SdkInventory get() throws IOException {
+        SdkInventory current = inventory;
+        if (current != null) {
+            return current;
+        }
+
+        synchronized (this) {
+            current = inventory;
+            if (current != null) {
+                return current;
+            }
+            long scannedGeneration = generation.get();
+            SdkInventory scanned = SdkInventory.scan(sdkPath);
+            // Without a watcher nothing would tell us about changes, so nothing is cached
+            if (watch(scanned) && generation.get() == scannedGeneration) {
+                inventory = scanned;
+            }
+            return scanned;
+        }
+    }
+
+    /**
+     * Marks the inventory stale, e.g. right after a local change, before the watcher notices it.
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        inventory = null;
+    }
+
+    /**
+     * Watches the scanned directories, starting the watcher on first use.
+     *
+     * @return true if the SDK root is watched
+     */
+    private boolean watch(SdkInventory scanned) {
+        if (!Files.isDirectory(sdkPath)) {
+            return false;
+        }
+        try {
+            if (watchService == null) {
+                watchService = sdkPath.getFileSystem().newWatchService();
+                Thread watcher = new Thread(this::watchLoop, "sdk-inventory-watcher");
+                watcher.setDaemon(true);
+                watcher.start();
+            }
+            // Registering a directory again returns its existing key
+            for (Path dir : scanned.getScannedDirectories()) {
+                try {
+                    watchedDirs.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                } catch (NoSuchFileException e) {
+                    invalidate(); // removed since the scan
+                }
+            }
+            return watchedDirs.containsValue(sdkPath);
+        } catch (IOException | ClosedWatchServiceException e) {
+            logger.debug("Cannot watch SDK directory {}", sdkPath, e);
+            return false;
+        }
+    }
+
+    private void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+            if (!key.pollEvents().isEmpty()) {
+                logger.debug("SDK changed in {}, invalidating inventory", watchedDirs.get(key));
+                invalidate();
+            }
+            if (!key.reset()) {
+                watchedDirs.remove(key);
+            }
+        }
+    }
+}
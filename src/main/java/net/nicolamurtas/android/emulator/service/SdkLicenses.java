@@ -0,0 +1,116 @@
+package net.nicolamurtas.android.emulator.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Manages the license acceptance files under {@code $SDK/licenses}.
+ *
+ * sdkmanager records an accepted license as the SHA-1 of its text, one hash
+ * per line in a file named after the license id. Writing the hashes of the
+ * known license texts is what {@code sdkmanager --licenses} does after the
+ * user answered "y", without starting a JVM.
+ */
+public class SdkLicenses {
+    private static final Logger logger = LoggerFactory.getLogger(SdkLicenses.class);
+
+    /** License of most packages, e.g. platforms and Google APIs system images. */
+    public static final String SDK_LICENSE = "android-sdk-license";
+
+    /** Hashes of the license texts published so far, by license id; older texts stay valid. */
+    private static final Map<String, List<String>> KNOWN_LICENSES = new LinkedHashMap<>();
+
+    static {
+        KNOWN_LICENSES.put(SDK_LICENSE, List.of(
+            "24333f8a63b6825ea9c5514f83c2829b004d1fee",
+            "8933bad161af4178b1185d1a37fbf41ea5269c55",
+            "d56f5187479451eabf01fb78af6dfcb131a6481e"));
+        KNOWN_LICENSES.put("android-sdk-preview-license", List.of("84831b9409646a918e30573bab4c9c91346d8abd"));
+        KNOWN_LICENSES.put("android-sdk-arm-dbt-license", List.of("859f317696f67ef3d7f30a50a5560e7834b43903"));
+        KNOWN_LICENSES.put("android-googletv-license", List.of("601085b94cd77f0b54ff86406957099ebe79c4d6"));
+        KNOWN_LICENSES.put("google-gdk-license", List.of("33b6a2b64607f11b759f320ef9dff4ae5c47d97a"));
+        KNOWN_LICENSES.put("intel-android-extra-license", List.of("d975f751698a77b662f1254ddbeed3901e976f5a"));
+        KNOWN_LICENSES.put("mips-android-sysimage-license", List.of("e9acab5b5fbb560a72cfaecce8946896ff6aab9d"));
+    }
+
+    private final Path licensesPath;
+
+    public SdkLicenses(Path sdkPath) {
+        this.licensesPath = sdkPath.resolve("licenses");
+    }
+
+    /**
+     * Gets the known licenses that are not accepted yet.
+     */
+    public List<String> getMissingLicenses() {
+        return getMissingLicenses(KNOWN_LICENSES.keySet());
+    }
+
+    /**
+     * Gets the licenses among some that are not accepted yet.
+     *
+     * @param licenseIds License ids, e.g. those the packages to install use
+     */
+    public List<String> getMissingLicenses(Collection<String> licenseIds) {
+        return licenseIds.stream().filter(licenseId -> !isAccepted(licenseId)).distinct().toList();
+    }
+
+    /**
+     * Checks that a license is accepted. sdkmanager only records the text it showed,
+     * so any known text of the license counts, or any text for a license this class
+     * does not know.
+     *
+     * @param licenseId License id, e.g. "android-sdk-license"
+     */
+    public boolean isAccepted(String licenseId) {
+        Set<String> hashes = readHashes(licenseId);
+        List<String> known = KNOWN_LICENSES.get(licenseId);
+        return known != null ? !Collections.disjoint(hashes, known) : !hashes.isEmpty();
+    }
+
+    /**
+     * Records every known license as accepted, keeping hashes already present.
+     *
+     * @return the licenses whose file was written
+     */
+    public List<String> acceptKnownLicenses() throws IOException {
+        List<String> written = new ArrayList<>();
+        for (Map.Entry<String, List<String>> license : KNOWN_LICENSES.entrySet()) {
+            Set<String> hashes = readHashes(license.getKey());
+            if (hashes.addAll(license.getValue())) {
+                Files.createDirectories(licensesPath);
+                // Leading newline as written by sdkmanager
+                Files.writeString(licensesPath.resolve(license.getKey()),
+                    "\n" + String.join("\n", hashes), StandardCharsets.UTF_8);
+                written.add(license.getKey());
+            }
+        }
+        if (!written.isEmpty()) {
+            logger.info("Accepted SDK licenses: {}", written);
+        }
+        return written;
+    }
+
+    private Set<String> readHashes(String licenseId) {
+        Path file = licensesPath.resolve(licenseId);
+        Set<String> hashes = new LinkedHashSet<>();
+        if (Files.isRegularFile(file)) {
+            try {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    if (!line.isBlank()) {
+                        hashes.add(line.trim().toLowerCase(Locale.ROOT));
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Cannot read license file {}", file, e);
+            }
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,943 @@
+package net.nicolamurtas.android.emulator.service;
+
+import net.nicolamurtas.android.emulator.util.DownloadCache;
+import net.nicolamurtas.android.emulator.util.HttpDownloader;
+import net.nicolamurtas.android.emulator.util.PlatformUtils;
+import net.nicolamurtas.android.emulator.util.ZipExtractor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.*;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Pure-Java client for the Android SDK repository, an alternative to sdkmanager.
+ *
+ * Reads the {@code repository2-3.xml} and {@code sys-img2-3.xml} manifests,
+ * picks the stable archive for the host OS, downloads several archives
+ * concurrently, verifies their SHA-1 and extracts them into the SDK layout
+ * with a {@code package.xml} that sdkmanager recognizes.
+ */
+public class SdkRepositoryClient {
+    private static final Logger logger = LoggerFactory.getLogger(SdkRepositoryClient.class);
+
+    public static final URI DEFAULT_REPOSITORY_URI = URI.create("https://dl.google.com/android/repository/");
+
+    private static final String REPOSITORY_MANIFEST = "repository2-3.xml";
+    private static final String SYS_IMG_MANIFEST = "sys-img/%s/sys-img2-3.xml";
+    private static final String COMMON_NAMESPACE = "http://schemas.android.com/repository/android/common/02";
+    private static final String STABLE_CHANNEL = "channel-0";
+    private static final int DEFAULT_PARALLELISM = 4;
+
+    /**
+     * Downloadable archive of a package.
+     */
+    public record Archive(URI url, long size, String sha1) {}
+
+    /**
+     * Package available in the repository.
+     *
+     * @param path Package path, e.g. "platforms;android-35"
+     * @param displayName Human readable name
+     * @param revision Revision, e.g. "2" or "35.0.1"
+     * @param archive Archive for the host OS
+     * @param element Manifest element, used to write package.xml
+     */
+    public record RemotePackage(String path, String displayName, String revision, Archive archive, Element element) {}
+
+    /** Archive downloads into a cache in progress in this JVM, by SHA-1; guards the fetches' state. */
+    private static final Map<String, CacheFetch> cacheFetches = new HashMap<>();
+
+    /**
+     * Download of an archive into the cache, shared by installs and prefetches.
+     * It runs in the background until an install joins, and stops once nobody
+     * is waiting for it anymore.
+     */
+    private static final class CacheFetch {
+        private final CompletableFuture<Path> future = new CompletableFuture<>();
+        private final HttpDownloader.Priority priority = new HttpDownloader.Priority();
+        private final List<HttpDownloader.ProgressListener> listeners = new CopyOnWriteArrayList<>();
+        private int waiting;
+        private boolean cancelled;
+        private Thread thread;
+
+        private void progress(long downloaded, long total) {
+            for (HttpDownloader.ProgressListener listener : listeners) {
+                listener.onProgress(downloaded, total);
+            }
+        }
+    }
+
+    /**
+     * Handle of a {@linkplain #prefetch prefetch}.
+     */
+    public static final class Prefetch {
+        /** Prefetch that has nothing to do. */
+        public static final Prefetch NONE = new Prefetch(null);
+
+        private final Thread thread;
+
+        private Prefetch(Thread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * Stops the prefetch. Downloads an install has joined in the meantime go on;
+         * the others stop and resume from where they were on the next request.
+         */
+        public void cancel() {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        public boolean isDone() {
+            return thread == null || !thread.isAlive();
+        }
+    }
+
+    private final URI repositoryUri;
+    private final int parallelism;
+    private final HttpDownloader downloader;
+    private final HttpClient httpClient;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final ZipExtractor zipExtractor = new ZipExtractor();
+    private final SdkIntegrityScanner integrityScanner = new SdkIntegrityScanner();
+    private volatile DownloadCache downloadCache;
+
+    public SdkRepositoryClient() {
+        this(new HttpDownloader());
+    }
+
+    public SdkRepositoryClient(HttpDownloader downloader) {
+        this(DEFAULT_REPOSITORY_URI, DEFAULT_PARALLELISM, downloader);
+    }
+
+    /**
+     * @param repositoryUri Base URI of the repository, ending with '/'
+     * @param parallelism Maximum number of concurrent archive downloads
+     * @param downloader Downloader used for manifests and archives
+     */
+    public SdkRepositoryClient(URI repositoryUri, int parallelism, HttpDownloader downloader) {
+        this.repositoryUri = repositoryUri;
+        this.parallelism = Math.max(1, parallelism);
+        this.downloader = downloader;
+        this.httpClient = downloader.getHttpClient();
+    }
+
+    /**
+     * Sets the cache archives are looked up in before downloading and stored in afterwards.
+     *
+     * @param downloadCache Cache to use, or null to always download
+     */
+    public void setDownloadCache(DownloadCache downloadCache) {
+        this.downloadCache = downloadCache;
+    }
+
+    /**
+     * Resolves components to remote packages, fetching only the manifests they need.
+     *
+     * @return packages by path; components not found in the repository are missing
+     */
+    public Map<String, RemotePackage> resolve(Collection<String> components) throws IOException, InterruptedException {
+        Set<URI> manifests = new LinkedHashSet<>();
+        for (String component : components) {
+            manifests.add(manifestFor(component));
+        }
+
+        // Manifests are independent, fetch them concurrently
+        List<Future<Map<String, RemotePackage>>> parsed = new ArrayList<>();
+        for (URI manifest : manifests) {
+            parsed.add(executor.submit(() -> parseManifest(manifest)));
+        }
+
+        Map<String, RemotePackage> available = new HashMap<>();
+        for (Future<Map<String, RemotePackage>> future : parsed) {
+            available.putAll(getResult(future));
+        }
+
+        Map<String, RemotePackage> resolved = new LinkedHashMap<>();
+        for (String component : components) {
+            RemotePackage remotePackage = available.get(component);
+            if (remotePackage != null) {
+                resolved.put(component, remotePackage);
+            } else {
+                logger.warn("Package not available for this host: {}", component);
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Downloads and installs components, along with the dependencies they miss.
+     *
+     * Components whose license is not accepted in the SDK, or that depend on a package
+     * this client cannot install, are left to sdkmanager: they are returned without
+     * anything being downloaded for them.
+     *
+     * @param sdkPath SDK installation path
+     * @param components Components to install
+     * @param progressStart Progress value reported when the installation starts
+     * @param progressEnd Progress value reported once every archive is downloaded
+     * @param progressCallback Optional callback for progress updates
+     * @return the components that could not be installed
+     */
+    public List<String> install(Path sdkPath, List<String> components, int progressStart, int progressEnd,
+                                BiConsumer<Integer, String> progressCallback)
+            throws IOException, InterruptedException {
+
+        Map<String, RemotePackage> packages = withDependencies(sdkPath, resolve(components));
+        List<String> failed = new ArrayList<>(components);
+        failed.removeAll(packages.keySet());
+        if (packages.isEmpty()) {
+            return failed;
+        }
+
+        long totalBytes = packages.values().stream().mapToLong(p -> p.archive().size()).sum();
+        AtomicLong downloadedBytes = new AtomicLong();
+        AtomicInteger lastProgress = new AtomicInteger(-1);
+        BiConsumer<Long, String> onBytes = (bytes, name) -> {
+            long done = downloadedBytes.addAndGet(bytes);
+            int progress = progressStart + (int) ((progressEnd - progressStart) * done / Math.max(1, totalBytes));
+            if (progressCallback != null && lastProgress.getAndSet(progress) != progress) {
+                progressCallback.accept(progress, String.format("Download: %.1f MB / %.1f MB",
+                    done / 1024.0 / 1024.0, totalBytes / 1024.0 / 1024.0));
+            }
+        };
+
+        Semaphore downloads = new Semaphore(parallelism);
+        Map<String, Future<Void>> tasks = new LinkedHashMap<>();
+        for (RemotePackage remotePackage : packages.values()) {
+            tasks.put(remotePackage.path(), executor.submit(() -> {
+                downloads.acquire();
+                Path archive;
+                try {
+                    archive = download(sdkPath, remotePackage, onBytes);
+                } finally {
+                    downloads.release();
+                }
+                try {
+                    installArchive(sdkPath, remotePackage, archive);
+                } finally {
+                    if (!isCached(archive)) {
+                        Files.deleteIfExists(archive);
+                    }
+                }
+                return null;
+            }));
+        }
+
+        for (Map.Entry<String, Future<Void>> task : tasks.entrySet()) {
+            String component = task.getKey();
+            try {
+                getResult(task.getValue());
+                logger.info("Successfully installed: {}", component);
+                if (progressCallback != null) {
+                    progressCallback.accept(lastProgress.get(), "Installato: " + component);
+                }
+            } catch (IOException e) {
+                logger.error("Failed to install component: {}", component, e);
+                failed.add(component);
+            }
+        }
+
+        try {
+            Files.deleteIfExists(sdkPath.resolve(".temp"));
+        } catch (DirectoryNotEmptyException e) {
+            // still used by something else
+        }
+        return failed;
+    }
+
+    /**
+     * Gets the licenses that installing components needs and that are not accepted in
+     * the SDK, counting the dependencies they miss.
+     *
+     * @param sdkPath SDK installation path
+     * @param components Components to install
+     */
+    public List<String> getMissingLicenses(Path sdkPath, Collection<String> components)
+            throws IOException, InterruptedException {
+        List<String> used = new ArrayList<>();
+        for (RemotePackage remotePackage : resolveDependencies(sdkPath, resolve(components)).packages().values()) {
+            Element usesLicense = child(remotePackage.element(), "uses-license");
+            if (usesLicense != null) {
+                used.add(usesLicense.getAttribute("ref"));
+            }
+        }
+        return new SdkLicenses(sdkPath).getMissingLicenses(used);
+    }
+
+    /**
+     * Packages to install with the dependencies they miss.
+     *
+     * @param packages Requested packages and their missing dependencies
+     * @param dependencies Missing dependencies by package path
+     * @param unavailable Missing dependencies the repository does not offer for this host
+     */
+    private record DependencyClosure(Map<String, RemotePackage> packages, Map<String, Set<String>> dependencies,
+                                     Set<String> unavailable) {}
+
+    /**
+     * Adds the dependencies of packages that are not installed at their minimum revision,
+     * then drops every package that cannot be installed here: its license is not accepted,
+     * or a dependency is not available or dropped itself.
+     *
+     * @return packages to install, including the dependencies
+     */
+    private Map<String, RemotePackage> withDependencies(Path sdkPath, Map<String, RemotePackage> requested)
+            throws IOException, InterruptedException {
+        DependencyClosure closure = resolveDependencies(sdkPath, requested);
+        Map<String, RemotePackage> packages = closure.packages();
+        Map<String, Set<String>> dependencies = closure.dependencies();
+
+        SdkLicenses licenses = new SdkLicenses(sdkPath);
+        Set<String> blocked = new HashSet<>(closure.unavailable());
+        for (RemotePackage remotePackage : packages.values()) {
+            Element usesLicense = child(remotePackage.element(), "uses-license");
+            if (usesLicense != null && !licenses.isAccepted(usesLicense.getAttribute("ref"))) {
+                logger.info("License {} of {} is not accepted, leaving it to sdkmanager",
+                    usesLicense.getAttribute("ref"), remotePackage.path());
+                blocked.add(remotePackage.path());
+            }
+        }
+
+        // A blocked package blocks everything depending on it
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+                if (!blocked.contains(entry.getKey()) && !Collections.disjoint(entry.getValue(), blocked)) {
+                    logger.info("Dependencies of {} cannot be installed here, leaving it to sdkmanager", entry.getKey());
+                    blocked.add(entry.getKey());
+                    changed = true;
+                }
+            }
+        }
+        packages.keySet().removeAll(blocked);
+
+        Set<String> pulledIn = new LinkedHashSet<>(packages.keySet());
+        pulledIn.removeAll(requested.keySet());
+        if (!pulledIn.isEmpty()) {
+            logger.info("Installing dependencies: {}", pulledIn);
+        }
+        return packages;
+    }
+
+    /**
+     * Resolves the dependencies of packages that are not installed at their minimum revision,
+     * and theirs in turn.
+     */
+    private DependencyClosure resolveDependencies(Path sdkPath, Map<String, RemotePackage> requested)
+            throws IOException, InterruptedException {
+        SdkInventory inventory = SdkInventoryIndex.forSdk(sdkPath).get();
+        Map<String, RemotePackage> packages = new LinkedHashMap<>(requested);
+        Map<String, Set<String>> dependencies = new HashMap<>();
+        Set<String> unavailable = new HashSet<>();
+
+        // Each round resolves the dependencies found by the previous one
+        Collection<RemotePackage> added = requested.values();
+        while (!added.isEmpty()) {
+            Set<String> missing = new LinkedHashSet<>();
+            for (RemotePackage remotePackage : added) {
+                Set<String> needed = new LinkedHashSet<>();
+                Element element = child(remotePackage.element(), "dependencies");
+                for (Element dependency : element != null ? children(element, "dependency") : List.<Element>of()) {
+                    String path = dependency.getAttribute("path");
+                    Element minRevision = child(dependency, "min-revision");
+                    boolean installed = inventory.get(path)
+                        .filter(local -> minRevision == null
+                            || compareRevisions(local.revision(), formatRevision(minRevision)) >= 0)
+                        .isPresent();
+                    if (!installed) {
+                        needed.add(path);
+                        if (!packages.containsKey(path) && !unavailable.contains(path)) {
+                            missing.add(path);
+                        }
+                    }
+                }
+                dependencies.put(remotePackage.path(), needed);
+            }
+
+            Map<String, RemotePackage> resolved = missing.isEmpty() ? Map.of() : resolve(missing);
+            missing.removeAll(resolved.keySet());
+            unavailable.addAll(missing);
+            packages.putAll(resolved);
+            added = resolved.values();
+        }
+        return new DependencyClosure(packages, dependencies, unavailable);
+    }
+
+    /**
+     * Gets the manifest listing a component.
+     */
+    private URI manifestFor(String component) {
+        String[] segments = component.split(";");
+        if (segments[0].equals("system-images") && segments.length >= 3) {
+            String tag = segments[2].equals("default") ? "android" : segments[2];
+            return repositoryUri.resolve(String.format(SYS_IMG_MANIFEST, tag));
+        }
+        return repositoryUri.resolve(REPOSITORY_MANIFEST);
+    }
+
+    /**
+     * Looks up the archive published at a URL in the main repository manifest,
+     * e.g. to get the checksum of a command-line tools archive.
+     *
+     * @return the archive, or empty if the manifest does not list it
+     */
+    public Optional<Archive> findArchive(URI archiveUrl) throws IOException, InterruptedException {
+        URI manifestUri = repositoryUri.resolve(REPOSITORY_MANIFEST);
+        Document document = fetchManifest(manifestUri);
+        for (Element remotePackage : children(document.getDocumentElement(), "remotePackage")) {
+            Element archives = child(remotePackage, "archives");
+            if (archives == null) {
+                continue;
+            }
+            for (Element archive : children(archives, "archive")) {
+                Element complete = child(archive, "complete");
+                if (complete != null && manifestUri.resolve(text(child(complete, "url"))).equals(archiveUrl)) {
+                    return Optional.of(new Archive(archiveUrl, Long.parseLong(text(child(complete, "size"))),
+                        text(child(complete, "checksum"))));
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    private Document fetchManifest(URI manifestUri) throws IOException, InterruptedException {
+        logger.debug("Fetching repository manifest: {}", manifestUri);
+        HttpResponse<InputStream> response = httpClient.send(
+            HttpRequest.newBuilder(manifestUri).GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() != 200) {
+            response.body().close();
+            throw new IOException("HTTP " + response.statusCode() + " fetching " + manifestUri);
+        }
+
+        try (InputStream in = response.body()) {
+            return newDocumentBuilder().parse(in);
+        } catch (SAXException e) {
+            throw new IOException("Invalid repository manifest: " + manifestUri, e);
+        }
+    }
+
+    /**
+     * Parses a manifest into the stable packages available for the host.
+     */
+    private Map<String, RemotePackage> parseManifest(URI manifestUri) throws IOException, InterruptedException {
+        Document document = fetchManifest(manifestUri);
+
+        Map<String, RemotePackage> packages = new HashMap<>();
+        for (Element element : children(document.getDocumentElement(), "remotePackage")) {
+            Element channelRef = child(element, "channelRef");
+            if (channelRef != null && !STABLE_CHANNEL.equals(channelRef.getAttribute("ref"))) {
+                continue;
+            }
+
+            Archive archive = selectArchive(manifestUri, element);
+            if (archive == null) {
+                continue;
+            }
+
+            String path = element.getAttribute("path");
+            RemotePackage candidate = new RemotePackage(path, text(child(element, "display-name")),
+                formatRevision(child(element, "revision")), archive, element);
+            packages.merge(path, candidate,
+                (a, b) -> compareRevisions(a.revision(), b.revision()) >= 0 ? a : b);
+        }
+        logger.debug("Manifest {} lists {} stable packages for this host", manifestUri, packages.size());
+        return packages;
+    }
+
+    /**
+     * Picks the archive for the host OS and architecture, if any.
+     */
+    private Archive selectArchive(URI manifestUri, Element remotePackage) {
+        Element archives = child(remotePackage, "archives");
+        if (archives == null) {
+            return null;
+        }
+
+        String hostOs = switch (PlatformUtils.getOperatingSystem()) {
+            case WINDOWS -> "windows";
+            case MACOS -> "macosx";
+            default -> "linux";
+        };
+        String arch = System.getProperty("os.arch");
+        String hostArch = "aarch64".equals(arch) || "arm64".equals(arch) ? "aarch64" : "x64";
+
+        Archive fallback = null;
+        for (Element archive : children(archives, "archive")) {
+            String os = text(child(archive, "host-os"));
+            String archiveArch = text(child(archive, "host-arch"));
+            if (os != null && !os.equals(hostOs)) {
+                continue;
+            }
+            if (archiveArch != null && !archiveArch.equals(hostArch)) {
+                continue;
+            }
+
+            Element complete = child(archive, "complete");
+            if (complete == null) {
+                continue;
+            }
+            Archive candidate = new Archive(manifestUri.resolve(text(child(complete, "url"))),
+                Long.parseLong(text(child(complete, "size"))), text(child(complete, "checksum")));
+            if (archiveArch != null) {
+                return candidate; // exact match
+            }
+            fallback = candidate;
+        }
+        return fallback;
+    }
+
+    /**
+     * Downloads the archives of components into the download cache in the background,
+     * e.g. while the user is still choosing what to install. The downloads pause
+     * while foreground downloads are running, and an install of the same archive
+     * joins the download in progress instead of starting another one.
+     *
+     * @param components Components to fetch; those already cached are skipped
+     * @return handle to cancel the prefetch
+     */
+    public Prefetch prefetch(Collection<String> components) {
+        DownloadCache cache = downloadCache;
+        if (cache == null || components.isEmpty()) {
+            return Prefetch.NONE;
+        }
+
+        List<String> requested = List.copyOf(components);
+        Thread thread = Thread.ofVirtual().name("prefetch").start(() -> {
+            List<CacheFetch> fetches = new ArrayList<>();
+            try {
+                for (RemotePackage remotePackage : resolve(requested).values()) {
+                    Archive archive = remotePackage.archive();
+                    if (archive.sha1() != null && !cache.contains(archive.sha1(), archive.size())) {
+                        logger.debug("Prefetching {}", remotePackage.path());
+                        fetches.add(joinCacheFetch(cache, archive, true, null));
+                    }
+                }
+                for (CacheFetch fetch : fetches) {
+                    getResult(fetch.future.copy());
+                }
+                if (!fetches.isEmpty()) {
+                    logger.info("Prefetched {} archives for {}", fetches.size(), requested);
+                }
+            } catch (InterruptedException e) {
+                logger.debug("Prefetch of {} cancelled", requested);
+            } catch (IOException e) {
+                logger.debug("Prefetch of {} failed: {}", requested, e.getMessage());
+            } finally {
+                fetches.forEach(fetch -> leaveCacheFetch(fetch, null));
+            }
+        });
+        return new Prefetch(thread);
+    }
+
+    /**
+     * Downloads an archive, verifying its size and SHA-1, unless the download cache
+     * already has it. Interrupted downloads of the same archive are resumed.
+     *
+     * @return the archive, either in the download cache or in the SDK temp directory
+     */
+    private Path download(Path sdkPath, RemotePackage remotePackage, BiConsumer<Long, String> onBytes)
+            throws IOException, InterruptedException {
+        Archive archive = remotePackage.archive();
+        AtomicLong reported = new AtomicLong();
+        HttpDownloader.ProgressListener listener = (downloaded, total) ->
+            onBytes.accept(downloaded - reported.getAndSet(downloaded), remotePackage.path());
+
+        DownloadCache cache = archive.sha1() != null ? downloadCache : null;
+        if (cache != null) {
+            Optional<Path> cached = cache.lookup(archive.sha1(), archive.size());
+            if (cached.isPresent()) {
+                logger.info("Using cached archive for {}", remotePackage.path());
+                onBytes.accept(archive.size(), remotePackage.path());
+                return cached.get();
+            }
+
+            // Downloads straight into the cache, joining a prefetch of the same archive
+            logger.info("Downloading {} from {}", remotePackage.path(), archive.url());
+            CacheFetch fetch = joinCacheFetch(cache, archive, false, listener);
+            try {
+                return getResult(fetch.future.copy());
+            } finally {
+                leaveCacheFetch(fetch, listener);
+            }
+        }
+
+        String fileName = Path.of(archive.url().getPath()).getFileName().toString();
+        Path target = Files.createDirectories(sdkPath.resolve(".temp")).resolve(fileName);
+
+        logger.info("Downloading {} from {}", remotePackage.path(), archive.url());
+        HttpDownloader.Result result = downloader.download(archive.url(), target, listener);
+        verify(archive, target, result.size());
+        return target;
+    }
+
+    /**
+     * Joins the download of an archive into the cache, starting it if needed.
+     *
+     * @param background Whether the caller can wait; a foreground caller lifts the pause of a background download
+     * @param listener Optional listener for the caller, removed by {@link #leaveCacheFetch}
+     */
+    private CacheFetch joinCacheFetch(DownloadCache cache, Archive archive, boolean background,
+                                      HttpDownloader.ProgressListener listener) {
+        String key = archive.sha1().toLowerCase(Locale.ROOT);
+        synchronized (cacheFetches) {
+            CacheFetch fetch = cacheFetches.get(key);
+            if (fetch == null || fetch.cancelled) {
+                Thread previous = fetch != null ? fetch.thread : null;
+                CacheFetch created = new CacheFetch();
+                created.thread = Thread.ofVirtual().name("fetch-" + key).unstarted(
+                    () -> runCacheFetch(cache, archive, key, created, previous));
+                cacheFetches.put(key, created);
+                fetch = created;
+                if (!background) {
+                    fetch.priority.promote();
+                }
+                fetch.thread.start();
+            } else if (!background && !fetch.priority.isPromoted()) {
+                logger.debug("Promoting the background download of {}", archive.url());
+                fetch.priority.promote();
+            }
+            fetch.waiting++;
+            if (listener != null) {
+                fetch.listeners.add(listener);
+            }
+            return fetch;
+        }
+    }
+
+    /**
+     * Leaves a download joined with {@link #joinCacheFetch}, stopping it when nobody else waits for it.
+     */
+    private static void leaveCacheFetch(CacheFetch fetch, HttpDownloader.ProgressListener listener) {
+        if (listener != null) {
+            fetch.listeners.remove(listener);
+        }
+        synchronized (cacheFetches) {
+            if (--fetch.waiting == 0 && !fetch.future.isDone()) {
+                fetch.cancelled = true;
+                fetch.thread.interrupt();
+            }
+        }
+    }
+
+    private void runCacheFetch(DownloadCache cache, Archive archive, String key, CacheFetch fetch, Thread previous) {
+        try {
+            // A cancelled download of the same archive may still be writing the partial file
+            if (previous != null) {
+                previous.join();
+            }
+            // Another process fetching the same archive, e.g. a parallel CI job, writes the same partial files
+            Path cached = cache.withEntryLock(key, () -> {
+                Optional<Path> stored = cache.contains(key, archive.size())
+                    ? cache.lookup(key, archive.size()) : Optional.empty();
+                if (stored.isPresent()) {
+                    logger.debug("{} was downloaded by another process", archive.url());
+                    return stored.get();
+                }
+                Path partial = cache.partialPath(key);
+                HttpDownloader.Result result = downloader.download(archive.url(), partial, fetch::progress,
+                    fetch.priority.isPromoted() ? null : fetch.priority);
+                return cache.store(verify(archive, partial, result.size()), partial);
+            });
+            removeCacheFetch(key, fetch);
+            fetch.future.complete(cached);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            removeCacheFetch(key, fetch);
+            fetch.future.completeExceptionally(e);
+        }
+    }
+
+    private static void removeCacheFetch(String key, CacheFetch fetch) {
+        synchronized (cacheFetches) {
+            cacheFetches.remove(key, fetch);
+        }
+    }
+
+    /**
+     * Checks a downloaded archive against its expected size and SHA-1, deleting it on mismatch.
+     *
+     * @return the archive's SHA-1
+     */
+    private static String verify(Archive archive, Path file, long size) throws IOException {
+        String sha1 = sha1(file);
+        if (size != archive.size() || (archive.sha1() != null && !archive.sha1().equalsIgnoreCase(sha1))) {
+            Files.deleteIfExists(file);
+            throw new IOException("Checksum mismatch for " + archive.url() + " (size " + size + ", sha1 " + sha1 + ")");
+        }
+        return sha1;
+    }
+
+    private boolean isCached(Path archive) {
+        DownloadCache cache = downloadCache;
+        return cache != null && archive.startsWith(cache.getDirectory());
+    }
+
+    private static String sha1(Path file) throws IOException {
+        MessageDigest digest = newSha1();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Extracts an archive into the package directory, dropping the archive's top-level
+     * directory, and writes the package.xml.
+     */
+    private void installArchive(Path sdkPath, RemotePackage remotePackage, Path archive)
+            throws IOException, InterruptedException {
+        Path packageDir = sdkPath;
+        for (String segment : remotePackage.path().split(";")) {
+            packageDir = packageDir.resolve(segment);
+        }
+
+        // Extract next to the destination, then swap it in
+        Path staging = Files.createTempDirectory(Files.createDirectories(sdkPath.resolve(".temp")), "package-");
+        ZipExtractor.Result extracted;
+        try {
+            extracted = zipExtractor.extract(archive, staging, true);
+            writePackageXml(remotePackage, staging.resolve("package.xml"));
+            integrityScanner.writeManifest(staging);
+
+            // The installed package is only deleted once the new one is in place
+            Path previous = null;
+            if (Files.exists(packageDir)) {
+                previous = staging.resolveSibling(staging.getFileName() + "-previous");
+                Files.move(packageDir, previous, StandardCopyOption.ATOMIC_MOVE);
+            }
+            try {
+                Files.createDirectories(packageDir.getParent());
+                Files.move(staging, packageDir, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                if (previous != null) {
+                    try {
+                        Files.move(previous, packageDir, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (IOException restoreError) {
+                        e.addSuppressed(restoreError);
+                    }
+                }
+                throw e;
+            }
+            if (previous != null) {
+                deleteDirectory(previous);
+            }
+        } finally {
+            if (Files.exists(staging)) {
+                deleteDirectory(staging);
+            }
+        }
+
+        // Archives built without Unix attributes lose the execute bits of tool packages
+        String type = remotePackage.path().split(";")[0];
+        if (extracted.permissionsRestored() == 0 && !PlatformUtils.isWindows()
+                && !type.equals("platforms") && !type.equals("system-images")) {
+            PlatformUtils.makeDirectoryExecutable(packageDir);
+        }
+    }
+
+    /**
+     * Writes the local package descriptor, copying type details, revision,
+     * dependencies and license from the manifest entry.
+     */
+    private void writePackageXml(RemotePackage remotePackage, Path target) throws IOException {
+        Element source = remotePackage.element();
+        Document document;
+        // DOM trees are not safe for concurrent reads, packages of one manifest share it
+        synchronized (source.getOwnerDocument()) {
+            document = buildPackageDocument(remotePackage);
+        }
+
+        try (OutputStream out = Files.newOutputStream(target)) {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            transformer.transform(new DOMSource(document), new StreamResult(out));
+        } catch (TransformerException e) {
+            throw new IOException("Failed to write " + target, e);
+        }
+    }
+
+    private Document buildPackageDocument(RemotePackage remotePackage) throws IOException {
+        Element source = remotePackage.element();
+        Element manifestRoot = source.getOwnerDocument().getDocumentElement();
+
+        Document document = newDocumentBuilder().newDocument();
+        document.setXmlStandalone(true);
+        Element root = document.createElementNS(COMMON_NAMESPACE, "common:repository");
+        document.appendChild(root);
+
+        // Keep the manifest prefixes so xsi:type values such as "sdk:platformDetailsType" resolve
+        NamedNodeMap attributes = manifestRoot.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())
+                    && !"xmlns:common".equals(attribute.getName())) {
+                root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, attribute.getName(), attribute.getValue());
+            }
+        }
+
+        Element usesLicense = child(source, "uses-license");
+        if (usesLicense != null) {
+            String licenseId = usesLicense.getAttribute("ref");
+            for (Element license : children(manifestRoot, "license")) {
+                if (licenseId.equals(license.getAttribute("id"))) {
+                    root.appendChild(document.importNode(license, true));
+                }
+            }
+        }
+
+        Element localPackage = document.createElement("localPackage");
+        localPackage.setAttribute("path", remotePackage.path());
+        localPackage.setAttribute("obsolete", "false");
+        for (String name : List.of("type-details", "revision", "display-name", "uses-license", "dependencies")) {
+            Element element = child(source, name);
+            if (element != null) {
+                localPackage.appendChild(document.importNode(element, true));
+            }
+        }
+        root.appendChild(localPackage);
+        return document;
+    }
+
+    /**
+     * Formats a revision element as "major.minor.micro", with " rcN" for previews.
+     */
+    static String formatRevision(Element revision) {
+        if (revision == null) {
+            return "0";
+        }
+        StringBuilder result = new StringBuilder(Objects.requireNonNullElse(text(child(revision, "major")), "0"));
+        String minor = text(child(revision, "minor"));
+        String micro = text(child(revision, "micro"));
+        if (minor != null) {
+            result.append('.').append(minor);
+            if (micro != null) {
+                result.append('.').append(micro);
+            }
+        }
+        String preview = text(child(revision, "preview"));
+        if (preview != null) {
+            result.append(" rc").append(preview);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Compares dotted revisions numerically; previews sort before the release.
+     */
+    static int compareRevisions(String a, String b) {
+        String[] aParts = a.split(" rc");
+        String[] bParts = b.split(" rc");
+        String[] aNumbers = aParts[0].split("\\.");
+        String[] bNumbers = bParts[0].split("\\.");
+        for (int i = 0; i < Math.max(aNumbers.length, bNumbers.length); i++) {
+            int aValue = i < aNumbers.length ? Integer.parseInt(aNumbers[i]) : 0;
+            int bValue = i < bNumbers.length ? Integer.parseInt(bNumbers[i]) : 0;
+            if (aValue != bValue) {
+                return Integer.compare(aValue, bValue);
+            }
+        }
+        int aPreview = aParts.length > 1 ? Integer.parseInt(aParts[1]) : Integer.MAX_VALUE;
+        int bPreview = bParts.length > 1 ? Integer.parseInt(bParts[1]) : Integer.MAX_VALUE;
+        return Integer.compare(aPreview, bPreview);
+    }
+
+    private static List<Element> children(Element parent, String localName) {
+        List<Element> result = new ArrayList<>();
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element element && localName.equals(localName(element))) {
+                result.add(element);
+            }
+        }
+        return result;
+    }
+
+    private static Element child(Element parent, String localName) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element element && localName.equals(localName(element))) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    private static String localName(Element element) {
+        return element.getLocalName() != null ? element.getLocalName() : element.getTagName();
+    }
+
+    private static String text(Element element) {
+        return element != null ? element.getTextContent().trim() : null;
+    }
+
+    static DocumentBuilder newDocumentBuilder() throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature("http://apache.org/xml/features/dom/defer-node-expansion", false);
+            return factory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IOException("XML parser not available", e);
+        }
+    }
+
+    private static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            if (cause instanceof InterruptedException interrupted) {
+                throw interrupted;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void deleteDirectory(Path path) throws IOException {
+        try (var paths = Files.walk(path)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package net.nicolamurtas.android.emulator.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed cache of downloaded archives, keyed by SHA-1.
+ *
+ * One instance exists per directory in a JVM, and lock files coordinate
+ * processes sharing the directory: one for the cache as a whole, and one per
+ * entry held while it is downloaded. The cache is bounded in size: the least
+ * recently used entries are evicted first, using the modification time that
+ * every hit refreshes. Entries are verified against their hash before they
+ * are handed out, and corrupted ones are dropped.
+ *
+ * The hash of an archive downloaded from a versioned URL can be recorded, so
+ * that it is found again without fetching the manifest that publishes it.
+ */
+public class DownloadCache {
+    private static final Logger logger = LoggerFactory.getLogger(DownloadCache.class);
+
+    public static final long DEFAULT_MAX_BYTES = 20L * 1024 * 1024 * 1024;
+
+    private static final String OBJECTS_DIR = "sha1";
+    private static final String URLS_DIR = "urls";
+    private static final String LOCK_FILE = ".lock";
+    private static final String ENTRY_LOCK_SUFFIX = ".lock";
+    /** Entries used this recently are never evicted, they may be being read by another process. */
+    private static final Duration EVICTION_GRACE = Duration.ofMinutes(10);
+    private static final Pattern ENTRY_NAME = Pattern.compile("[0-9a-f]{40}");
+
+    private static final Map<Path, DownloadCache> instances = new ConcurrentHashMap<>();
+
+    /**
+     * Snapshot of cache activity in this process.
+     *
+     * @param hits Lookups served from the cache
+     * @param misses Lookups that found no valid entry
+     * @param bytesServed Bytes served from the cache instead of the network
+     * @param evictions Entries removed to respect the size limit
+     * @param corruptions Entries dropped because their hash did not match
+     */
+    public record Stats(long hits, long misses, long bytesServed, long evictions, long corruptions) {
+
+        public double hitRatio() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong corruptions = new AtomicLong();
+
+    private DownloadCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Gets the cache for a directory, shared by every caller in this JVM.
+     *
+     * @param directory Cache directory, created on first use
+     * @param maxBytes Size limit; kept from the first caller when the cache is already open
+     */
+    public static DownloadCache open(Path directory, long maxBytes) {
+        return instances.computeIfAbsent(directory.toAbsolutePath().normalize(),
+            dir -> new DownloadCache(dir, maxBytes));
+    }
+
+    /**
+     * Gets the cache in the default per-user location.
+     */
+    public static DownloadCache openDefault() {
+        return open(PlatformUtils.getDefaultDownloadCachePath(), DEFAULT_MAX_BYTES);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Looks up an archive, verifying its size and hash.
+     *
+     * @param sha1 Expected SHA-1, hex encoded
+     * @param size Expected size in bytes, or -1 if unknown
+     * @return the cached file, to be read but not modified or moved
+     */
+    public Optional<Path> lookup(String sha1, long size) throws IOException {
+        Path entry = entryPath(sha1);
+        if (!Files.isRegularFile(entry) || (size >= 0 && Files.size(entry) != size)) {
+            misses.incrementAndGet();
+            return Optional.empty();
+        }
+
+        // Touch first so a concurrent eviction in another process skips it
+        Files.setLastModifiedTime(entry, FileTime.from(Instant.now()));
+        if (!sha1.equalsIgnoreCase(sha1(entry))) {
+            logger.warn("Dropping corrupted cache entry {}", entry);
+            corruptions.incrementAndGet();
+            misses.incrementAndGet();
+            withLock(() -> Files.deleteIfExists(entry));
+            return Optional.empty();
+        }
+
+        hits.incrementAndGet();
+        bytesServed.addAndGet(Files.size(entry));
+        logger.debug("Cache hit for {}", sha1);
+        return Optional.of(entry);
+    }
+
+    /**
+     * Checks whether an entry of the expected size is present, without verifying
+     * its hash or counting a lookup.
+     */
+    public boolean contains(String sha1, long size) {
+        Path entry = entryPath(sha1);
+        try {
+            return Files.isRegularFile(entry) && (size < 0 || Files.size(entry) == size);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets the path an entry is downloaded to before being {@linkplain #store stored}.
+     * The download can leave its partial files next to it, so an interrupted fetch
+     * of the same archive resumes where it stopped. Only write it while holding
+     * {@link #withEntryLock the entry lock}.
+     */
+    public Path partialPath(String sha1) throws IOException {
+        Path entry = entryPath(sha1);
+        Files.createDirectories(entry.getParent());
+        return entry.resolveSibling(entry.getFileName() + ".partial");
+    }
+
+    /**
+     * Adds a verified file to the cache, moving it when possible, then evicts
+     * old entries above the size limit.
+     *
+     * @param sha1 SHA-1 of the file, hex encoded
+     * @param file File to add; it no longer exists at this path afterwards
+     * @return the cached file
+     */
+    public Path store(String sha1, Path file) throws IOException {
+        Path entry = entryPath(sha1);
+        Files.createDirectories(entry.getParent());
+        Path temp = Files.createTempFile(entry.getParent(), sha1, ".tmp");
+        try {
+            Files.move(file, temp, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // Different file system
+            Files.copy(file, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.delete(file);
+        }
+
+        withLock(() -> {
+            Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            evict(entry);
+            return null;
+        });
+        logger.debug("Cached {} ({} bytes)", sha1, Files.size(entry));
+        return entry;
+    }
+
+    /**
+     * Records the hash of the archive published at a URL whose content never changes.
+     */
+    public void recordUrl(URI url, String sha1) throws IOException {
+        String key = entryPath(sha1).getFileName().toString();
+        Path record = urlPath(url);
+        Files.createDirectories(record.getParent());
+        Path temp = Files.createTempFile(record.getParent(), record.getFileName().toString(), ".tmp");
+        Files.writeString(temp, key, StandardCharsets.US_ASCII);
+        Files.move(temp, record, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Gets the hash {@linkplain #recordUrl recorded} for a URL, if any. The entry itself may be gone.
+     */
+    public Optional<String> findUrl(URI url) {
+        try {
+            String sha1 = Files.readString(urlPath(url), StandardCharsets.US_ASCII).trim();
+            return ENTRY_NAME.matcher(sha1).matches() ? Optional.of(sha1) : Optional.empty();
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Creates an empty file in the cache directory, for filling while downloading
+     * and then passing to {@link #store}.
+     */
+    public Path createTempFile() throws IOException {
+        return Files.createTempFile(Files.createDirectories(directory.resolve(OBJECTS_DIR)), "download-", ".tmp");
+    }
+
+    public Stats getStats() {
+        return new Stats(hits.get(), misses.get(), bytesServed.get(), evictions.get(), corruptions.get());
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits its size limit.
+     */
+    private void evict(Path keep) throws IOException {
+        record Entry(Path path, long size, FileTime lastUsed) {}
+
+        List<Entry> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(directory.resolve(OBJECTS_DIR))) {
+            for (Path path : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                if (!ENTRY_NAME.matcher(path.getFileName().toString()).matches()) {
+                    continue; // temporary and partial downloads, entry locks
+                }
+                try {
+                    entries.add(new Entry(path, Files.size(path), Files.getLastModifiedTime(path)));
+                } catch (NoSuchFileException e) {
+                    // Removed concurrently
+                }
+            }
+        }
+
+        long total = entries.stream().mapToLong(Entry::size).sum();
+        if (total <= maxBytes) {
+            return;
+        }
+
+        FileTime graceLimit = FileTime.from(Instant.now().minus(EVICTION_GRACE));
+        entries.sort(Comparator.comparing(Entry::lastUsed));
+        for (Entry entry : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (entry.path().equals(keep) || entry.lastUsed().compareTo(graceLimit) > 0) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(entry.path());
+                total -= entry.size();
+                evictions.incrementAndGet();
+                logger.debug("Evicted {} from the download cache", entry.path().getFileName());
+            } catch (IOException e) {
+                logger.warn("Cannot evict {}: {}", entry.path(), e.getMessage());
+            }
+        }
+    }
+
+    private Path entryPath(String sha1) {
+        String key = sha1.toLowerCase(Locale.ROOT);
+        if (!key.matches("[0-9a-f]{40}")) {
+            throw new IllegalArgumentException("Not a SHA-1: " + sha1);
+        }
+        return directory.resolve(OBJECTS_DIR).resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private Path urlPath(URI url) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 not available", e);
+        }
+        byte[] hash = digest.digest(url.toString().getBytes(StandardCharsets.UTF_8));
+        return directory.resolve(URLS_DIR).resolve(HexFormat.of().formatHex(hash));
+    }
+
+    private interface LockedAction<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Action run by {@link #withEntryLock}.
+     */
+    public interface EntryAction<T> {
+        T run() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Runs an action holding the lock of one entry, exclusive across processes,
+     * e.g. to download it to its {@linkplain #partialPath partial path} and store it.
+     * Callers in this JVM must not hold the lock of the same entry concurrently.
+     * Interrupting the caller while it waits closes the lock file and throws.
+     *
+     * @param sha1 SHA-1 of the entry, hex encoded
+     */
+    public <T> T withEntryLock(String sha1, EntryAction<T> action) throws IOException, InterruptedException {
+        Path entry = entryPath(sha1);
+        Files.createDirectories(entry.getParent());
+        try (FileChannel channel = FileChannel.open(entry.resolveSibling(entry.getFileName() + ENTRY_LOCK_SUFFIX),
+                 StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Closing the channel releases the lock
+            channel.lock();
+            return action.run();
+        }
+    }
+
+    /**
+     * Runs an action holding the cache lock, exclusive across threads and processes.
+     */
+    private synchronized <T> T withLock(LockedAction<T> action) throws IOException {
+        Files.createDirectories(directory);
+        try (FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE),
+                 StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Closing the channel releases the lock
+            channel.lock();
+            return action.run();
+        }
+    }
+
+    private static String sha1(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 not available", e);
+        }
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -0,0 +1,939 @@
+package net.nicolamurtas.android.emulator.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resumable HTTP downloader.
+ *
+ * Data is written to {@code <target>.part}, next to a small metadata file
+ * holding the validators ({@code ETag}, {@code Last-Modified}) of the
+ * response. After a failure, or in a later run, the download continues from
+ * the end of the part file with a {@code Range} request guarded by
+ * {@code If-Range}, so a changed remote file is fetched again from scratch.
+ * Transient failures are retried with exponential backoff; a connection that
+ * stalls without being dropped counts as one once no data arrived for a while.
+ */
+public class HttpDownloader {
+    private static final Logger logger = LoggerFactory.getLogger(HttpDownloader.class);
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int DEFAULT_MAX_ATTEMPTS = 6;
+    private static final Duration DEFAULT_INITIAL_BACKOFF = Duration.ofSeconds(1);
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(30);
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(60);
+    private static final Duration DEFAULT_READ_TIMEOUT = Duration.ofSeconds(60);
+    private static final int DEFAULT_MAX_SEGMENTS = 8;
+    private static final long DEFAULT_MIN_SEGMENTED_SIZE = 32L * 1024 * 1024;
+    private static final long CHUNK_SIZE = 8L * 1024 * 1024;
+    private static final int INITIAL_SEGMENTS = 2;
+    private static final long ADAPT_INTERVAL_MILLIS = 1000;
+    private static final double MIN_THROUGHPUT_GAIN = 1.10;
+    private static final long BACKGROUND_PAUSE_MILLIS = 200;
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+
+    /**
+     * Receives download progress.
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+        /**
+         * @param bytesDownloaded Bytes available locally, including resumed ones
+         * @param totalBytes Total size, or -1 if unknown
+         */
+        void onProgress(long bytesDownloaded, long totalBytes);
+    }
+
+    /**
+     * Outcome of a download.
+     *
+     * @param file Downloaded file
+     * @param size Size in bytes
+     * @param resumedFrom Offset the download resumed from, 0 if it started from scratch
+     * @param attempts Number of requests made
+     */
+    public record Result(Path file, long size, long resumedFrom, int attempts) {}
+
+    /**
+     * Priority of a background download. It pauses while foreground downloads are
+     * running in this JVM, leaving them the bandwidth, until it is promoted.
+     */
+    public static final class Priority {
+        private volatile boolean promoted;
+
+        /**
+         * Lets the download proceed at full speed from now on.
+         */
+        public void promote() {
+            promoted = true;
+        }
+
+        public boolean isPromoted() {
+            return promoted;
+        }
+
+        void yieldToForeground() throws InterruptedIOException {
+            try {
+                while (!promoted && foregroundDownloads.get() > 0) {
+                    Thread.sleep(BACKGROUND_PAUSE_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Background download interrupted");
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Background download interrupted");
+            }
+        }
+    }
+
+    /**
+     * Validators of a partially downloaded file.
+     */
+    private record PartState(String url, String etag, String lastModified, long totalBytes,
+                             long chunkSize, BitSet completedChunks) {
+
+        PartState(String url, String etag, String lastModified, long totalBytes) {
+            this(url, etag, lastModified, totalBytes, 0, null);
+        }
+
+        boolean isSegmented() {
+            return chunkSize > 0;
+        }
+
+        String ifRange() {
+            // Weak ETags are not allowed in If-Range
+            if (etag != null && !etag.startsWith("W/")) {
+                return etag;
+            }
+            return lastModified;
+        }
+    }
+
+    /** Foreground downloads running in this JVM; background ones pause while there are any. */
+    private static final AtomicInteger foregroundDownloads = new AtomicInteger();
+
+    /** Closes response bodies that stopped receiving data, see {@link StallGuardedInputStream}. */
+    private static final ScheduledExecutorService stallWatchdog = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "download-stall-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final HttpClient httpClient;
+    private final int maxAttempts;
+    private final Duration initialBackoff;
+    private volatile int maxSegments = DEFAULT_MAX_SEGMENTS;
+    private volatile long minSegmentedSize = DEFAULT_MIN_SEGMENTED_SIZE;
+    private volatile Duration requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+    private volatile Duration readTimeout = DEFAULT_READ_TIMEOUT;
+
+    public HttpDownloader() {
+        this(HttpClient.newBuilder()
+                .connectTimeout(CONNECT_TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build(),
+            DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF);
+    }
+
+    /**
+     * @param httpClient Client used for every request
+     * @param maxAttempts Requests made before giving up
+     * @param initialBackoff Delay before the first retry, doubled for each following one
+     */
+    public HttpDownloader(HttpClient httpClient, int maxAttempts, Duration initialBackoff) {
+        this.httpClient = httpClient;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoff = initialBackoff;
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Configures segmented downloads.
+     *
+     * @param maxSegments Maximum number of concurrent range requests per file, 1 disables segmentation
+     * @param minSegmentedSize Files smaller than this are fetched with a single stream
+     */
+    public void setSegmentation(int maxSegments, long minSegmentedSize) {
+        this.maxSegments = Math.max(1, maxSegments);
+        this.minSegmentedSize = minSegmentedSize;
+    }
+
+    /**
+     * Configures how long a request may wait.
+     *
+     * @param requestTimeout Maximum wait for the response headers
+     * @param readTimeout Maximum wait for more body data before the connection counts as stalled and is retried
+     */
+    public void setTimeouts(Duration requestTimeout, Duration readTimeout) {
+        this.requestTimeout = requestTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Downloads a URL to a file, resuming a previous partial download when possible.
+     *
+     * @param uri Source URL
+     * @param target Destination file, replaced once the download is complete
+     * @param listener Optional progress listener
+     */
+    public Result download(URI uri, Path target, ProgressListener listener) throws IOException, InterruptedException {
+        return download(uri, target, listener, null);
+    }
+
+    /**
+     * Downloads a URL to a file with a priority, resuming a previous partial download when possible.
+     *
+     * @param uri Source URL
+     * @param target Destination file, replaced once the download is complete
+     * @param listener Optional progress listener
+     * @param priority Background priority, or null for a foreground download
+     */
+    public Result download(URI uri, Path target, ProgressListener listener, Priority priority)
+            throws IOException, InterruptedException {
+        if (priority != null) {
+            return downloadWithPriority(uri, target, listener, priority);
+        }
+        foregroundDownloads.incrementAndGet();
+        try {
+            return downloadWithPriority(uri, target, listener, null);
+        } finally {
+            foregroundDownloads.decrementAndGet();
+        }
+    }
+
+    private Result downloadWithPriority(URI uri, Path target, ProgressListener listener, Priority priority)
+            throws IOException, InterruptedException {
+        Path partFile = target.resolveSibling(target.getFileName() + ".part");
+        Path metaFile = target.resolveSibling(target.getFileName() + ".part.meta");
+        if (target.getParent() != null) {
+            Files.createDirectories(target.getParent());
+        }
+
+        PartState segmentedState = readPartState(metaFile, uri);
+        if (segmentedState != null && segmentedState.isSegmented()
+                && (!Files.exists(partFile) || Files.size(partFile) != segmentedState.totalBytes())) {
+            // The completed chunks are only in a part file of the full size
+            logger.debug("Discarding segmented state of {}, its part file is missing or incomplete", uri);
+            Files.deleteIfExists(metaFile);
+            Files.deleteIfExists(partFile);
+            segmentedState = null;
+        }
+        // Background downloads stay on one connection
+        if (segmentedState == null && maxSegments > 1 && priority == null && !Files.exists(partFile)) {
+            segmentedState = probeSegmentation(uri, metaFile);
+        }
+        if (segmentedState != null && segmentedState.isSegmented()) {
+            try {
+                return downloadSegmented(uri, target, partFile, metaFile, segmentedState, listener);
+            } catch (RemoteFileChangedException e) {
+                logger.info("{} changed on the server, restarting download with a single stream", uri);
+                Files.deleteIfExists(metaFile);
+                Files.deleteIfExists(partFile);
+            }
+        }
+
+        long resumedFrom = -1;
+        IOException lastError = null;
+        Duration backoff = initialBackoff;
+
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            try {
+                PartState state = readPartState(metaFile, uri);
+                if (state != null && state.isSegmented()) {
+                    state = null;
+                }
+                long offset = state != null && Files.exists(partFile) ? Files.size(partFile) : 0;
+                if (resumedFrom < 0) {
+                    resumedFrom = offset;
+                }
+
+                long size = transfer(uri, partFile, metaFile, state, offset, listener, priority);
+
+                Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+                Files.deleteIfExists(metaFile);
+                logger.info("Download completed: {} ({} bytes, {} attempts)", target.getFileName(), size, attempt);
+                return new Result(target, size, resumedFrom, attempt);
+            } catch (NonRetryableException | InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                lastError = e;
+            }
+
+            if (attempt < maxAttempts) {
+                logger.warn("Download of {} failed (attempt {}/{}), retrying in {} ms: {}",
+                    uri, attempt, maxAttempts, backoff.toMillis(), lastError.getMessage());
+                Thread.sleep(backoff.toMillis());
+                backoff = backoff.multipliedBy(2);
+                if (backoff.compareTo(MAX_BACKOFF) > 0) {
+                    backoff = MAX_BACKOFF;
+                }
+            }
+        }
+
+        throw new IOException("Download failed after " + maxAttempts + " attempts: " + uri, lastError);
+    }
+
+    /**
+     * Opens a URL as a stream that transparently reconnects with a range request
+     * after a dropped connection, so callers can consume the body while it arrives
+     * without storing it first.
+     *
+     * @param uri Source URL
+     * @param listener Optional progress listener
+     * @throws IOException If the first request fails; later failures surface from {@code read}
+     */
+    public InputStream openStream(URI uri, ProgressListener listener) throws IOException, InterruptedException {
+        ResumingInputStream stream = new ResumingInputStream(uri, listener);
+        foregroundDownloads.incrementAndGet();
+        try {
+            stream.connect();
+        } catch (InterruptedIOException e) {
+            stream.close();
+            throw new InterruptedException(e.getMessage());
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+        return stream;
+    }
+
+    /**
+     * Performs one request, appending to the part file.
+     *
+     * @return the complete size of the part file
+     */
+    private long transfer(URI uri, Path partFile, Path metaFile, PartState state, long offset,
+                          ProgressListener listener, Priority priority) throws IOException, InterruptedException {
+
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(requestTimeout).GET();
+        if (offset > 0) {
+            request.header("Range", "bytes=" + offset + "-");
+            String ifRange = state.ifRange();
+            if (ifRange != null) {
+                request.header("If-Range", ifRange);
+            }
+        }
+
+        HttpResponse<InputStream> response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        int status = response.statusCode();
+        HttpHeaders headers = response.headers();
+
+        try (InputStream body = new StallGuardedInputStream(response.body())) {
+            long start;
+            long total;
+            if (status == 206) {
+                Matcher range = CONTENT_RANGE_PATTERN.matcher(headers.firstValue("Content-Range").orElse(""));
+                if (!range.matches() || Long.parseLong(range.group(1)) != offset) {
+                    // Unusable range, start over
+                    Files.deleteIfExists(metaFile);
+                    Files.deleteIfExists(partFile);
+                    throw new RetryableException("Unexpected Content-Range: " + headers.firstValue("Content-Range"));
+                }
+                start = offset;
+                total = "*".equals(range.group(3)) ? state.totalBytes() : Long.parseLong(range.group(3));
+                logger.info("Resuming download of {} at {} bytes", uri, offset);
+            } else if (status == 200) {
+                // Full body: no resume requested, ranges unsupported or the file changed
+                if (offset > 0) {
+                    logger.info("Server sent the whole file for {}, restarting download", uri);
+                }
+                start = 0;
+                OptionalLong length = headers.firstValueAsLong("Content-Length");
+                total = length.isPresent() ? length.getAsLong() : -1;
+                writePartState(metaFile, new PartState(uri.toString(),
+                    headers.firstValue("ETag").orElse(null),
+                    headers.firstValue("Last-Modified").orElse(null), total));
+            } else if (status == 416 && offset > 0 && state.totalBytes() == offset) {
+                // Already complete
+                return offset;
+            } else if (status == 416) {
+                Files.deleteIfExists(metaFile);
+                Files.deleteIfExists(partFile);
+                throw new RetryableException("HTTP 416 for " + uri + ", restarting download");
+            } else if (status == 408 || status == 429 || status >= 500) {
+                throw new RetryableException("HTTP " + status + " downloading " + uri);
+            } else {
+                throw new NonRetryableException("HTTP " + status + " downloading " + uri);
+            }
+
+            long written = writeBody(body, partFile, start, total, listener, priority);
+            if (total >= 0 && written != total) {
+                throw new RetryableException("Connection closed at " + written + " of " + total + " bytes");
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Streams a response body into the part file at the given position.
+     *
+     * @return the size of the part file afterwards
+     */
+    private long writeBody(InputStream body, Path partFile, long start, long total,
+                           ProgressListener listener, Priority priority) throws IOException {
+        try (FileChannel channel = FileChannel.open(partFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(start);
+            long position = start;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                byteBuffer.clear().limit(read);
+                while (byteBuffer.hasRemaining()) {
+                    position += channel.write(byteBuffer, position);
+                }
+                if (listener != null) {
+                    listener.onProgress(position, total);
+                }
+                if (priority != null) {
+                    priority.yieldToForeground();
+                }
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Checks with a one-byte range request whether a file can be fetched in segments.
+     *
+     * @return the initial segmented state, or null to use a single stream
+     */
+    private PartState probeSegmentation(URI uri, Path metaFile) throws IOException, InterruptedException {
+        HttpResponse<InputStream> response;
+        try {
+            response = httpClient.send(HttpRequest.newBuilder(uri).timeout(requestTimeout)
+                    .header("Range", "bytes=0-0").GET().build(),
+                HttpResponse.BodyHandlers.ofInputStream());
+            // A server ignoring the range would send the whole file, do not read it here
+            response.body().close();
+        } catch (IOException e) {
+            logger.debug("Range probe failed for {}, using a single stream", uri, e);
+            return null;
+        }
+
+        HttpHeaders headers = response.headers();
+        Matcher range = CONTENT_RANGE_PATTERN.matcher(headers.firstValue("Content-Range").orElse(""));
+        if (response.statusCode() != 206 || !range.matches() || "*".equals(range.group(3))) {
+            logger.debug("{} does not support ranges, using a single stream", uri);
+            return null;
+        }
+
+        String etag = headers.firstValue("ETag").filter(tag -> !tag.startsWith("W/")).orElse(null);
+        String lastModified = headers.firstValue("Last-Modified").orElse(null);
+        long totalBytes = Long.parseLong(range.group(3));
+        if (totalBytes < minSegmentedSize || (etag == null && lastModified == null)) {
+            return null;
+        }
+
+        PartState state = new PartState(uri.toString(), etag, lastModified, totalBytes, CHUNK_SIZE, new BitSet());
+        writePartState(metaFile, state);
+        return state;
+    }
+
+    /**
+     * Fetches a file as fixed-size chunks over several concurrent range requests,
+     * writing each chunk at its position in a preallocated part file.
+     *
+     * Starts with a couple of connections and keeps adding one while the
+     * measured throughput still improves noticeably. Completed chunks are
+     * recorded in the metadata file so an interrupted download resumes with
+     * only the missing chunks.
+     */
+    private Result downloadSegmented(URI uri, Path target, Path partFile, Path metaFile, PartState state,
+                                     ProgressListener listener) throws IOException, InterruptedException {
+        long totalBytes = state.totalBytes();
+        int chunkCount = (int) ((totalBytes + state.chunkSize() - 1) / state.chunkSize());
+        BitSet completed = state.completedChunks();
+
+        Queue<Integer> pending = new ConcurrentLinkedQueue<>();
+        long alreadyDownloaded = 0;
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            if (completed.get(chunk)) {
+                alreadyDownloaded += chunkLength(state, chunk);
+            } else {
+                pending.add(chunk);
+            }
+        }
+        if (alreadyDownloaded > 0) {
+            logger.info("Resuming segmented download of {}: {} of {} chunks missing", uri, pending.size(), chunkCount);
+        }
+
+        AtomicLong downloaded = new AtomicLong(alreadyDownloaded);
+        AtomicInteger requests = new AtomicInteger();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+
+        try (FileChannel channel = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Preallocate so positional writes never extend the file concurrently
+            if (channel.size() != totalBytes) {
+                channel.truncate(totalBytes);
+                channel.write(ByteBuffer.wrap(new byte[1]), totalBytes - 1);
+            }
+
+            Runnable worker = () -> {
+                Integer chunk;
+                while (failure.get() == null && (chunk = pending.poll()) != null) {
+                    try {
+                        requests.addAndGet(fetchChunk(uri, state, chunk, channel, downloaded, listener));
+                        synchronized (completed) {
+                            completed.set(chunk);
+                            writePartState(metaFile, state);
+                        }
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        failure.compareAndSet(null, new InterruptedIOException("Download interrupted"));
+                    }
+                }
+            };
+
+            try {
+                int segments = Math.min(Math.min(INITIAL_SEGMENTS, maxSegments), Math.max(1, pending.size()));
+                for (int i = 0; i < segments; i++) {
+                    workers.add(Thread.ofVirtual().name("download-segment-" + i).start(worker));
+                }
+
+                // Add connections while they still pay off
+                double previousThroughput = 0;
+                long previousBytes = downloaded.get();
+                long previousTime = System.nanoTime();
+                boolean growing = true;
+                Optional<Thread> alive;
+                while ((alive = workers.stream().filter(Thread::isAlive).findFirst()).isPresent()) {
+                    alive.get().join(ADAPT_INTERVAL_MILLIS);
+                    long now = System.nanoTime();
+                    if (now - previousTime < ADAPT_INTERVAL_MILLIS * 1_000_000) {
+                        continue;
+                    }
+                    long bytes = downloaded.get();
+                    double throughput = (bytes - previousBytes) * 1e9 / (now - previousTime);
+                    previousBytes = bytes;
+                    previousTime = now;
+
+                    if (growing && workers.size() < maxSegments && pending.size() > 0 && failure.get() == null) {
+                        if (throughput > previousThroughput * MIN_THROUGHPUT_GAIN) {
+                            workers.add(Thread.ofVirtual().name("download-segment-" + workers.size()).start(worker));
+                            logger.debug("Throughput {} KB/s, using {} connections",
+                                (long) (throughput / 1024), workers.size());
+                        } else {
+                            growing = false;
+                            logger.debug("Throughput settled at {} KB/s with {} connections",
+                                (long) (throughput / 1024), workers.size() - 1);
+                        }
+                        previousThroughput = throughput;
+                    }
+                }
+            } finally {
+                // Workers write to the channel and the metadata file, neither may outlive this call
+                stopWorkers(workers);
+            }
+        }
+
+        IOException error = failure.get();
+        if (error != null) {
+            throw error;
+        }
+
+        Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(metaFile);
+        logger.info("Download completed: {} ({} bytes, {} connections)", target.getFileName(), totalBytes, workers.size());
+        return new Result(target, totalBytes, alreadyDownloaded, requests.get());
+    }
+
+    /**
+     * Fetches one chunk, retrying with backoff.
+     *
+     * @return the number of requests it took
+     */
+    private int fetchChunk(URI uri, PartState state, int chunk, FileChannel channel,
+                            AtomicLong downloaded, ProgressListener listener) throws IOException, InterruptedException {
+        long start = chunk * state.chunkSize();
+        long end = start + chunkLength(state, chunk) - 1;
+        Duration backoff = initialBackoff;
+
+        for (int attempt = 1; ; attempt++) {
+            long written = 0;
+            try {
+                HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(requestTimeout).GET()
+                    .header("Range", "bytes=" + start + "-" + end);
+                if (state.ifRange() != null) {
+                    request.header("If-Range", state.ifRange());
+                }
+                HttpResponse<InputStream> response = httpClient.send(request.build(),
+                    HttpResponse.BodyHandlers.ofInputStream());
+
+                try (InputStream body = new StallGuardedInputStream(response.body())) {
+                    if (response.statusCode() == 200) {
+                        throw new RemoteFileChangedException(uri);
+                    }
+                    if (response.statusCode() != 206) {
+                        throw new RetryableException("HTTP " + response.statusCode() + " for chunk " + chunk);
+                    }
+
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = body.read(buffer)) != -1) {
+                        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, (int) Math.min(read, end - start + 1 - written));
+                        while (byteBuffer.hasRemaining()) {
+                            written += channel.write(byteBuffer, start + written);
+                        }
+                        long total = downloaded.addAndGet(byteBuffer.limit());
+                        if (listener != null) {
+                            listener.onProgress(total, state.totalBytes());
+                        }
+                    }
+                }
+                if (written != end - start + 1) {
+                    throw new RetryableException("Chunk " + chunk + " truncated at " + written + " bytes");
+                }
+                return attempt;
+            } catch (RemoteFileChangedException e) {
+                throw e;
+            } catch (IOException e) {
+                downloaded.addAndGet(-written);
+                if (attempt >= maxAttempts) {
+                    throw new IOException("Chunk " + chunk + " of " + uri + " failed after " + attempt + " attempts", e);
+                }
+                logger.debug("Chunk {} of {} failed (attempt {}), retrying: {}", chunk, uri, attempt, e.getMessage());
+                Thread.sleep(backoff.toMillis());
+                backoff = backoff.multipliedBy(2);
+                if (backoff.compareTo(MAX_BACKOFF) > 0) {
+                    backoff = MAX_BACKOFF;
+                }
+            }
+        }
+    }
+
+    /**
+     * Interrupts the workers still running, then waits for every one of them,
+     * even if the caller is interrupted meanwhile.
+     */
+    private static void stopWorkers(List<Thread> workers) {
+        workers.stream().filter(Thread::isAlive).forEach(Thread::interrupt);
+        boolean interrupted = false;
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long chunkLength(PartState state, int chunk) {
+        long start = chunk * state.chunkSize();
+        return Math.min(state.chunkSize(), state.totalBytes() - start);
+    }
+
+    private PartState readPartState(Path metaFile, URI uri) {
+        if (!Files.exists(metaFile)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(metaFile)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            logger.debug("Ignoring unreadable download metadata: {}", metaFile, e);
+            return null;
+        }
+
+        String url = properties.getProperty("url");
+        String etag = properties.getProperty("etag");
+        String lastModified = properties.getProperty("lastModified");
+        if (!uri.toString().equals(url) || (etag == null && lastModified == null)) {
+            // Without a validator a resumed file could mix two versions
+            return null;
+        }
+        long totalBytes = Long.parseLong(properties.getProperty("totalBytes", "-1"));
+        long chunkSize = Long.parseLong(properties.getProperty("chunkSize", "0"));
+        BitSet completed = BitSet.valueOf(HexFormat.of().parseHex(properties.getProperty("completedChunks", "")));
+        return new PartState(url, etag, lastModified, totalBytes, chunkSize, completed);
+    }
+
+    private void writePartState(Path metaFile, PartState state) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("url", state.url());
+        Optional.ofNullable(state.etag()).ifPresent(etag -> properties.setProperty("etag", etag));
+        Optional.ofNullable(state.lastModified()).ifPresent(date -> properties.setProperty("lastModified", date));
+        properties.setProperty("totalBytes", String.valueOf(state.totalBytes()));
+        if (state.isSegmented()) {
+            properties.setProperty("chunkSize", String.valueOf(state.chunkSize()));
+            properties.setProperty("completedChunks", HexFormat.of().formatHex(state.completedChunks().toByteArray()));
+        }
+        try (Writer writer = Files.newBufferedWriter(metaFile)) {
+            properties.store(writer, null);
+        }
+    }
+
+    /**
+     * Failure worth another attempt.
+     */
+    private static final class RetryableException extends IOException {
+        RetryableException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Response body that a watchdog closes once no data arrived for the read timeout,
+     * so a connection a proxy stalls instead of dropping fails with a retryable
+     * error rather than blocking its reader forever.
+     */
+    private final class StallGuardedInputStream extends FilterInputStream {
+        private final Duration timeout = readTimeout;
+        private final ScheduledFuture<?> check;
+        private volatile long lastActivity = System.nanoTime();
+        private volatile boolean stalled;
+
+        StallGuardedInputStream(InputStream body) {
+            super(body);
+            long interval = Math.max(1, timeout.toMillis() / 4);
+            check = stallWatchdog.scheduleWithFixedDelay(this::checkStall, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        private void checkStall() {
+            if (!stalled && System.nanoTime() - lastActivity > timeout.toNanos()) {
+                stalled = true;
+                check.cancel(false);
+                try {
+                    // Wakes up the blocked read
+                    in.close();
+                } catch (IOException e) {
+                    logger.trace("Error closing stalled response body", e);
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read;
+            try {
+                read = in.read(buffer, offset, length);
+            } catch (IOException e) {
+                if (stalled) {
+                    throw stallFailure();
+                }
+                throw e;
+            }
+            // A closed body may also just report its end
+            if (read == -1 && stalled) {
+                throw stallFailure();
+            }
+            lastActivity = System.nanoTime();
+            return read;
+        }
+
+        private RetryableException stallFailure() {
+            return new RetryableException("No data received for " + timeout.toMillis() + " ms");
+        }
+
+        @Override
+        public void close() throws IOException {
+            check.cancel(false);
+            super.close();
+        }
+    }
+
+    /**
+     * Response body stream that resumes at the current position after a failure.
+     */
+    private final class ResumingInputStream extends InputStream {
+        private final URI uri;
+        private final ProgressListener listener;
+        private InputStream body;
+        private long position;
+        private long totalBytes = -1;
+        private String ifRange;
+        private int attempts;
+        private boolean closed;
+        private Duration backoff = initialBackoff;
+
+        ResumingInputStream(URI uri, ProgressListener listener) {
+            this.uri = uri;
+            this.listener = listener;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (true) {
+                try {
+                    if (body == null) {
+                        connect();
+                    }
+                    int read = body.read(buffer, offset, length);
+                    if (read == -1) {
+                        if (totalBytes >= 0 && position < totalBytes) {
+                            throw new RetryableException("Connection closed at " + position + " of " + totalBytes + " bytes");
+                        }
+                        return -1;
+                    }
+                    position += read;
+                    if (listener != null) {
+                        listener.onProgress(position, totalBytes);
+                    }
+                    return read;
+                } catch (NonRetryableException | InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    closeBody();
+                    if (attempts >= maxAttempts) {
+                        throw new IOException("Download failed after " + attempts + " attempts: " + uri, e);
+                    }
+                    logger.warn("Stream of {} failed at {} bytes (attempt {}/{}), retrying in {} ms: {}",
+                        uri, position, attempts, maxAttempts, backoff.toMillis(), e.getMessage());
+                    sleepBackoff();
+                }
+            }
+        }
+
+        void connect() throws IOException {
+            attempts++;
+            HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(requestTimeout).GET();
+            if (position > 0) {
+                request.header("Range", "bytes=" + position + "-");
+                if (ifRange != null) {
+                    request.header("If-Range", ifRange);
+                }
+            }
+
+            HttpResponse<InputStream> response;
+            try {
+                response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Download interrupted: " + uri);
+            }
+
+            int status = response.statusCode();
+            HttpHeaders headers = response.headers();
+            if (status == 200 && position == 0) {
+                OptionalLong length = headers.firstValueAsLong("Content-Length");
+                totalBytes = length.isPresent() ? length.getAsLong() : -1;
+                ifRange = new PartState(uri.toString(), headers.firstValue("ETag").orElse(null),
+                    headers.firstValue("Last-Modified").orElse(null), totalBytes).ifRange();
+            } else if (status == 206 && position > 0) {
+                Matcher range = CONTENT_RANGE_PATTERN.matcher(headers.firstValue("Content-Range").orElse(""));
+                if (!range.matches() || Long.parseLong(range.group(1)) != position) {
+                    response.body().close();
+                    throw new NonRetryableException("Unexpected Content-Range resuming " + uri);
+                }
+                logger.info("Resumed stream of {} at {} bytes", uri, position);
+            } else {
+                response.body().close();
+                if (status == 200) {
+                    // Bytes already handed to the reader cannot be taken back
+                    throw new NonRetryableException("Cannot resume stream of " + uri + ": the server sent the whole file");
+                } else if (status == 408 || status == 429 || status >= 500) {
+                    throw new RetryableException("HTTP " + status + " downloading " + uri);
+                }
+                throw new NonRetryableException("HTTP " + status + " downloading " + uri);
+            }
+            body = new StallGuardedInputStream(response.body());
+        }
+
+        private void sleepBackoff() throws InterruptedIOException {
+            try {
+                Thread.sleep(backoff.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Download interrupted: " + uri);
+            }
+            backoff = backoff.multipliedBy(2);
+            if (backoff.compareTo(MAX_BACKOFF) > 0) {
+                backoff = MAX_BACKOFF;
+            }
+        }
+
+        private void closeBody() {
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException e) {
+                    logger.trace("Error closing response body", e);
+                }
+                body = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            closeBody();
+            if (!closed) {
+                closed = true;
+                foregroundDownloads.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The remote file no longer matches the validators of the part file.
+     */
+    private static final class RemoteFileChangedException extends IOException {
+        RemoteFileChangedException(URI uri) {
+            super("Remote file changed: " + uri);
+        }
+    }
+
+    /**
+     * Failure that another attempt would not fix, e.g. HTTP 404.
+     */
+    private static final class NonRetryableException extends IOException {
+        NonRetryableException(String message) {
+            super(message);
+        }
+    }
+}
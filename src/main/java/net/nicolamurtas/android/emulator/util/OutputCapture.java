@@ -0,0 +1,361 @@
+package net.nicolamurtas.android.emulator.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Policy deciding how much of a process stream is kept in memory.
+ *
+ * Streams are split into lines at the byte level with reusable buffers, so
+ * lines are only decoded when they are actually kept or consumed. Both
+ * {@code \n} and bare {@code \r} (progress bars) end a line.
+ */
+public final class OutputCapture {
+    private static final Logger logger = LoggerFactory.getLogger(OutputCapture.class);
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+    private static final int SPILL_TAIL_LINES = 20;
+
+    /**
+     * Capture strategy.
+     */
+    public enum Kind {
+        FULL,
+        TAIL_LINES,
+        TAIL_BYTES,
+        SPILL_TO_FILE,
+        DISCARD
+    }
+
+    private static final OutputCapture FULL = new OutputCapture(Kind.FULL, 0, null);
+    private static final OutputCapture DISCARD = new OutputCapture(Kind.DISCARD, 0, null);
+
+    private final Kind kind;
+    private final long limit;
+    private final Path spillFile;
+
+    private OutputCapture(Kind kind, long limit, Path spillFile) {
+        this.kind = kind;
+        this.limit = limit;
+        this.spillFile = spillFile;
+    }
+
+    /**
+     * Keeps every line.
+     */
+    public static OutputCapture full() {
+        return FULL;
+    }
+
+    /**
+     * Keeps only the last {@code maxLines} lines.
+     */
+    public static OutputCapture tailLines(int maxLines) {
+        if (maxLines <= 0) {
+            throw new IllegalArgumentException("maxLines must be positive");
+        }
+        return new OutputCapture(Kind.TAIL_LINES, maxLines, null);
+    }
+
+    /**
+     * Keeps the most recent lines whose total size does not exceed {@code maxBytes}.
+     */
+    public static OutputCapture tailBytes(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        return new OutputCapture(Kind.TAIL_BYTES, maxBytes, null);
+    }
+
+    /**
+     * Writes the raw stream to a file, up to {@code maxBytes}, keeping only a short tail in memory.
+     */
+    public static OutputCapture spillToFile(Path file, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        return new OutputCapture(Kind.SPILL_TO_FILE, maxBytes, file);
+    }
+
+    /**
+     * Drains the stream without keeping anything.
+     */
+    public static OutputCapture discard() {
+        return DISCARD;
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    /**
+     * Reads a stream to its end according to this policy.
+     *
+     * @param inputStream Stream to drain
+     * @param lineConsumer Optional callback receiving every line, regardless of what is kept
+     * @return the kept lines, oldest first
+     */
+    public List<String> capture(InputStream inputStream, Consumer<String> lineConsumer) throws IOException {
+        Collector collector = newCollector(lineConsumer);
+        try (inputStream; collector) {
+            byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(readBuffer)) != -1) {
+                collector.write(readBuffer, 0, read);
+            }
+        }
+        return collector.getLines();
+    }
+
+    /**
+     * Creates a collector that applies this policy to bytes written to it.
+     * Useful when output is produced in-process rather than read from a stream.
+     *
+     * @param lineConsumer Optional callback receiving every line, regardless of what is kept
+     */
+    public Collector newCollector(Consumer<String> lineConsumer) throws IOException {
+        return new Collector(createSink(), lineConsumer);
+    }
+
+    /**
+     * Output stream splitting written bytes into lines and feeding them to the policy.
+     * Closing it flushes the last unterminated line; the kept lines are then available.
+     */
+    public static final class Collector extends OutputStream {
+        private final LineSink sink;
+        private final Consumer<String> lineConsumer;
+        private final boolean decodeLines;
+        private final Charset charset = Charset.defaultCharset();
+
+        private byte[] lineBuffer = new byte[256];
+        private int lineLength;
+        private boolean previousWasCr;
+        private int truncatedLines;
+        private boolean closed;
+
+        private Collector(LineSink sink, Consumer<String> lineConsumer) {
+            this.sink = sink;
+            this.lineConsumer = lineConsumer;
+            this.decodeLines = lineConsumer != null || sink.needsLines();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+            if (closed) {
+                return;
+            }
+            sink.raw(buffer, offset, length);
+            if (!decodeLines) {
+                return;
+            }
+
+            for (int i = offset; i < offset + length; i++) {
+                byte b = buffer[i];
+                if (b == '\n' || b == '\r') {
+                    if (!(b == '\n' && previousWasCr)) {
+                        emitLine();
+                    }
+                    previousWasCr = b == '\r';
+                    continue;
+                }
+                previousWasCr = false;
+
+                if (lineLength == lineBuffer.length) {
+                    if (lineLength >= MAX_LINE_BYTES) {
+                        if (lineLength == MAX_LINE_BYTES) {
+                            truncatedLines++;
+                            lineLength++; // mark as truncated, extra bytes are dropped
+                        }
+                        continue;
+                    }
+                    lineBuffer = Arrays.copyOf(lineBuffer, Math.min(lineLength * 2, MAX_LINE_BYTES));
+                }
+                if (lineLength < lineBuffer.length) {
+                    lineBuffer[lineLength++] = b;
+                }
+            }
+        }
+
+        private void emitLine() {
+            int length = Math.min(lineLength, lineBuffer.length);
+            String line = new String(lineBuffer, 0, length, charset);
+            if (lineConsumer != null) {
+                lineConsumer.accept(line);
+            }
+            sink.line(line, length);
+            lineLength = 0;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (decodeLines && lineLength > 0) {
+                emitLine();
+            }
+            if (truncatedLines > 0) {
+                logger.debug("{} process output lines longer than {} bytes were truncated",
+                    truncatedLines, MAX_LINE_BYTES);
+            }
+            sink.close();
+        }
+
+        /**
+         * Gets the kept lines, oldest first.
+         */
+        public synchronized List<String> getLines() {
+            return sink.result();
+        }
+    }
+
+    private LineSink createSink() throws IOException {
+        return switch (kind) {
+            case FULL -> new FullSink();
+            case TAIL_LINES -> new TailSink(limit, Long.MAX_VALUE);
+            case TAIL_BYTES -> new TailSink(Long.MAX_VALUE, limit);
+            case SPILL_TO_FILE -> new SpillSink(spillFile, limit);
+            case DISCARD -> new DiscardSink();
+        };
+    }
+
+    /**
+     * Receives the raw bytes and/or decoded lines of a stream.
+     */
+    private interface LineSink extends AutoCloseable {
+        boolean needsLines();
+
+        default void raw(byte[] buffer, int offset, int length) throws IOException {
+        }
+
+        default void line(String line, int byteLength) {
+        }
+
+        List<String> result();
+
+        @Override
+        default void close() throws IOException {
+        }
+    }
+
+    private static final class FullSink implements LineSink {
+        private final List<String> lines = new ArrayList<>();
+
+        @Override
+        public boolean needsLines() {
+            return true;
+        }
+
+        @Override
+        public void line(String line, int byteLength) {
+            lines.add(line);
+        }
+
+        @Override
+        public List<String> result() {
+            return lines;
+        }
+    }
+
+    private static class TailSink implements LineSink {
+        private final Deque<String> lines = new ArrayDeque<>();
+        private final Deque<Integer> sizes = new ArrayDeque<>();
+        private final long maxLines;
+        private final long maxBytes;
+        private long bytes;
+
+        TailSink(long maxLines, long maxBytes) {
+            this.maxLines = maxLines;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public boolean needsLines() {
+            return true;
+        }
+
+        @Override
+        public void line(String line, int byteLength) {
+            lines.addLast(line);
+            sizes.addLast(byteLength);
+            bytes += byteLength;
+            while (!lines.isEmpty() && (lines.size() > maxLines || bytes > maxBytes)) {
+                lines.removeFirst();
+                bytes -= sizes.removeFirst();
+            }
+        }
+
+        @Override
+        public List<String> result() {
+            return new ArrayList<>(lines);
+        }
+    }
+
+    private static final class SpillSink extends TailSink {
+        private final FileChannel channel;
+        private final long maxBytes;
+        private long written;
+
+        SpillSink(Path file, long maxBytes) throws IOException {
+            super(SPILL_TAIL_LINES, Long.MAX_VALUE);
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public void raw(byte[] buffer, int offset, int length) throws IOException {
+            int toWrite = (int) Math.min(length, maxBytes - written);
+            if (toWrite <= 0) {
+                return;
+            }
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, toWrite);
+            while (byteBuffer.hasRemaining()) {
+                written += channel.write(byteBuffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static final class DiscardSink implements LineSink {
+        @Override
+        public boolean needsLines() {
+            return false;
+        }
+
+        @Override
+        public List<String> result() {
+            return List.of();
+        }
+    }
+}
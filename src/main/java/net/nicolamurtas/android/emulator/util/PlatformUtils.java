@@ -4,9 +4,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 /**
  * Utility class for platform-specific operations and OS detection.
@@ -76,6 +83,26 @@ public class PlatformUtils {
         return Paths.get(userHome, "Android", "sdk");
     }
 
+    /**
+     * Gets the default per-user directory for cached downloads.
+     */
+    public static Path getDefaultDownloadCachePath() {
+        String userHome = System.getProperty("user.home");
+        return switch (getOperatingSystem()) {
+            case WINDOWS -> {
+                String localAppData = System.getenv("LOCALAPPDATA");
+                Path base = localAppData != null ? Paths.get(localAppData) : Paths.get(userHome, "AppData", "Local");
+                yield base.resolve("AndroidEmulatorManager").resolve("downloads");
+            }
+            case MACOS -> Paths.get(userHome, "Library", "Caches", "AndroidEmulatorManager", "downloads");
+            default -> {
+                String xdgCache = System.getenv("XDG_CACHE_HOME");
+                Path base = xdgCache != null && !xdgCache.isEmpty() ? Paths.get(xdgCache) : Paths.get(userHome, ".cache");
+                yield base.resolve("android-emulator-manager").resolve("downloads");
+            }
+        };
+    }
+
     /**
      * Gets the appropriate executable extension for the current OS.
      * Returns ".bat" for Windows, empty string for Unix-like systems.
@@ -92,7 +119,8 @@ public class PlatformUtils {
     }
 
     /**
-     * Makes a file executable on Unix-like systems.
+     * Makes a file executable on Unix-like systems, like {@code chmod +x} but
+     * without starting a process. Execute is granted to whoever can read the file.
      * No-op on Windows.
      */
     public static void makeExecutable(Path filePath) throws IOException {
@@ -104,44 +132,99 @@ public class PlatformUtils {
             throw new IOException("File does not exist: " + filePath);
         }
 
-        try {
-            // Use ProcessBuilder for secure execution
-            ProcessBuilder pb = new ProcessBuilder("chmod", "+x", filePath.toString());
-            Process process = pb.start();
-            int exitCode = process.waitFor();
-
-            if (exitCode != 0) {
-                throw new IOException("Failed to make file executable: " + filePath);
-            }
-
-            logger.debug("Made file executable: {}", filePath);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new IOException("Interrupted while making file executable", e);
-        }
+        addExecutePermission(filePath);
+        logger.debug("Made file executable: {}", filePath);
     }
 
     /**
      * Makes all files in a directory executable recursively.
      */
     public static void makeDirectoryExecutable(Path directory) throws IOException {
+        int count = makeTreeExecutable(directory, file -> true);
+        logger.debug("Made {} files executable in {}", count, directory);
+    }
+
+    /**
+     * Makes the matching regular files of a directory tree executable, without
+     * starting any process.
+     *
+     * @param directory Root of the tree
+     * @param filter Selects the files to change
+     * @return the number of files changed; 0 on Windows
+     */
+    public static int makeTreeExecutable(Path directory, Predicate<Path> filter) throws IOException {
         if (isWindows()) {
-            return;
+            return 0;
         }
 
         if (!Files.isDirectory(directory)) {
             throw new IOException("Not a directory: " + directory);
         }
 
-        Files.walk(directory)
-            .filter(Files::isRegularFile)
-            .forEach(file -> {
+        int count = 0;
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile).filter(filter)::iterator) {
                 try {
-                    makeExecutable(file);
+                    addExecutePermission(file);
+                    count++;
                 } catch (IOException e) {
                     logger.warn("Failed to make file executable: {}", file, e);
                 }
-            });
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Applies POSIX permissions to many files at once.
+     * No-op on file systems without POSIX permissions.
+     *
+     * @return the number of files changed
+     */
+    public static int setPosixPermissions(Map<Path, Set<PosixFilePermission>> permissions) {
+        if (!supportsPosixPermissions()) {
+            return 0;
+        }
+
+        int count = 0;
+        for (Map.Entry<Path, Set<PosixFilePermission>> entry : permissions.entrySet()) {
+            try {
+                Files.setPosixFilePermissions(entry.getKey(), entry.getValue());
+                count++;
+            } catch (IOException e) {
+                logger.warn("Failed to set permissions of {}", entry.getKey(), e);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Checks if the default file system has POSIX permissions.
+     */
+    public static boolean supportsPosixPermissions() {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    }
+
+    private static void addExecutePermission(Path file) throws IOException {
+        if (!supportsPosixPermissions()) {
+            if (!file.toFile().setExecutable(true, false)) {
+                throw new IOException("Failed to make file executable: " + file);
+            }
+            return;
+        }
+
+        Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+        permissions.addAll(Files.getPosixFilePermissions(file));
+        boolean changed = permissions.add(PosixFilePermission.OWNER_EXECUTE);
+        if (permissions.contains(PosixFilePermission.GROUP_READ)) {
+            changed |= permissions.add(PosixFilePermission.GROUP_EXECUTE);
+        }
+        if (permissions.contains(PosixFilePermission.OTHERS_READ)) {
+            changed |= permissions.add(PosixFilePermission.OTHERS_EXECUTE);
+        }
+        if (changed) {
+            Files.setPosixFilePermissions(file, permissions);
+        }
     }
 
     /**
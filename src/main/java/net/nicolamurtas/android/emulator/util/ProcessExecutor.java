@@ -5,10 +5,17 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * Secure wrapper for executing system processes.
@@ -47,7 +54,7 @@ public class ProcessExecutor {
     }
 
     /**
-     * Executes a command with full control over parameters.
+     * Executes a command with full control over parameters, keeping all output.
      *
      * @param workingDirectory Working directory for the process
      * @param environmentVars Additional environment variables
@@ -61,6 +68,75 @@ public class ProcessExecutor {
             int timeoutMinutes,
             Consumer<PrintWriter> inputProvider,
             String... command) throws IOException, InterruptedException {
+        return execute(workingDirectory, environmentVars, timeoutMinutes, inputProvider,
+            OutputCapture.full(), OutputCapture.full(), command);
+    }
+
+    /**
+     * Executes a command with full control over parameters and output capture.
+     *
+     * @param workingDirectory Working directory for the process
+     * @param environmentVars Additional environment variables
+     * @param timeoutMinutes Timeout in minutes
+     * @param inputProvider Function to provide input to the process
+     * @param outputCapture How much of stdout is kept in the result
+     * @param errorCapture How much of stderr is kept in the result
+     * @param command Command and arguments to execute
+     */
+    public static ExecutionResult execute(
+            Path workingDirectory,
+            java.util.Map<String, String> environmentVars,
+            int timeoutMinutes,
+            Consumer<PrintWriter> inputProvider,
+            OutputCapture outputCapture,
+            OutputCapture errorCapture,
+            String... command) throws IOException, InterruptedException {
+        return await(executeNonBlocking(workingDirectory, environmentVars,
+            Duration.ofMinutes(timeoutMinutes), inputProvider, outputCapture, errorCapture, command));
+    }
+
+    /**
+     * Executes a command without blocking the caller.
+     *
+     * The returned future completes when the process has exited and both streams
+     * are drained. It fails with an {@link IOException} if the process cannot be
+     * started or exceeds the deadline; in that case, or when the future is
+     * cancelled, the process is killed.
+     *
+     * @param workingDirectory Working directory for the process
+     * @param environmentVars Additional environment variables
+     * @param timeout Deadline for the whole execution, or null for none
+     * @param inputProvider Function to provide input to the process
+     * @param outputCapture How much of stdout is kept in the result
+     * @param errorCapture How much of stderr is kept in the result
+     * @param command Command and arguments to execute
+     */
+    public static CompletableFuture<ExecutionResult> executeNonBlocking(
+            Path workingDirectory,
+            java.util.Map<String, String> environmentVars,
+            Duration timeout,
+            Consumer<PrintWriter> inputProvider,
+            OutputCapture outputCapture,
+            OutputCapture errorCapture,
+            String... command) {
+        return executeNonBlocking(workingDirectory, environmentVars, timeout, inputProvider,
+            outputCapture, errorCapture, null, null, command);
+    }
+
+    /**
+     * Executes a command without blocking the caller, streaming every line to the given callbacks
+     * as it is read, regardless of what the capture policies keep.
+     */
+    public static CompletableFuture<ExecutionResult> executeNonBlocking(
+            Path workingDirectory,
+            java.util.Map<String, String> environmentVars,
+            Duration timeout,
+            Consumer<PrintWriter> inputProvider,
+            OutputCapture outputCapture,
+            OutputCapture errorCapture,
+            Consumer<String> outputConsumer,
+            Consumer<String> errorConsumer,
+            String... command) {
 
         logger.debug("Executing command: {}", String.join(" ", command));
 
@@ -74,41 +150,132 @@ public class ProcessExecutor {
             pb.environment().putAll(environmentVars);
         }
 
-        Process process = pb.start();
+        Process process;
+        try {
+            process = pb.start();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
 
-        // Provide input if needed
+        // Provide input if needed, without blocking the caller on a full pipe
         if (inputProvider != null) {
-            try (PrintWriter writer = new PrintWriter(process.getOutputStream())) {
-                inputProvider.accept(writer);
-                writer.flush();
-            } catch (Exception e) {
-                logger.warn("Failed to provide input to process", e);
-            }
+            ProcessIoExecutor.run(() -> {
+                try (PrintWriter writer = new PrintWriter(process.getOutputStream())) {
+                    inputProvider.accept(writer);
+                    writer.flush();
+                } catch (Exception e) {
+                    logger.warn("Failed to provide input to process", e);
+                }
+            });
         }
 
         // Read output and errors asynchronously
-        CompletableFuture<List<String>> outputFuture = readStream(process.getInputStream());
-        CompletableFuture<List<String>> errorFuture = readStream(process.getErrorStream());
-
-        // Wait for completion with timeout
-        boolean completed = process.waitFor(timeoutMinutes, TimeUnit.MINUTES);
+        CompletableFuture<List<String>> outputFuture = readStreamWithCallback(
+            process.getInputStream(), outputCapture, outputConsumer);
+        CompletableFuture<List<String>> errorFuture = readStreamWithCallback(
+            process.getErrorStream(), errorCapture, errorConsumer);
+
+        CompletableFuture<ExecutionResult> result = new CompletableFuture<>();
+
+        process.onExit()
+            .thenCombine(outputFuture, (exited, output) -> output)
+            .thenCombine(errorFuture, (output, errors) -> {
+                int exitCode = process.exitValue();
+                if (exitCode != 0) {
+                    logger.warn("Command failed with exit code {}: {}", exitCode, String.join(" ", command));
+                } else {
+                    logger.debug("Command completed successfully");
+                }
+                return new ExecutionResult(exitCode, output, errors);
+            })
+            .whenComplete((executionResult, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(executionResult);
+                }
+            });
+
+        // Deadline exceeded or cancelled by the caller: the child must not outlive the request
+        result.whenComplete((executionResult, error) -> {
+            if (error != null && process.isAlive()) {
+                logger.debug("Killing process (PID: {}) after {}", process.pid(), error.toString());
+                process.destroyForcibly();
+            }
+        });
 
-        if (!completed) {
-            process.destroyForcibly();
-            throw new IOException("Process timed out after " + timeoutMinutes + " minutes");
+        if (timeout == null) {
+            return result;
         }
 
-        int exitCode = process.exitValue();
-        List<String> output = outputFuture.join();
-        List<String> errors = errorFuture.join();
+        // orTimeout cancels its timer when the process exits, so nothing keeps the process reachable
+        result.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        CompletableFuture<ExecutionResult> timed = new CompletableFuture<>();
+        result.whenComplete((executionResult, error) -> {
+            if (error instanceof TimeoutException) {
+                timed.completeExceptionally(new IOException("Process timed out after " + formatTimeout(timeout)));
+            } else if (error != null) {
+                timed.completeExceptionally(error);
+            } else {
+                timed.complete(executionResult);
+            }
+        });
+        // Cancelling the returned future still kills the process
+        timed.whenComplete((executionResult, error) -> {
+            if (error instanceof CancellationException) {
+                result.cancel(true);
+            }
+        });
+        return timed;
+    }
 
-        if (exitCode != 0) {
-            logger.warn("Command failed with exit code {}: {}", exitCode, String.join(" ", command));
-        } else {
-            logger.debug("Command completed successfully");
+    /**
+     * Waits for a future from this class, unwrapping failures into checked exceptions.
+     * Cancels the future if the waiting thread is interrupted.
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (CancellationException e) {
+            throw new IOException("Execution cancelled", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof InterruptedException interruptedException) {
+                throw interruptedException;
+            }
+            throw new IOException(cause.getMessage(), cause);
         }
+    }
 
-        return new ExecutionResult(exitCode, output, errors);
+    /**
+     * Combines several executions into one future completing with all results, in order.
+     */
+    public static CompletableFuture<List<ExecutionResult>> allOf(List<CompletableFuture<ExecutionResult>> executions) {
+        return CompletableFuture.allOf(executions.toArray(CompletableFuture[]::new))
+            .thenApply(ignored -> executions.stream().map(CompletableFuture::join).toList());
+    }
+
+    /**
+     * Runs the next execution only if the previous one succeeded; otherwise yields the failed result.
+     */
+    public static CompletableFuture<ExecutionResult> thenIfSuccess(
+            CompletableFuture<ExecutionResult> previous,
+            Supplier<CompletableFuture<ExecutionResult>> next) {
+        return previous.thenCompose(result ->
+            result.isSuccess() ? next.get() : CompletableFuture.completedFuture(result));
+    }
+
+    private static String formatTimeout(Duration timeout) {
+        long minutes = timeout.toMinutes();
+        return minutes > 0 && timeout.equals(Duration.ofMinutes(minutes))
+            ? minutes + " minutes"
+            : timeout.toMillis() + " ms";
     }
 
     /**
@@ -119,6 +286,29 @@ public class ProcessExecutor {
                                       String... command) throws IOException {
         logger.debug("Executing command asynchronously: {}", String.join(" ", command));
 
+        return newProcessBuilder(workingDirectory, environmentVars, command).start();
+    }
+
+    /**
+     * Executes a command asynchronously with stderr merged into stdout and sent to the given redirect.
+     * With a file or discard redirect the OS handles the output and no pipe can fill up.
+     */
+    public static Process executeAsync(Path workingDirectory,
+                                      java.util.Map<String, String> environmentVars,
+                                      ProcessBuilder.Redirect outputRedirect,
+                                      String... command) throws IOException {
+        logger.debug("Executing command asynchronously: {}", String.join(" ", command));
+
+        ProcessBuilder pb = newProcessBuilder(workingDirectory, environmentVars, command);
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(outputRedirect);
+
+        return pb.start();
+    }
+
+    private static ProcessBuilder newProcessBuilder(Path workingDirectory,
+                                                    java.util.Map<String, String> environmentVars,
+                                                    String... command) {
         ProcessBuilder pb = new ProcessBuilder(command);
 
         if (workingDirectory != null) {
@@ -128,8 +318,7 @@ public class ProcessExecutor {
         if (environmentVars != null) {
             pb.environment().putAll(environmentVars);
         }
-
-        return pb.start();
+        return pb;
     }
 
     /**
@@ -145,46 +334,18 @@ public class ProcessExecutor {
 
         logger.debug("Executing command with streaming: {}", String.join(" ", command));
 
-        ProcessBuilder pb = new ProcessBuilder(command);
-
-        if (workingDirectory != null) {
-            pb.directory(workingDirectory.toFile());
-        }
-
-        if (environmentVars != null) {
-            pb.environment().putAll(environmentVars);
-        }
-
-        Process process = pb.start();
-
-        // Provide input if needed
-        if (inputProvider != null) {
-            try (PrintWriter writer = new PrintWriter(process.getOutputStream())) {
-                inputProvider.accept(writer);
-                writer.flush();
-            }
-        }
-
-        // Stream output and errors in real-time
-        CompletableFuture<List<String>> outputFuture = readStreamWithCallback(
-            process.getInputStream(), outputConsumer);
-        CompletableFuture<List<String>> errorFuture = readStreamWithCallback(
-            process.getErrorStream(), errorConsumer);
-
-        int exitCode = process.waitFor();
-        List<String> output = outputFuture.join();
-        List<String> errors = errorFuture.join();
-
-        return new ExecutionResult(exitCode, output, errors);
+        return await(executeNonBlocking(workingDirectory, environmentVars, null, inputProvider,
+            OutputCapture.full(), OutputCapture.full(), outputConsumer, errorConsumer, command));
     }
 
     /**
-     * Reads an input stream asynchronously.
+     * Reads an input stream on a virtual I/O thread, with an optional callback for each line.
      */
-    private static CompletableFuture<List<String>> readStream(InputStream inputStream) {
-        return CompletableFuture.supplyAsync(() -> {
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
-                return reader.lines().toList();
+    private static CompletableFuture<List<String>> readStreamWithCallback(
+            InputStream inputStream, OutputCapture capture, Consumer<String> lineConsumer) {
+        return ProcessIoExecutor.supply(() -> {
+            try {
+                return capture.capture(inputStream, lineConsumer);
             } catch (IOException e) {
                 logger.error("Error reading stream", e);
                 return List.of();
@@ -193,47 +354,93 @@ public class ProcessExecutor {
     }
 
     /**
-     * Reads an input stream with a callback for each line.
+     * Kills a process and all its descendants, gracefully then forcefully if needed.
      */
-    private static CompletableFuture<List<String>> readStreamWithCallback(
-            InputStream inputStream, Consumer<String> lineConsumer) {
-        return CompletableFuture.supplyAsync(() -> {
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
-                return reader.lines()
-                    .peek(line -> {
-                        if (lineConsumer != null) {
-                            lineConsumer.accept(line);
-                        }
-                    })
-                    .toList();
-            } catch (IOException e) {
-                logger.error("Error reading stream", e);
-                return List.of();
-            }
-        });
+    public static void killProcess(Process process) {
+        if (process == null) {
+            return;
+        }
+        killProcessTree(process.toHandle(), Duration.ofSeconds(5), Duration.ofSeconds(2));
     }
 
     /**
-     * Kills a process gracefully, then forcefully if needed.
+     * Terminates a process tree in one bounded step.
+     *
+     * Descendants are captured before anything is signalled, since they are
+     * re-parented once the root exits. Every node is then asked to terminate in
+     * parallel and force-killed if it is still alive after {@code gracePeriod}.
+     * Children a node spawns after the capture are force-killed with it; once a
+     * node has exited, its late children can no longer be found.
+     *
+     * @param root Root of the tree
+     * @param gracePeriod Time each process gets to exit after a normal termination request
+     * @param forceTimeout Time each process gets to exit after being force-killed
+     * @return true if every process of the tree has exited
      */
-    public static void killProcess(Process process) {
-        if (process == null || !process.isAlive()) {
-            return;
+    public static boolean killProcessTree(ProcessHandle root, Duration gracePeriod, Duration forceTimeout) {
+        if (root == null) {
+            return true;
+        }
+
+        Set<ProcessHandle> tree = new LinkedHashSet<>();
+        root.descendants().forEach(tree::add);
+        tree.add(root);
+        tree.removeIf(handle -> !handle.isAlive());
+        if (tree.isEmpty()) {
+            return true;
         }
 
-        logger.debug("Terminating process (PID: {})", process.pid());
-        process.destroy();
+        logger.debug("Terminating process tree of PID {} ({} processes)", root.pid(), tree.size());
 
+        List<CompletableFuture<ProcessHandle>> exits = tree.stream()
+            .map(handle -> terminate(handle, gracePeriod, forceTimeout))
+            .toList();
         try {
-            boolean terminated = process.waitFor(5, TimeUnit.SECONDS);
-            if (!terminated) {
-                logger.warn("Process did not terminate gracefully, forcing termination");
-                process.destroyForcibly();
-                process.waitFor(2, TimeUnit.SECONDS);
-            }
+            CompletableFuture.allOf(exits.toArray(CompletableFuture[]::new)).get();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            process.destroyForcibly();
+            tree.forEach(ProcessHandle::destroyForcibly);
+        } catch (ExecutionException e) {
+            logger.debug("Error while waiting for process tree to exit", e.getCause());
         }
+
+        // Children spawned while the tree was being signalled, by nodes that outlived the force timeout
+        tree.stream()
+            .flatMap(ProcessHandle::descendants)
+            .filter(ProcessHandle::isAlive)
+            .forEach(ProcessHandle::destroyForcibly);
+
+        List<Long> survivors = tree.stream()
+            .filter(ProcessHandle::isAlive)
+            .map(ProcessHandle::pid)
+            .toList();
+        if (!survivors.isEmpty()) {
+            logger.warn("Processes still alive after termination of PID {}: {}", root.pid(), survivors);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Asks a single process to exit, escalating to a forced kill after the grace period.
+     */
+    private static CompletableFuture<ProcessHandle> terminate(
+            ProcessHandle handle, Duration gracePeriod, Duration forceTimeout) {
+        if (!handle.destroy()) {
+            handle.destroyForcibly();
+        }
+
+        return handle.onExit()
+            .completeOnTimeout(handle, gracePeriod.toMillis(), TimeUnit.MILLISECONDS)
+            .thenCompose(h -> {
+                if (!h.isAlive()) {
+                    return CompletableFuture.completedFuture(h);
+                }
+                logger.warn("Process {} did not terminate gracefully, forcing termination", h.pid());
+                // Including the children it spawned since the tree was captured
+                h.descendants().forEach(ProcessHandle::destroyForcibly);
+                h.destroyForcibly();
+                return h.onExit().completeOnTimeout(h, forceTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            });
     }
 }
@@ -0,0 +1,115 @@
+package net.nicolamurtas.android.emulator.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Virtual-thread executor for blocking process I/O: stream pumping and process waits.
+ *
+ * Each task gets its own virtual thread, so hundreds of child processes can be
+ * drained concurrently without tying up platform threads or the common
+ * ForkJoinPool.
+ */
+public final class ProcessIoExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(ProcessIoExecutor.class);
+
+    private static final AtomicLong threadCounter = new AtomicLong();
+    private static final AtomicInteger activeTasks = new AtomicInteger();
+    private static final AtomicInteger peakActiveTasks = new AtomicInteger();
+    private static final AtomicLong startedTasks = new AtomicLong();
+    private static final AtomicLong completedTasks = new AtomicLong();
+
+    private static volatile String threadNamePrefix = "process-io-";
+
+    private static final ExecutorService executor = Executors.newThreadPerTaskExecutor(
+        runnable -> Thread.ofVirtual()
+            .name(threadNamePrefix + threadCounter.incrementAndGet())
+            .unstarted(runnable));
+
+    /**
+     * Snapshot of executor activity.
+     *
+     * @param activeTasks Tasks currently pumping or waiting
+     * @param peakActiveTasks Highest number of concurrent tasks seen
+     * @param startedTasks Tasks started since launch
+     * @param completedTasks Tasks finished since launch
+     */
+    public record Metrics(int activeTasks, int peakActiveTasks, long startedTasks, long completedTasks) {}
+
+    private ProcessIoExecutor() {
+    }
+
+    /**
+     * Sets the prefix used to name new I/O threads (default "process-io-").
+     */
+    public static void setThreadNamePrefix(String prefix) {
+        threadNamePrefix = prefix;
+    }
+
+    /**
+     * Gets the underlying executor, for APIs that take an {@link Executor}.
+     * Tasks submitted directly are not counted in the metrics.
+     */
+    public static Executor executor() {
+        return executor;
+    }
+
+    /**
+     * Runs a blocking task on its own virtual thread.
+     */
+    public static <T> CompletableFuture<T> supply(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(() -> {
+            onStart();
+            try {
+                return task.get();
+            } finally {
+                onComplete();
+            }
+        }, executor);
+    }
+
+    /**
+     * Runs a blocking task on its own virtual thread.
+     */
+    public static CompletableFuture<Void> run(Runnable task) {
+        return supply(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Gets the number of tasks currently pumping or waiting.
+     */
+    public static int getActiveTasks() {
+        return activeTasks.get();
+    }
+
+    /**
+     * Gets a snapshot of executor activity.
+     */
+    public static Metrics getMetrics() {
+        return new Metrics(activeTasks.get(), peakActiveTasks.get(),
+            startedTasks.get(), completedTasks.get());
+    }
+
+    private static void onStart() {
+        startedTasks.incrementAndGet();
+        int active = activeTasks.incrementAndGet();
+        peakActiveTasks.accumulateAndGet(active, Math::max);
+        logger.trace("Process I/O task started ({} active)", active);
+    }
+
+    private static void onComplete() {
+        completedTasks.incrementAndGet();
+        activeTasks.decrementAndGet();
+    }
+}
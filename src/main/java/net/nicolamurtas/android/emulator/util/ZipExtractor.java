@@ -0,0 +1,328 @@
+package net.nicolamurtas.android.emulator.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts ZIP archives from disk with several threads.
+ *
+ * Uses the central directory for random access: directories are created up
+ * front, then file entries are handed out largest first to workers that each
+ * open their own {@link ZipFile}, so inflating runs on every core without
+ * contending on a shared file handle. Output files are preallocated to their
+ * final size before being written.
+ *
+ * Unix permissions stored in the entries' external attributes are restored
+ * on file systems that support them, and entries stored as symbolic links
+ * are created as links, as long as they point inside the destination.
+ */
+public class ZipExtractor {
+    private static final Logger logger = LoggerFactory.getLogger(ZipExtractor.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Below this many bytes the thread start-up costs more than it saves. */
+    private static final long MIN_PARALLEL_BYTES = 4L * 1024 * 1024;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int HOST_UNIX = 3;
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFLNK = 0120000;
+
+    /**
+     * Outcome of an extraction.
+     *
+     * @param files Number of files written
+     * @param bytes Uncompressed bytes written
+     * @param threads Number of worker threads used
+     * @param permissionsRestored Number of files whose Unix permissions were restored from the archive
+     */
+    public record Result(int files, long bytes, int threads, int permissionsRestored) {}
+
+    private record FileEntry(String name, Path target, long size, int unixMode) {}
+
+    private record LinkEntry(String name, Path target) {}
+
+    private final int parallelism;
+
+    public ZipExtractor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism Maximum number of worker threads
+     */
+    public ZipExtractor(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Extracts an archive.
+     *
+     * @param archive ZIP file
+     * @param destination Target directory
+     * @param stripTopLevel Whether to drop the archive's top-level directory from entry names
+     * @throws IOException If an entry cannot be extracted, or it or the link it stores points outside the destination
+     */
+    public Result extract(Path archive, Path destination, boolean stripTopLevel)
+            throws IOException, InterruptedException {
+        Path root = destination.normalize();
+        List<FileEntry> files = new ArrayList<>();
+        List<LinkEntry> links = new ArrayList<>();
+        Set<Path> directories = new HashSet<>();
+        directories.add(root);
+        Map<String, Integer> unixModes = PlatformUtils.supportsPosixPermissions()
+            ? readUnixModes(archive) : Map.of();
+
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                String relative = name;
+                if (stripTopLevel) {
+                    int slash = name.indexOf('/');
+                    if (slash < 0 || slash == name.length() - 1) {
+                        continue; // the top-level directory itself
+                    }
+                    relative = name.substring(slash + 1);
+                }
+
+                Path entryPath = root.resolve(relative).normalize();
+                // Security check: prevent zip slip vulnerability
+                if (!entryPath.startsWith(root) || entryPath.equals(root)) {
+                    throw new IOException("Zip entry is outside target directory: " + name);
+                }
+
+                int unixMode = unixModes.getOrDefault(name, 0);
+                if (entry.isDirectory()) {
+                    directories.add(entryPath);
+                } else if ((unixMode & S_IFMT) == S_IFLNK) {
+                    directories.add(entryPath.getParent());
+                    links.add(new LinkEntry(name, entryPath));
+                } else {
+                    directories.add(entryPath.getParent());
+                    files.add(new FileEntry(name, entryPath, entry.getSize(), unixMode));
+                }
+            }
+        }
+
+        for (Path directory : directories) {
+            Files.createDirectories(directory);
+        }
+
+        // Largest first keeps one big entry from finishing alone at the end
+        files.sort(Comparator.comparingLong(FileEntry::size).reversed());
+        long totalBytes = files.stream().mapToLong(file -> Math.max(0, file.size())).sum();
+        int threads = totalBytes < MIN_PARALLEL_BYTES ? 1 : Math.min(parallelism, files.size());
+
+        Queue<FileEntry> pending = new ConcurrentLinkedQueue<>(files);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Runnable worker = () -> {
+            try (ZipFile zip = new ZipFile(archive.toFile())) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                FileEntry file;
+                while (failure.get() == null && (file = pending.poll()) != null) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Extraction interrupted");
+                    }
+                    writeEntry(zip, file, buffer);
+                }
+            } catch (IOException | RuntimeException e) {
+                failure.compareAndSet(null, e);
+            }
+        };
+
+        if (threads == 1) {
+            worker.run();
+        } else {
+            List<Thread> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(Thread.ofPlatform().name("zip-extract-" + i).daemon().start(worker));
+            }
+            try {
+                for (Thread thread : workers) {
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                workers.forEach(Thread::interrupt);
+                throw e;
+            }
+        }
+
+        Exception error = failure.get();
+        if (error instanceof IOException e) {
+            throw e;
+        } else if (error != null) {
+            throw new IOException("Failed to extract " + archive, error);
+        }
+
+        Map<Path, Set<PosixFilePermission>> permissions = new HashMap<>();
+        for (FileEntry file : files) {
+            if ((file.unixMode() & 0777) != 0) {
+                permissions.put(file.target(), toPermissions(file.unixMode()));
+            }
+        }
+        int restored = PlatformUtils.setPosixPermissions(permissions);
+
+        if (!links.isEmpty()) {
+            try (ZipFile zip = new ZipFile(archive.toFile())) {
+                for (LinkEntry link : links) {
+                    createLink(zip, link, root);
+                }
+            }
+        }
+
+        logger.debug("Extracted {} files ({} bytes) and {} links from {} with {} threads, restored {} permissions",
+            files.size(), totalBytes, links.size(), archive.getFileName(), threads, restored);
+        return new Result(files.size(), totalBytes, threads, restored);
+    }
+
+    private static void writeEntry(ZipFile zip, FileEntry file, byte[] buffer) throws IOException {
+        ZipEntry entry = zip.getEntry(file.name());
+        if (entry == null) {
+            throw new IOException("Zip entry disappeared: " + file.name());
+        }
+
+        try (InputStream in = zip.getInputStream(entry);
+             RandomAccessFile out = new RandomAccessFile(file.target().toFile(), "rw")) {
+            if (file.size() > 0) {
+                out.setLength(file.size());
+            }
+            FileChannel channel = out.getChannel();
+            long position = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                while (byteBuffer.hasRemaining()) {
+                    position += channel.write(byteBuffer, position);
+                }
+            }
+            if (position != out.length()) {
+                out.setLength(position);
+            }
+        }
+    }
+
+    /**
+     * Creates a symbolic link entry; its content is the link target.
+     */
+    private static void createLink(ZipFile zip, LinkEntry link, Path root) throws IOException {
+        ZipEntry entry = zip.getEntry(link.name());
+        if (entry == null) {
+            throw new IOException("Zip entry disappeared: " + link.name());
+        }
+        String target;
+        try (InputStream in = zip.getInputStream(entry)) {
+            target = new String(in.readNBytes(4096), StandardCharsets.UTF_8);
+        }
+
+        // Files are written before links, so no entry is ever written through a link.
+        // Only leading ".." are allowed: "." or ".." after another link would be resolved
+        // by the OS from where that link points, not where its name is
+        Path targetPath = Path.of(target);
+        Path resolved = link.target().getParent().resolve(targetPath).normalize();
+        if (target.isEmpty() || targetPath.isAbsolute() || !targetPath.normalize().equals(targetPath)
+                || !resolved.startsWith(root)) {
+            throw new IOException("Zip link entry points outside target directory: " + link.name() + " -> " + target);
+        }
+        Files.deleteIfExists(link.target());
+        Files.createSymbolicLink(link.target(), targetPath);
+    }
+
+    /**
+     * Reads the Unix mode of each entry from the central directory; {@link ZipFile}
+     * does not expose the external attributes.
+     *
+     * @return modes by entry name, only for entries written on a Unix host
+     */
+    static Map<String, Integer> readUnixModes(Path archive) throws IOException {
+        try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < EOCD_MIN_SIZE) {
+                throw new IOException("Not a zip file: " + archive);
+            }
+
+            // The end of central directory record sits before an optional comment
+            int tailSize = (int) Math.min(fileSize, EOCD_MIN_SIZE + MAX_COMMENT_SIZE);
+            ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(tail, fileSize - tailSize);
+            int eocd = -1;
+            for (int i = tailSize - EOCD_MIN_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == EOCD_SIGNATURE) {
+                    eocd = i;
+                    break;
+                }
+            }
+            if (eocd < 0) {
+                throw new IOException("End of central directory not found: " + archive);
+            }
+
+            long directorySize = Integer.toUnsignedLong(tail.getInt(eocd + 12));
+            long directoryOffset = Integer.toUnsignedLong(tail.getInt(eocd + 16));
+            if (directoryOffset == 0xffffffffL && eocd >= 20 && tail.getInt(eocd - 20) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                ByteBuffer zip64 = ByteBuffer.allocate(56).order(ByteOrder.LITTLE_ENDIAN);
+                channel.read(zip64, tail.getLong(eocd - 12));
+                if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                    throw new IOException("Invalid zip64 end of central directory: " + archive);
+                }
+                directorySize = zip64.getLong(40);
+                directoryOffset = zip64.getLong(48);
+            }
+
+            ByteBuffer directory = channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset, directorySize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+            Map<String, Integer> modes = new HashMap<>();
+            int position = 0;
+            while (position + 46 <= directorySize && directory.getInt(position) == CENTRAL_HEADER_SIGNATURE) {
+                int madeBy = Short.toUnsignedInt(directory.getShort(position + 4)) >>> 8;
+                int nameLength = Short.toUnsignedInt(directory.getShort(position + 28));
+                int extraLength = Short.toUnsignedInt(directory.getShort(position + 30));
+                int commentLength = Short.toUnsignedInt(directory.getShort(position + 32));
+                int externalAttributes = directory.getInt(position + 38);
+
+                if (madeBy == HOST_UNIX) {
+                    byte[] name = new byte[nameLength];
+                    directory.get(position + 46, name);
+                    modes.put(new String(name, StandardCharsets.UTF_8), externalAttributes >>> 16);
+                }
+                position += 46 + nameLength + extraLength + commentLength;
+            }
+            return modes;
+        }
+    }
+
+    private static Set<PosixFilePermission> toPermissions(int mode) {
+        Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+        PosixFilePermission[] values = PosixFilePermission.values();
+        // values() is ordered from OWNER_READ (0400) to OTHERS_EXECUTE (0001)
+        for (int i = 0; i < values.length; i++) {
+            if ((mode & (0400 >> i)) != 0) {
+                permissions.add(values[i]);
+            }
+        }
+        return permissions;
+    }
+}
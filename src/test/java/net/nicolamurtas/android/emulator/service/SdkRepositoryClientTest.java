@@ -0,0 +1,271 @@
+package net.nicolamurtas.android.emulator.service;
+
+import net.nicolamurtas.android.emulator.util.DownloadCache;
+import net.nicolamurtas.android.emulator.util.HttpDownloader;
+import net.nicolamurtas.android.emulator.util.PlatformUtils;
+import net.nicolamurtas.android.emulator.util.TestHttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SdkRepositoryClientTest {
+    private static final String MANIFEST = "/repo/repository2-3.xml";
+
+    @TempDir
+    Path tempDir;
+
+    private TestHttpServer server;
+    private HttpDownloader downloader;
+    private SdkRepositoryClient client;
+    private final StringBuilder packages = new StringBuilder();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = TestHttpServer.start();
+        downloader = new HttpDownloader(HttpClient.newHttpClient(), 2, Duration.ofMillis(10));
+        downloader.setSegmentation(1, Long.MAX_VALUE);
+        client = new SdkRepositoryClient(server.uri("/repo/"), 4, downloader);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.close();
+    }
+
+    @Test
+    void resolvesStableHostArchivesAtTheLatestRevision() throws Exception {
+        byte[] old = archive("android-35", "old");
+        byte[] latest = archive("android-35", "latest");
+        addPackage("platforms;android-35", "1", "channel-0", null, "", archiveXml("platform-35_r01.zip", old, null));
+        addPackage("platforms;android-35", "2", "channel-0", null, "", archiveXml("platform-35_r02.zip", latest, null));
+        addPackage("platforms;android-36", "1", "channel-1", null, "", archiveXml("platform-36.zip", latest, null));
+        addPackage("platforms;android-34", "1", "channel-0", null, "",
+            archiveXml("platform-34-other.zip", old, otherHostOs()));
+        publishManifest();
+
+        Map<String, SdkRepositoryClient.RemotePackage> resolved = client.resolve(
+            List.of("platforms;android-35", "platforms;android-36", "platforms;android-34", "platforms;android-99"));
+
+        assertEquals(Set.of("platforms;android-35"), resolved.keySet());
+        SdkRepositoryClient.RemotePackage platform = resolved.get("platforms;android-35");
+        assertEquals("2", platform.revision());
+        assertEquals("Package platforms;android-35", platform.displayName());
+        assertEquals(server.uri("/repo/platform-35_r02.zip"), platform.archive().url());
+        assertEquals(latest.length, platform.archive().size());
+        assertEquals(sha1(latest), platform.archive().sha1());
+    }
+
+    @Test
+    void installsMissingDependencies() throws Exception {
+        byte[] platform = archive("android-35", "platform");
+        byte[] emulator = archive("emulator", "emulator");
+        addPackage("platforms;android-35", "2", "channel-0", "android-sdk-license",
+            "<dependencies><dependency path=\"emulator\"><min-revision><major>30</major></min-revision>"
+                + "</dependency></dependencies>",
+            archiveXml("platform-35.zip", platform, null));
+        addPackage("emulator", "35.1.2", "channel-0", "android-sdk-license", "", archiveXml("emulator.zip", emulator, null));
+        publishManifest();
+        server.serve("/repo/platform-35.zip", platform);
+        server.serve("/repo/emulator.zip", emulator);
+        Path sdk = Files.createDirectories(tempDir.resolve("sdk"));
+        new SdkLicenses(sdk).acceptKnownLicenses();
+
+        List<String> failed = client.install(sdk, List.of("platforms;android-35"), 0, 100, null);
+
+        assertEquals(List.of(), failed);
+        SdkInventory inventory = SdkInventory.scan(sdk);
+        assertEquals("2", inventory.get("platforms;android-35").orElseThrow().revision());
+        assertEquals("35.1.2", inventory.get("emulator").orElseThrow().revision());
+        assertEquals("platform", Files.readString(sdk.resolve("platforms/android-35/content.txt")));
+        String packageXml = Files.readString(sdk.resolve("platforms/android-35/package.xml"));
+        assertTrue(packageXml.contains("<uses-license ref=\"android-sdk-license\"/>"), packageXml);
+        assertTrue(packageXml.contains("<dependency path=\"emulator\">"), packageXml);
+    }
+
+    @Test
+    void leavesPackagesWithUnacceptedLicensesToSdkManager() throws Exception {
+        byte[] platform = archive("android-35", "platform");
+        byte[] emulator = archive("emulator", "emulator");
+        addPackage("platforms;android-35", "2", "channel-0", "android-sdk-license",
+            "<dependencies><dependency path=\"emulator\"/></dependencies>",
+            archiveXml("platform-35.zip", platform, null));
+        addPackage("emulator", "35.1.2", "channel-0", "android-sdk-preview-license", "",
+            archiveXml("emulator.zip", emulator, null));
+        publishManifest();
+        server.serve("/repo/platform-35.zip", platform);
+        server.serve("/repo/emulator.zip", emulator);
+        Path sdk = Files.createDirectories(tempDir.resolve("sdk"));
+        Files.createDirectories(sdk.resolve("licenses"));
+        Files.writeString(sdk.resolve("licenses/android-sdk-license"), "\n24333f8a63b6825ea9c5514f83c2829b004d1fee\n"
+            + "8933bad161af4178b1185d1a37fbf41ea5269c55\nd56f5187479451eabf01fb78af6dfcb131a6481e");
+
+        // The emulator license is not accepted, and the platform needs the emulator
+        List<String> failed = client.install(sdk, List.of("platforms;android-35"), 0, 100, null);
+
+        assertEquals(List.of("platforms;android-35"), failed);
+        assertEquals(List.of(), server.requests("/repo/platform-35.zip"));
+        assertEquals(List.of(), server.requests("/repo/emulator.zip"));
+        assertTrue(SdkInventory.scan(sdk).getPackages().isEmpty());
+    }
+
+    @Test
+    void acceptsLicensesRecordedWithTheCurrentTextOnly() throws Exception {
+        byte[] platform = archive("android-35", "platform");
+        addPackage("platforms;android-35", "2", "channel-0", "android-sdk-license", "",
+            archiveXml("platform-35.zip", platform, null));
+        publishManifest();
+        server.serve("/repo/platform-35.zip", platform);
+        Path sdk = Files.createDirectories(tempDir.resolve("sdk"));
+        // As written by sdkmanager --licenses or by CI pre-licensing
+        Files.createDirectories(sdk.resolve("licenses"));
+        Files.writeString(sdk.resolve("licenses/android-sdk-license"), "\n24333f8a63b6825ea9c5514f83c2829b004d1fee");
+
+        assertEquals(List.of(), client.getMissingLicenses(sdk, List.of("platforms;android-35")));
+        assertEquals(List.of(), client.install(sdk, List.of("platforms;android-35"), 0, 100, null));
+        assertTrue(SdkInventory.scan(sdk).isInstalled("platforms;android-35"));
+    }
+
+    @Test
+    void reportsOnlyTheLicensesOfPackagesToInstall() throws Exception {
+        byte[] platform = archive("android-35", "platform");
+        byte[] emulator = archive("emulator", "emulator");
+        addPackage("platforms;android-35", "2", "channel-0", "android-sdk-license",
+            "<dependencies><dependency path=\"emulator\"/></dependencies>",
+            archiveXml("platform-35.zip", platform, null));
+        addPackage("emulator", "35.1.2", "channel-0", "android-sdk-preview-license", "",
+            archiveXml("emulator.zip", emulator, null));
+        publishManifest();
+        Path sdk = Files.createDirectories(tempDir.resolve("sdk"));
+
+        assertEquals(List.of("android-sdk-license", "android-sdk-preview-license"),
+            client.getMissingLicenses(sdk, List.of("platforms;android-35")));
+        Files.createDirectories(sdk.resolve("licenses"));
+        Files.writeString(sdk.resolve("licenses/android-sdk-license"), "\n24333f8a63b6825ea9c5514f83c2829b004d1fee");
+        assertEquals(List.of("android-sdk-preview-license"),
+            client.getMissingLicenses(sdk, List.of("platforms;android-35")));
+    }
+
+    @Test
+    void concurrentInstallsShareOneDownload() throws Exception {
+        byte[] image = archive("x86_64", "image");
+        addPackage("platforms;android-35", "2", "channel-0", null, "", archiveXml("platform-35.zip", image, null));
+        publishManifest();
+        server.serve("/repo/platform-35.zip", image);
+        CountDownLatch release = server.hold("/repo/platform-35.zip");
+        client.setDownloadCache(DownloadCache.open(tempDir.resolve("cache"), DownloadCache.DEFAULT_MAX_BYTES));
+        Path firstSdk = Files.createDirectories(tempDir.resolve("first"));
+        Path secondSdk = Files.createDirectories(tempDir.resolve("second"));
+
+        CompletableFuture<List<String>> first = installAsync(firstSdk);
+        awaitRequests("/repo/platform-35.zip", 1);
+        CompletableFuture<List<String>> second = installAsync(secondSdk);
+        awaitRequests(MANIFEST, 2);
+        // Let the second install reach the download the first one started
+        Thread.sleep(300);
+        release.countDown();
+
+        assertEquals(List.of(), first.get(30, TimeUnit.SECONDS));
+        assertEquals(List.of(), second.get(30, TimeUnit.SECONDS));
+        assertEquals(1, server.requests("/repo/platform-35.zip").size());
+        assertTrue(SdkInventory.scan(firstSdk).isInstalled("platforms;android-35"));
+        assertTrue(SdkInventory.scan(secondSdk).isInstalled("platforms;android-35"));
+    }
+
+    private CompletableFuture<List<String>> installAsync(Path sdk) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return client.install(sdk, List.of("platforms;android-35"), 0, 100, null);
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private void awaitRequests(String path, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (server.requests(path).size() < count) {
+            assertTrue(System.nanoTime() < deadline, "timed out waiting for " + count + " requests to " + path);
+            Thread.sleep(10);
+        }
+    }
+
+    private void addPackage(String path, String revision, String channel, String license, String dependencies,
+                            String archives) {
+        String[] numbers = revision.split("\\.");
+        String[] names = {"major", "minor", "micro"};
+        StringBuilder revisionXml = new StringBuilder();
+        for (int i = 0; i < numbers.length; i++) {
+            revisionXml.append('<').append(names[i]).append('>').append(numbers[i])
+                .append("</").append(names[i]).append('>');
+        }
+        packages.append("<remotePackage path=\"").append(path).append("\">")
+            .append("<type-details xsi:type=\"generic:genericDetailsType\"/>")
+            .append("<revision>").append(revisionXml).append("</revision>")
+            .append("<display-name>Package ").append(path).append("</display-name>")
+            .append(license != null ? "<uses-license ref=\"" + license + "\"/>" : "")
+            .append(dependencies)
+            .append("<channelRef ref=\"").append(channel).append("\"/>")
+            .append("<archives>").append(archives).append("</archives>")
+            .append("</remotePackage>");
+    }
+
+    private void publishManifest() {
+        server.serve(MANIFEST, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<sdk:sdk-repository xmlns:sdk=\"http://schemas.android.com/sdk/android/repo/repository2/03\""
+            + " xmlns:common=\"http://schemas.android.com/repository/android/common/02\""
+            + " xmlns:generic=\"http://schemas.android.com/repository/android/generic/02\""
+            + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
+            + "<license id=\"android-sdk-license\" type=\"text\">Terms</license>"
+            + "<license id=\"android-sdk-preview-license\" type=\"text\">Preview terms</license>"
+            + "<channel id=\"channel-0\">stable</channel><channel id=\"channel-1\">beta</channel>"
+            + packages
+            + "</sdk:sdk-repository>");
+    }
+
+    private static String archiveXml(String url, byte[] archive, String hostOs) throws Exception {
+        return "<archive><complete><size>" + archive.length + "</size>"
+            + "<checksum type=\"sha1\">" + sha1(archive) + "</checksum>"
+            + "<url>" + url + "</url></complete>"
+            + (hostOs != null ? "<host-os>" + hostOs + "</host-os>" : "")
+            + "</archive>";
+    }
+
+    /**
+     * Builds a package archive with a top-level directory, as the repository publishes them.
+     */
+    private static byte[] archive(String topLevel, String content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry(topLevel + "/"));
+            zip.putNextEntry(new ZipEntry(topLevel + "/content.txt"));
+            zip.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String otherHostOs() {
+        return PlatformUtils.isWindows() ? "linux" : "windows";
+    }
+
+    private static String sha1(byte[] data) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(data));
+    }
+}
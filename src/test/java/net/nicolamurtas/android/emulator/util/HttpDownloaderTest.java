@@ -0,0 +1,138 @@
+package net.nicolamurtas.android.emulator.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpDownloaderTest {
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+    private TestHttpServer server;
+    private HttpDownloader downloader;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = TestHttpServer.start();
+        downloader = new HttpDownloader(HttpClient.newHttpClient(), 2, Duration.ofMillis(10));
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.close();
+    }
+
+    @Test
+    void resumesAfterDroppedConnection() throws Exception {
+        byte[] body = randomBytes(1024 * 1024);
+        server.serve("/file.zip", body);
+        server.truncateNext("/file.zip", 300 * 1024);
+        downloader.setSegmentation(1, Long.MAX_VALUE);
+
+        Path target = tempDir.resolve("file.zip");
+        HttpDownloader.Result result = downloader.download(server.uri("/file.zip"), target, null);
+
+        assertArrayEquals(body, Files.readAllBytes(target));
+        assertEquals(2, result.attempts());
+        List<String> requests = server.requests("/file.zip");
+        assertEquals("", requests.get(0));
+        assertTrue(requests.get(1).startsWith("bytes=") && !requests.get(1).equals("bytes=0-"),
+            "second request resumes: " + requests.get(1));
+        assertFalse(Files.exists(tempDir.resolve("file.zip.part")));
+        assertFalse(Files.exists(tempDir.resolve("file.zip.part.meta")));
+    }
+
+    @Test
+    @Timeout(10) // the stalled response is held for 30 s
+    void retriesStalledConnection() throws Exception {
+        byte[] body = randomBytes(1024 * 1024);
+        server.serve("/file.zip", body);
+        server.stallNext("/file.zip", 300 * 1024);
+        downloader.setSegmentation(1, Long.MAX_VALUE);
+        downloader.setTimeouts(Duration.ofSeconds(5), Duration.ofMillis(500));
+
+        Path target = tempDir.resolve("file.zip");
+        HttpDownloader.Result result = downloader.download(server.uri("/file.zip"), target, null);
+
+        assertArrayEquals(body, Files.readAllBytes(target));
+        assertEquals(2, result.attempts());
+        assertTrue(server.requests("/file.zip").get(1).startsWith("bytes="), server.requests("/file.zip").toString());
+    }
+
+    @Test
+    void downloadsInSegments() throws Exception {
+        byte[] body = randomBytes(2 * CHUNK_SIZE + 12345);
+        server.serve("/image.zip", body);
+        downloader.setSegmentation(4, 1024);
+
+        Path target = tempDir.resolve("image.zip");
+        downloader.download(server.uri("/image.zip"), target, null);
+
+        assertArrayEquals(body, Files.readAllBytes(target));
+        assertEquals(List.of("bytes=0-0", "bytes=0-8388607", "bytes=16777216-16789560", "bytes=8388608-16777215"),
+            server.requests("/image.zip").stream().sorted().toList());
+    }
+
+    @Test
+    void resumesSegmentedDownloadWithMissingChunksOnly() throws Exception {
+        byte[] body = randomBytes(2 * CHUNK_SIZE + 12345);
+        server.serve("/image.zip", body);
+        server.failWhen("/image.zip", range -> range.startsWith("bytes=" + CHUNK_SIZE + "-"));
+        downloader.setSegmentation(4, 1024);
+
+        Path target = tempDir.resolve("image.zip");
+        assertThrows(IOException.class, () -> downloader.download(server.uri("/image.zip"), target, null));
+        assertFalse(Files.exists(target));
+        int firstRun = server.requests("/image.zip").size();
+
+        server.clearFailures();
+        HttpDownloader.Result result = downloader.download(server.uri("/image.zip"), target, null);
+
+        // The first chunk was in flight when the second failed, it completes; the last one may not have started
+        assertArrayEquals(body, Files.readAllBytes(target));
+        assertTrue(result.resumedFrom() >= CHUNK_SIZE, "resumed from " + result.resumedFrom());
+        List<String> resumed = server.requests("/image.zip").subList(firstRun, server.requests("/image.zip").size());
+        assertTrue(resumed.contains("bytes=8388608-16777215"), resumed.toString());
+        assertFalse(resumed.contains("bytes=0-8388607"), resumed.toString());
+        assertFalse(resumed.contains("bytes=0-0"), resumed.toString());
+    }
+
+    @Test
+    void restartsSegmentedDownloadWhosePartFileIsGone() throws Exception {
+        byte[] body = randomBytes(2 * CHUNK_SIZE + 12345);
+        server.serve("/image.zip", body);
+        server.failWhen("/image.zip", range -> range.startsWith("bytes=" + CHUNK_SIZE + "-"));
+        downloader.setSegmentation(4, 1024);
+
+        Path target = tempDir.resolve("image.zip");
+        assertThrows(IOException.class, () -> downloader.download(server.uri("/image.zip"), target, null));
+        Files.delete(tempDir.resolve("image.zip.part"));
+
+        server.clearFailures();
+        HttpDownloader.Result result = downloader.download(server.uri("/image.zip"), target, null);
+
+        // The chunks recorded as complete were lost with the part file
+        assertArrayEquals(body, Files.readAllBytes(target));
+        assertEquals(0, result.resumedFrom());
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
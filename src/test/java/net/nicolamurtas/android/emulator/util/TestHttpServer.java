@@ -0,0 +1,188 @@
+package net.nicolamurtas.android.emulator.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local HTTP server for tests, serving byte arrays with range requests,
+ * validators and injectable failures, and recording every request.
+ */
+public final class TestHttpServer implements AutoCloseable {
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final String LAST_MODIFIED = "Wed, 01 Jan 2025 00:00:00 GMT";
+
+    private record Resource(byte[] body, String etag) {}
+
+    private final HttpServer server;
+    private final Map<String, Resource> resources = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> requests = new ConcurrentHashMap<>();
+    private final Map<String, Integer> truncations = new ConcurrentHashMap<>();
+    private final Map<String, Integer> stalls = new ConcurrentHashMap<>();
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private final Map<String, Predicate<String>> failures = new ConcurrentHashMap<>();
+    private final Map<String, CountDownLatch> holds = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private TestHttpServer(HttpServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Starts a server on a free loopback port.
+     */
+    public static TestHttpServer start() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        TestHttpServer testServer = new TestHttpServer(server);
+        server.createContext("/", testServer::handle);
+        // Responses stall when the JDK server runs its handlers on virtual threads
+        server.setExecutor(testServer.executor);
+        server.start();
+        return testServer;
+    }
+
+    public URI uri(String path) {
+        return URI.create("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + path);
+    }
+
+    /**
+     * Serves a body at a path, with a strong ETag and a Last-Modified date.
+     */
+    public void serve(String path, byte[] body) {
+        resources.put(path, new Resource(body, "\"" + Arrays.hashCode(body) + "-" + body.length + "\""));
+    }
+
+    public void serve(String path, String body) {
+        serve(path, body.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Closes the connection after a number of body bytes on the next response for a path.
+     */
+    public void truncateNext(String path, int bytes) {
+        truncations.put(path, bytes);
+    }
+
+    /**
+     * Stops sending after a number of body bytes on the next response for a path,
+     * keeping the connection open until the server is closed.
+     */
+    public void stallNext(String path, int bytes) {
+        stalls.put(path, bytes);
+    }
+
+    /**
+     * Answers 503 to requests for a path whose Range header ("" if none) matches.
+     */
+    public void failWhen(String path, Predicate<String> range) {
+        failures.put(path, range);
+    }
+
+    public void clearFailures() {
+        failures.clear();
+    }
+
+    /**
+     * Holds responses for a path until the returned latch is counted down.
+     */
+    public CountDownLatch hold(String path) {
+        CountDownLatch latch = new CountDownLatch(1);
+        holds.put(path, latch);
+        return latch;
+    }
+
+    /**
+     * Gets the Range header of every request for a path, "" for requests without one.
+     */
+    public List<String> requests(String path) {
+        return List.copyOf(requests.getOrDefault(path, List.of()));
+    }
+
+    @Override
+    public void close() {
+        holds.values().forEach(CountDownLatch::countDown);
+        closed.countDown();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            String range = Objects.requireNonNullElse(exchange.getRequestHeaders().getFirst("Range"), "");
+            requests.computeIfAbsent(path, key -> new CopyOnWriteArrayList<>()).add(range);
+
+            CountDownLatch hold = holds.get(path);
+            if (hold != null && !hold.await(30, TimeUnit.SECONDS)) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            Predicate<String> failure = failures.get(path);
+            if (failure != null && failure.test(range)) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            Resource resource = resources.get(path);
+            if (resource == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            byte[] body = resource.body();
+            int start = 0;
+            int end = body.length - 1;
+            int status = 200;
+            Matcher matcher = RANGE_PATTERN.matcher(range);
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            boolean validatorMatches = ifRange == null || ifRange.equals(resource.etag()) || ifRange.equals(LAST_MODIFIED);
+            if (matcher.matches() && validatorMatches) {
+                start = Integer.parseInt(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    end = Math.min(end, Integer.parseInt(matcher.group(2)));
+                }
+                if (start > end) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + body.length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + body.length);
+            }
+
+            int length = end - start + 1;
+            exchange.getResponseHeaders().set("ETag", resource.etag());
+            exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            exchange.sendResponseHeaders(status, length);
+            Integer truncateAt = truncations.remove(path);
+            Integer stallAt = stalls.remove(path);
+            OutputStream out = exchange.getResponseBody();
+            if (stallAt != null) {
+                out.write(body, start, Math.min(stallAt, length));
+                out.flush();
+                closed.await(30, TimeUnit.SECONDS);
+                return;
+            }
+            out.write(body, start, truncateAt != null ? Math.min(truncateAt, length) : length);
+            // Closing with bytes missing drops the connection
+            out.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package net.nicolamurtas.android.emulator.util;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares {@link ZipExtractor} with a single {@link ZipInputStream} pass on an
+ * archive shaped like a system image: a few large files among many small ones.
+ *
+ * Takes a while and several GB of disk, so it only runs on request:
+ * {@code mvn test -Dtest=ZipExtractorBenchmarkTest -Dbenchmark=true [-Dbenchmark.mb=500]}
+ */
+@Tag("benchmark")
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class ZipExtractorBenchmarkTest {
+    private static final Logger logger = LoggerFactory.getLogger(ZipExtractorBenchmarkTest.class);
+
+    private static final int RUNS = 2;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void comparesWithZipInputStream() throws Exception {
+        long uncompressedBytes = Long.getLong("benchmark.mb", 500) * 1_000_000;
+        Path archive = tempDir.resolve("image.zip");
+        int entries = writeArchive(archive, uncompressedBytes);
+        logger.info("Archive: {} entries, {} MB uncompressed, {} MB zipped, {} cores", entries,
+            uncompressedBytes / 1_000_000, Files.size(archive) / 1_000_000, Runtime.getRuntime().availableProcessors());
+
+        int[] parallelisms = {1, 4, Runtime.getRuntime().availableProcessors()};
+        // The first run warms up the JIT and the page cache
+        for (int run = 1; run <= RUNS; run++) {
+            Path streamed = tempDir.resolve("streamed");
+            long start = System.nanoTime();
+            long streamedBytes = extractWithZipInputStream(archive, streamed);
+            logger.info("Run {}: ZipInputStream + Files.copy {} ms", run, elapsedMillis(start));
+            assertEquals(uncompressedBytes, streamedBytes);
+            delete(streamed);
+
+            for (int parallelism : parallelisms) {
+                Path extracted = tempDir.resolve("extracted");
+                start = System.nanoTime();
+                ZipExtractor.Result result = new ZipExtractor(parallelism).extract(archive, extracted, true);
+                logger.info("Run {}: ZipExtractor with {} threads {} ms", run, result.threads(), elapsedMillis(start));
+                assertEquals(uncompressedBytes, result.bytes());
+                assertEquals(entries, result.files());
+                delete(extracted);
+            }
+        }
+    }
+
+    /**
+     * Writes compressible entries under a top-level directory: one of 20 MB
+     * every 50, the rest up to 400 KB.
+     *
+     * @return the number of entries
+     */
+    private static int writeArchive(Path archive, long uncompressedBytes) throws IOException {
+        Random random = new Random(3);
+        long total = 0;
+        int entries = 0;
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(archive)))) {
+            while (total < uncompressedBytes) {
+                int size = (int) Math.min(entries % 50 == 0 ? 20_000_000 : 2_000 + random.nextInt(400_000),
+                    uncompressedBytes - total);
+                byte[] data = new byte[size];
+                for (int i = 0; i < size; i++) {
+                    data[i] = (byte) ('a' + (random.nextInt(64) < 40 ? random.nextInt(4) : random.nextInt(26)));
+                }
+                zip.putNextEntry(new ZipEntry("image/d" + (entries % 40) + "/f" + entries + ".bin"));
+                zip.write(data);
+                total += size;
+                entries++;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Extracts the way the repository client did before ZipExtractor.
+     */
+    private static long extractWithZipInputStream(Path archive, Path destination) throws IOException {
+        long bytes = 0;
+        try (ZipInputStream zis = new ZipInputStream(new BufferedInputStream(Files.newInputStream(archive)))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                Path target = destination.resolve(entry.getName());
+                Files.createDirectories(target.getParent());
+                bytes += Files.copy(zis, target);
+            }
+        }
+        return bytes;
+    }
+
+    private static long elapsedMillis(long start) {
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}